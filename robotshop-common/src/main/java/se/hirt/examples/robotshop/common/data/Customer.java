@@ -49,6 +49,13 @@ public class Customer implements Serializable {
 	public final static String KEY_CUSTOMER_ID = "customerId";
 	public final static String KEY_FULL_NAME = "fullName";
 	public final static String KEY_PHONE_NUMBER = "phoneNumber";
+	public final static String KEY_CUSTOMERS = "customers";
+	public final static String KEY_CUSTOMER_IDS = "customerIds";
+	public final static String KEY_MISSING_CUSTOMER_IDS = "missingCustomerIds";
+
+	// Well within what the customer service journal can record
+	public final static int MAX_FULL_NAME_LENGTH = 256;
+	public final static int MAX_PHONE_NUMBER_LENGTH = 64;
 
 	private final long id;
 	private final String fullName;
@@ -110,9 +117,15 @@ public class Customer implements Serializable {
 		if (!fullName.contains(" ")) {
 			throw new ValidationException("Must have first and last name! Full name was: " + fullName);
 		}
+		if (fullName.length() > MAX_FULL_NAME_LENGTH) {
+			throw new ValidationException("Full name longer than " + MAX_FULL_NAME_LENGTH + " characters!");
+		}
 	}
 
 	private static void validatePhoneNumber(String phoneNumber) throws ValidationException {
+		if (phoneNumber.length() > MAX_PHONE_NUMBER_LENGTH) {
+			throw new ValidationException("Phone number longer than " + MAX_PHONE_NUMBER_LENGTH + " characters!");
+		}
 		// Just checking that the allowed characters are there
 		String stripped = phoneNumber.replace(" ", "");
 		if (!stripped.matches("\\+?[\\d-]*(?:\\(\\d+\\))??[\\d-]*")) {
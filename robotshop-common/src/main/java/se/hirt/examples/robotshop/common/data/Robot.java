@@ -46,8 +46,12 @@ import javax.json.JsonObjectBuilder;
 public class Robot implements Serializable {
 	private static final long serialVersionUID = -7669748978172006987L;
 	public final static String KEY_SERIAL_NUMBER = "serialNumber";
+	public final static String KEY_SERIAL_NUMBERS = "serialNumbers";
+	public final static String KEY_ROBOTS = "robots";
 	public final static Long INVALID_SERIAL_ID = -1L;
 	public static final String KEY_COLOR = "color";
+	// Where the factory should post the robot when it has been built, instead of keeping it for pickup
+	public static final String KEY_CALLBACK_URL = "callbackUrl";
 
 	private final long serialNumber;
 	private final String robotType;
@@ -134,6 +134,26 @@ public class OpenTracingFilter implements ContainerRequestFilter, ContainerRespo
 		return (SpanContext) request.getAttribute(SERVER_SPAN_CONTEXT);
 	}
 
+	/**
+	 * Detaches the span of a request that will be completed asynchronously from the request
+	 * thread, so that the thread can go on serving other requests. The span is no longer
+	 * automatically finished with the response, so the caller must finish it when done.
+	 * 
+	 * @param request
+	 *            the request to suspend.
+	 * @return the span of the request, or null if the request is not traced.
+	 */
+	public static Span suspend(HttpServletRequest request) {
+		Scope scope = getActiveScope(request);
+		if (scope == null) {
+			return null;
+		}
+		setKeepOpen(request, true);
+		Span span = scope.span();
+		scope.close();
+		return span;
+	}
+
 	/**
 	 * Does not automatically close this request.
 	 * 
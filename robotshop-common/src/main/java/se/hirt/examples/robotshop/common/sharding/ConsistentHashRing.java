@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.sharding;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring, mapping customer ids to the (base URLs of the) customer service instances
+ * owning them. Each node is placed on the ring at a number of pseudo random points (virtual nodes),
+ * and a customer belongs to the first node point at or after the hash of its id. When a node is
+ * added, it takes over about 1/N of the customers, from all the other nodes alike, and nothing
+ * else moves.
+ * <p>
+ * Rings are immutable. All parties must use the same nodes and number of virtual nodes to agree on
+ * the owners.
+ * 
+ * @author Marcus Hirt
+ */
+public final class ConsistentHashRing {
+	public final static int DEFAULT_VIRTUAL_NODES = 128;
+
+	private final List<String> nodes;
+	private final int virtualNodes;
+	private final long[] points;
+	private final String[] owners;
+
+	/**
+	 * @param nodes
+	 *            the locations of the nodes, e.g. http://host:8081.
+	 * @param virtualNodes
+	 *            the number of points on the ring per node.
+	 */
+	public ConsistentHashRing(List<String> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("Must have at least one node!");
+		}
+		if (virtualNodes <= 0) {
+			throw new IllegalArgumentException("Must have at least one virtual node per node!");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		this.virtualNodes = virtualNodes;
+
+		TreeMap<Long, String> ring = new TreeMap<>();
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// On the off chance that two points collide, the lexically smaller node wins, regardless of order
+				ring.merge(hash(node + '#' + i), node, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+			}
+		}
+		points = new long[ring.size()];
+		owners = new String[ring.size()];
+		int i = 0;
+		for (Map.Entry<Long, String> entry : ring.entrySet()) {
+			points[i] = entry.getKey();
+			owners[i++] = entry.getValue();
+		}
+	}
+
+	public ConsistentHashRing(List<String> nodes) {
+		this(nodes, DEFAULT_VIRTUAL_NODES);
+	}
+
+	/**
+	 * Parses a comma separated list of node locations.
+	 * 
+	 * @param nodes
+	 *            the comma separated locations, e.g. http://host1:8081,http://host2:8081.
+	 * @return the ring.
+	 */
+	public static ConsistentHashRing parse(String nodes) {
+		List<String> locations = new ArrayList<>();
+		for (String node : nodes.split(",")) {
+			String location = normalize(node);
+			if (!location.isEmpty() && !locations.contains(location)) {
+				locations.add(location);
+			}
+		}
+		return new ConsistentHashRing(locations);
+	}
+
+	/**
+	 * @return the location without surrounding whitespace and trailing slashes.
+	 */
+	public static String normalize(String location) {
+		String normalized = location.trim();
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+		return normalized;
+	}
+
+	/**
+	 * @return the node owning the customer with the id.
+	 */
+	public String getNode(long customerId) {
+		int index = Arrays.binarySearch(points, mix(customerId));
+		if (index < 0) {
+			index = -index - 1;
+			if (index == points.length) {
+				index = 0;
+			}
+		}
+		return owners[index];
+	}
+
+	/**
+	 * @return the nodes, in the order given.
+	 */
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * @return the number of points on the ring per node.
+	 */
+	public int getVirtualNodes() {
+		return virtualNodes;
+	}
+
+	/**
+	 * @return a new ring, with the node added.
+	 */
+	public ConsistentHashRing withNode(String node) {
+		List<String> newNodes = new ArrayList<>(nodes);
+		String location = normalize(node);
+		if (!newNodes.contains(location)) {
+			newNodes.add(location);
+		}
+		return new ConsistentHashRing(newNodes, virtualNodes);
+	}
+
+	/**
+	 * @return the number of nodes in the ring.
+	 */
+	public int size() {
+		return nodes.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.join(",", nodes);
+	}
+
+	/*
+	 * 64 bit FNV-1a of the string, mixed.
+	 */
+	private static long hash(String string) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : string.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/*
+	 * The murmur3 finalizer. The customer ids have lots of structure (time, node and sequence),
+	 * which must not show through.
+	 */
+	private static long mix(long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.sharding;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Client for a customer service that is sharded over several instances by a
+ * {@link ConsistentHashRing}. Calls for a single customer are routed to the instance owning it,
+ * multi-gets are split up per instance, and listings and searches are scattered to all instances
+ * and the results merged. New customers are created round robin - the receiving instance picks an
+ * id that it owns.
+ * <p>
+ * With a single instance, this is simply a client for the customer service.
+ * <p>
+ * While the customers are being rebalanced to a new ring (see {@link #rebalance(ConsistentHashRing)}
+ * ), lookups that miss on the new owner are retried on the old one. When the customers have been
+ * rebalanced by someone else, lookups that miss fetch the current ring from the instances (GET
+ * /customers/shards, at most once a second) and are retried if the ring changed.
+ * <p>
+ * The calls to the instances are made in parallel with the asynchronous calls of the client, so the
+ * blocking methods must not be called from the callbacks of the client.
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerRouter {
+	public final static String KEY_SHARDS = "shards";
+	public final static String KEY_REBALANCING = "rebalancing";
+	public final static String KEY_MOVED = "moved";
+	public final static String KEY_SCORE = "score";
+
+	private final static MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+	private final static int MAX_LOOKUP_SIZE = 10000;
+	private final static long REBALANCE_POLL_INTERVAL = 500;
+	private final static long RING_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final Call.Factory httpClient;
+	private final AtomicInteger nextCreateNode = new AtomicInteger();
+	private final AtomicLong lastRingRefresh = new AtomicLong(System.nanoTime() - RING_REFRESH_INTERVAL);
+	private volatile ConsistentHashRing ring;
+	// The ring we are rebalancing away from, if any
+	private volatile ConsistentHashRing previousRing;
+	// True while this router drives the rebalancing, rather than following it
+	private volatile boolean rebalancing;
+
+	/**
+	 * @param httpClient
+	 *            the client to use for the calls.
+	 * @param ring
+	 *            the ring of customer service instances.
+	 */
+	public CustomerRouter(Call.Factory httpClient, ConsistentHashRing ring) {
+		this.httpClient = httpClient;
+		this.ring = ring;
+	}
+
+	/**
+	 * @param httpClient
+	 *            the client to use for the calls.
+	 * @param locations
+	 *            comma separated list of the locations of the customer service instances.
+	 */
+	public CustomerRouter(Call.Factory httpClient, String locations) {
+		this(httpClient, ConsistentHashRing.parse(locations));
+	}
+
+	public ConsistentHashRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * @return the location of the instance owning the customer.
+	 */
+	public String getLocation(long customerId) {
+		return ring.getNode(customerId);
+	}
+
+	/**
+	 * @return the location of the instance to create the next customer on.
+	 */
+	public String getCreateLocation() {
+		List<String> nodes = ring.getNodes();
+		return nodes.get(Math.floorMod(nextCreateNode.getAndIncrement(), nodes.size()));
+	}
+
+	/**
+	 * @return the customer, or null if there is no such customer.
+	 */
+	public Customer getCustomer(long customerId) throws IOException {
+		String location = getLocation(customerId);
+		Customer customer = getCustomerDuringRebalance(customerId);
+		if (customer == null) {
+			// Someone else may already have refreshed the ring, so check the owner either way
+			refreshRingIfStale().join();
+			if (!location.equals(getLocation(customerId))) {
+				customer = getCustomerDuringRebalance(customerId);
+			}
+		}
+		return customer;
+	}
+
+	private Customer getCustomerDuringRebalance(long customerId) throws IOException {
+		Customer customer = getCustomer(getLocation(customerId), customerId);
+		ConsistentHashRing previous = previousRing;
+		if (customer == null && previous != null && !previous.getNode(customerId).equals(getLocation(customerId))) {
+			customer = getCustomer(previous.getNode(customerId), customerId);
+		}
+		return customer;
+	}
+
+	private Customer getCustomer(String location, long customerId) throws IOException {
+		Request request = new Request.Builder().url(location + "/customers/" + customerId).get().build();
+		try (Response response = httpClient.newCall(request).execute()) {
+			if (response.code() == 404) {
+				return null;
+			}
+			return Customer.fromJSon(checkSuccessful(response).body().string());
+		}
+	}
+
+	/**
+	 * Creates a new customer. Does not validate the customer.
+	 * 
+	 * @return the created customer.
+	 */
+	public Customer createCustomer(String fullName, String phoneNumber) throws IOException {
+		String body = Json.createObjectBuilder().add(Customer.KEY_FULL_NAME, fullName)
+				.add(Customer.KEY_PHONE_NUMBER, phoneNumber).build().toString();
+		Request request = new Request.Builder().url(getCreateLocation() + "/customers")
+				.put(RequestBody.create(JSON, body)).build();
+		try (Response response = httpClient.newCall(request).execute()) {
+			return Customer.fromJSon(checkSuccessful(response).body().string());
+		}
+	}
+
+	/**
+	 * @return true if the customer was deleted, false if there was no such customer.
+	 */
+	public boolean deleteCustomer(long customerId) throws IOException {
+		String location = getLocation(customerId);
+		if (deleteCustomer(location, customerId)) {
+			return true;
+		}
+		refreshRingIfStale().join();
+		if (!location.equals(getLocation(customerId))) {
+			return deleteCustomer(getLocation(customerId), customerId);
+		}
+		return false;
+	}
+
+	private boolean deleteCustomer(String location, long customerId) throws IOException {
+		Request request = new Request.Builder().url(location + "/customers/" + customerId).delete().build();
+		try (Response response = httpClient.newCall(request).execute()) {
+			if (response.code() == 404) {
+				return false;
+			}
+			checkSuccessful(response);
+			return true;
+		}
+	}
+
+	/**
+	 * Looks up many customers, with one multi-get per instance, in parallel.
+	 * 
+	 * @return the customers found, by id. Customers that do not exist are left out.
+	 */
+	public Map<Long, Customer> lookupCustomers(Collection<Long> customerIds) throws IOException {
+		Map<Long, Customer> result = new HashMap<>();
+		ConsistentHashRing lookupRing = ring;
+		List<Long> missing = lookupDuringRebalance(lookupRing, customerIds, result);
+		if (!missing.isEmpty()) {
+			refreshRingIfStale().join();
+			ConsistentHashRing newRing = ring;
+			List<Long> moved = new ArrayList<>();
+			for (Long id : missing) {
+				if (!newRing.getNode(id).equals(lookupRing.getNode(id))) {
+					moved.add(id);
+				}
+			}
+			if (!moved.isEmpty()) {
+				lookupDuringRebalance(newRing, moved, result);
+			}
+		}
+		return result;
+	}
+
+	private List<Long> lookupDuringRebalance(ConsistentHashRing ring, Collection<Long> customerIds,
+			Map<Long, Customer> result) throws IOException {
+		List<Long> missing = scatterLookups(ring, customerIds, result);
+		ConsistentHashRing previous = previousRing;
+		if (!missing.isEmpty() && previous != null) {
+			missing = scatterLookups(previous, missing, result);
+		}
+		return missing;
+	}
+
+	private List<Long> scatterLookups(ConsistentHashRing ring, Collection<Long> customerIds, Map<Long, Customer> result)
+			throws IOException {
+		Map<String, List<Long>> idsByNode = new LinkedHashMap<>();
+		for (Long id : customerIds) {
+			idsByNode.computeIfAbsent(ring.getNode(id), (node) -> new ArrayList<>()).add(id);
+		}
+		List<CompletableFuture<JsonObject>> futures = new ArrayList<>();
+		for (Map.Entry<String, List<Long>> entry : idsByNode.entrySet()) {
+			List<Long> ids = entry.getValue();
+			for (int i = 0; i < ids.size(); i += MAX_LOOKUP_SIZE) {
+				JsonArrayBuilder jsonIds = Json.createArrayBuilder();
+				ids.subList(i, Math.min(ids.size(), i + MAX_LOOKUP_SIZE)).forEach((id) -> jsonIds.add(String.valueOf(id)));
+				String body = Json.createObjectBuilder().add(Customer.KEY_CUSTOMER_IDS, jsonIds).build().toString();
+				futures.add(scatter(entry.getKey(), (location) -> new Request.Builder()
+						.url(location + "/customers/lookup").post(RequestBody.create(JSON, body)).build()));
+			}
+		}
+		List<Long> missing = new ArrayList<>();
+		for (JsonObject jsonResult : gather(futures)) {
+			for (JsonObject jsonCustomer : jsonResult.getJsonArray(Customer.KEY_CUSTOMERS).getValuesAs(JsonObject.class)) {
+				Customer customer = Customer.fromJSon(jsonCustomer);
+				result.put(customer.getId(), customer);
+			}
+			for (JsonString missingId : jsonResult.getJsonArray(Customer.KEY_MISSING_CUSTOMER_IDS)
+					.getValuesAs(JsonString.class)) {
+				missing.add(Long.valueOf(missingId.getString()));
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Lists a page of customers, ordered by id, across all instances.
+	 * 
+	 * @param afterId
+	 *            only return customers with an id greater than this, or null to start from the
+	 *            beginning.
+	 * @param limit
+	 *            the maximum number of customers to return.
+	 * @return the customers in the page.
+	 */
+	public List<Customer> listCustomers(Long afterId, int limit) throws IOException {
+		List<CompletableFuture<JsonArray>> futures = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			futures.add(scatter(node, (location) -> {
+				HttpUrl.Builder url = HttpUrl.parse(location + "/customers").newBuilder();
+				if (afterId != null) {
+					url.addQueryParameter("after", String.valueOf(afterId));
+				}
+				url.addQueryParameter("limit", String.valueOf(limit));
+				return new Request.Builder().url(url.build()).get().build();
+			}));
+		}
+		// Each instance returns its first customers after the id, so the first ones of the merge are the right ones
+		List<Customer> customers = new ArrayList<>();
+		for (JsonArray page : gather(futures)) {
+			for (JsonObject jsonCustomer : page.getValuesAs(JsonObject.class)) {
+				customers.add(Customer.fromJSon(jsonCustomer));
+			}
+		}
+		customers.sort(Comparator.comparingLong(Customer::getId));
+		return customers.size() > limit ? new ArrayList<>(customers.subList(0, limit)) : customers;
+	}
+
+	/**
+	 * Fuzzy searches the customers by name across all instances.
+	 * 
+	 * @return the customer JSon objects, with their scores, best first.
+	 */
+	public List<JsonObject> searchCustomers(String query, int limit) throws IOException {
+		List<CompletableFuture<JsonArray>> futures = new ArrayList<>();
+		for (String node : ring.getNodes()) {
+			futures.add(scatter(node, (location) -> new Request.Builder().url(HttpUrl.parse(location + "/customers/search")
+					.newBuilder().addQueryParameter("q", query).addQueryParameter("limit", String.valueOf(limit)).build())
+					.get().build()));
+		}
+		List<JsonObject> hits = new ArrayList<>();
+		for (JsonArray nodeHits : gather(futures)) {
+			hits.addAll(nodeHits.getValuesAs(JsonObject.class));
+		}
+		hits.sort(Comparator.comparingDouble((JsonObject hit) -> hit.getJsonNumber(KEY_SCORE).doubleValue()).reversed()
+				.thenComparing((JsonObject hit) -> Long.valueOf(hit.getString(Customer.KEY_CUSTOMER_ID))));
+		return hits.size() > limit ? new ArrayList<>(hits.subList(0, limit)) : hits;
+	}
+
+	/**
+	 * Moves the customers to a new ring, typically with a node added. Tells every instance in
+	 * either ring about the new ring, and waits for the instances to move the customers they no
+	 * longer own to their new owners. This router switches to the new ring right away, falling back
+	 * to the old ring for the customers that have not been moved yet.
+	 * <p>
+	 * Other clients should be switched to the new ring once this returns.
+	 * 
+	 * @param newRing
+	 *            the ring to move to.
+	 */
+	public void rebalance(ConsistentHashRing newRing) throws IOException, InterruptedException {
+		ConsistentHashRing oldRing = ring;
+		List<String> allNodes = new ArrayList<>(newRing.getNodes());
+		oldRing.getNodes().stream().filter((node) -> !allNodes.contains(node)).forEach(allNodes::add);
+
+		previousRing = oldRing;
+		ring = newRing;
+		rebalancing = true;
+		try {
+			JsonArrayBuilder shards = Json.createArrayBuilder();
+			newRing.getNodes().forEach(shards::add);
+			String body = Json.createObjectBuilder().add(KEY_SHARDS, shards).build().toString();
+			List<CompletableFuture<JsonObject>> futures = new ArrayList<>();
+			for (String node : allNodes) {
+				futures.add(scatter(node, (location) -> new Request.Builder().url(location + "/customers/shards")
+						.post(RequestBody.create(JSON, body)).build()));
+			}
+			gather(futures);
+			while (true) {
+				futures.clear();
+				for (String node : allNodes) {
+					futures.add(scatter(node,
+							(location) -> new Request.Builder().url(location + "/customers/shards").get().build()));
+				}
+				boolean rebalancing = false;
+				for (JsonObject status : gather(futures)) {
+					rebalancing |= status.getBoolean(KEY_REBALANCING);
+				}
+				if (!rebalancing) {
+					break;
+				}
+				Thread.sleep(REBALANCE_POLL_INTERVAL);
+			}
+		} finally {
+			rebalancing = false;
+			previousRing = null;
+		}
+	}
+
+	/**
+	 * Fetches the current ring from the instances, unless that was done less than a second ago.
+	 * 
+	 * @return a future completed with true if the ring changed. Failures to fetch the ring leave the
+	 *         ring as it is.
+	 */
+	public CompletableFuture<Boolean> refreshRingIfStale() {
+		long last = lastRingRefresh.get();
+		long now = System.nanoTime();
+		if (now - last < RING_REFRESH_INTERVAL || !lastRingRefresh.compareAndSet(last, now)) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return refreshRing().exceptionally((t) -> {
+			System.err.println("Could not refresh the ring of customer service instances: " + t.getMessage());
+			return false;
+		});
+	}
+
+	/**
+	 * Fetches the current ring from the instances (GET /customers/shards), e.g. after the customers
+	 * have been rebalanced by someone else. The instances of the current ring are asked in turn,
+	 * until one answers. If the customers are still being moved, lookups fall back to the old ring.
+	 * 
+	 * @return a future completed with true if the ring changed.
+	 */
+	public CompletableFuture<Boolean> refreshRing() {
+		ConsistentHashRing current = ring;
+		return fetchStatus(current.getNodes(), 0).thenApply((status) -> adopt(current, status));
+	}
+
+	private CompletableFuture<JsonObject> fetchStatus(List<String> nodes, int index) {
+		CompletableFuture<JsonObject> status = scatter(nodes.get(index),
+				(location) -> new Request.Builder().url(location + "/customers/shards").get().build());
+		if (index + 1 == nodes.size()) {
+			return status;
+		}
+		return status.handle((result, t) -> t == null ? CompletableFuture.completedFuture(result)
+				: fetchStatus(nodes, index + 1)).thenCompose(Function.identity());
+	}
+
+	private synchronized boolean adopt(ConsistentHashRing current, JsonObject status) {
+		List<String> nodes = new ArrayList<>();
+		for (JsonString node : status.getJsonArray(KEY_SHARDS).getValuesAs(JsonString.class)) {
+			nodes.add(ConsistentHashRing.normalize(node.getString()));
+		}
+		// Not sharded, or we are the ones changing the ring
+		if (nodes.isEmpty() || rebalancing || ring != current) {
+			return false;
+		}
+		boolean moving = status.getBoolean(KEY_REBALANCING, false);
+		if (new HashSet<>(nodes).equals(new HashSet<>(current.getNodes()))) {
+			if (!moving) {
+				previousRing = null;
+			}
+			return false;
+		}
+		previousRing = moving ? current : null;
+		ring = new ConsistentHashRing(nodes, current.getVirtualNodes());
+		return true;
+	}
+
+	/*
+	 * Makes the call asynchronously, in the span active when scattering. The client limits the
+	 * number of calls in flight.
+	 */
+	private <T extends JsonValue> CompletableFuture<T> scatter(String location, Function<String, Request> requestFactory) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		httpClient.newCall(requestFactory.apply(location)).enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				future.completeExceptionally(e);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (ResponseBody body = checkSuccessful(response).body()) {
+					@SuppressWarnings("unchecked")
+					T result = (T) Json.createReader(new StringReader(body.string())).readValue();
+					future.complete(result);
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		});
+		return future;
+	}
+
+	private static <T> List<T> gather(List<CompletableFuture<T>> futures) throws IOException {
+		List<T> results = new ArrayList<>(futures.size());
+		for (CompletableFuture<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to call customer service", cause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while calling customer service", e);
+			}
+		}
+		return results;
+	}
+
+	private static Response checkSuccessful(Response response) throws IOException {
+		if (!response.isSuccessful()) {
+			String body = response.body() != null ? response.body().string() : "";
+			throw new IOException("Call to " + response.request().url() + " failed with status " + response.code()
+					+ (body.isEmpty() ? "" : ": " + body));
+		}
+		return response;
+	}
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.util.GlobalTracer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Guards the calls to a service with a bulkhead and a circuit breaker, so that a service that
+ * stalls or fails cannot tie up the caller.
+ * <p>
+ * The bulkhead limits the number of calls in flight (or waiting to be made) to the service - calls
+ * over the limit are rejected rather than queued. The circuit breaker keeps track of the outcome
+ * of the most recent calls, and opens when too many of them failed (or got a server error). While
+ * open, all calls are rejected right away. After a while, the breaker lets a few probe calls
+ * through (half-open), and closes again if they all succeed, or opens again if any fails.
+ * Rejected calls fail with a {@link CallRejectedException}.
+ * <p>
+ * A call counts as done when the response headers have been received. The calls should have
+ * timeouts, so that a stalled service shows up as failing calls.
+ * <p>
+ * The state of the breaker and the number of rejected calls are available as an MBean
+ * (se.hirt.examples.robotshop.common:type=CircuitBreaker,name=&lt;name&gt;).
+ * 
+ * @author Marcus Hirt
+ */
+public final class CircuitBreakerCallFactory implements Call.Factory, CircuitBreakerCallFactoryMXBean {
+	private final Call.Factory delegate;
+	private final String name;
+	private final int maxCallsInFlight;
+	private final double failureRateThreshold;
+	private final long openNanos;
+	private final int halfOpenProbes;
+	private final Semaphore bulkhead;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong failedCalls = new AtomicLong();
+	private final AtomicLong shortCircuitedCalls = new AtomicLong();
+	private final AtomicLong bulkheadRejectedCalls = new AtomicLong();
+
+	// Guarded by this
+	private State state = State.CLOSED;
+	// Changes with the state, so that calls made before do not count
+	private long generation;
+	private long openedAt;
+	private long timesOpened;
+	private int probesInFlight;
+	private int succeededProbes;
+	// The outcomes of the most recent calls while closed, true for failed
+	private final boolean[] outcomes;
+	private int nextOutcome;
+	private int numberOfOutcomes;
+	private int numberOfFailures;
+
+	private enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The right to make one call.
+	 */
+	private final class Permit {
+		private final long generation;
+		private final boolean probe;
+
+		Permit(long generation, boolean probe) {
+			this.generation = generation;
+			this.probe = probe;
+		}
+
+		void release(boolean failed) {
+			bulkhead.release();
+			if (failed) {
+				failedCalls.incrementAndGet();
+			}
+			record(this, failed);
+		}
+	}
+
+	private final class GuardedCall implements Call {
+		private final Request request;
+		private final Span parent;
+		private final AtomicBoolean executed = new AtomicBoolean();
+		private volatile Call delegateCall;
+		private volatile boolean canceled;
+
+		GuardedCall(Request request, Span parent) {
+			this.request = request;
+			this.parent = parent;
+		}
+
+		@Override
+		public Request request() {
+			return request;
+		}
+
+		@Override
+		public Response execute() throws IOException {
+			markExecuted();
+			Permit permit = acquire();
+			Response response;
+			try {
+				response = newDelegateCall().execute();
+			} catch (IOException | RuntimeException e) {
+				permit.release(true);
+				throw e;
+			}
+			permit.release(isServerError(response));
+			return response;
+		}
+
+		@Override
+		public void enqueue(Callback callback) {
+			markExecuted();
+			Permit permit;
+			try {
+				permit = acquire();
+			} catch (CallRejectedException e) {
+				callback.onFailure(this, e);
+				return;
+			}
+			// The delegate may fail to enqueue (e.g. a rejecting executor) - only one of the delegate
+			// callback and the failure to enqueue may release the permit and complete the call
+			AtomicBoolean completed = new AtomicBoolean();
+			try {
+				newDelegateCall().enqueue(new Callback() {
+					@Override
+					public void onFailure(Call call, IOException e) {
+						completed.set(true);
+						permit.release(true);
+						callback.onFailure(GuardedCall.this, e);
+					}
+
+					@Override
+					public void onResponse(Call call, Response response) throws IOException {
+						completed.set(true);
+						permit.release(isServerError(response));
+						callback.onResponse(GuardedCall.this, response);
+					}
+				});
+			} catch (RuntimeException e) {
+				if (!completed.compareAndSet(false, true)) {
+					throw e;
+				}
+				permit.release(true);
+				callback.onFailure(this, new IOException("Failed to enqueue call to " + request.url(), e));
+			}
+		}
+
+		@Override
+		public void cancel() {
+			canceled = true;
+			Call call = delegateCall;
+			if (call != null) {
+				call.cancel();
+			}
+		}
+
+		@Override
+		public boolean isExecuted() {
+			return executed.get();
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public Call clone() {
+			return new GuardedCall(request, parent);
+		}
+
+		private void markExecuted() {
+			if (!executed.compareAndSet(false, true)) {
+				throw new IllegalStateException("Already Executed");
+			}
+		}
+
+		private Call newDelegateCall() {
+			try (Scope scope = parent != null ? GlobalTracer.get().scopeManager().activate(parent, false) : null) {
+				delegateCall = delegate.newCall(request);
+			}
+			if (canceled) {
+				delegateCall.cancel();
+			}
+			return delegateCall;
+		}
+	}
+
+	/**
+	 * @param delegate
+	 *            the factory making the actual calls.
+	 * @param name
+	 *            the name of the service called, also used for the MBean.
+	 * @param maxCallsInFlight
+	 *            the maximum number of calls in flight, or waiting to be made.
+	 * @param windowSize
+	 *            the number of recent calls to compute the failure rate over.
+	 * @param failureRateThreshold
+	 *            the fraction of the recent calls that must fail for the breaker to open, or 0 to
+	 *            never open it.
+	 * @param openMillis
+	 *            the number of milliseconds to keep the breaker open before probing.
+	 * @param halfOpenProbes
+	 *            the number of probe calls that must succeed for the breaker to close.
+	 */
+	public CircuitBreakerCallFactory(Call.Factory delegate, String name, int maxCallsInFlight, int windowSize,
+			double failureRateThreshold, long openMillis, int halfOpenProbes) {
+		this.delegate = delegate;
+		this.name = name;
+		this.maxCallsInFlight = maxCallsInFlight;
+		this.failureRateThreshold = failureRateThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.halfOpenProbes = halfOpenProbes;
+		this.bulkhead = new Semaphore(maxCallsInFlight);
+		this.outcomes = new boolean[windowSize];
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(
+					"se.hirt.examples.robotshop.common:type=CircuitBreaker,name=" + ObjectName.quote(name)));
+		} catch (JMException e) {
+			System.err.println("Could not register the circuit breaker MBean " + name + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Call newCall(Request request) {
+		return new GuardedCall(request, GlobalTracer.get().activeSpan());
+	}
+
+	private Permit acquire() throws CallRejectedException {
+		Permit permit;
+		synchronized (this) {
+			if (state == State.OPEN) {
+				if (System.nanoTime() - openedAt < openNanos) {
+					shortCircuitedCalls.incrementAndGet();
+					throw new CallRejectedException("Circuit breaker for " + name + " is open");
+				}
+				changeState(State.HALF_OPEN);
+			}
+			if (state == State.HALF_OPEN) {
+				if (probesInFlight + succeededProbes >= halfOpenProbes) {
+					shortCircuitedCalls.incrementAndGet();
+					throw new CallRejectedException("Circuit breaker for " + name + " is probing");
+				}
+				probesInFlight++;
+			}
+			permit = new Permit(generation, state == State.HALF_OPEN);
+		}
+		if (!bulkhead.tryAcquire()) {
+			bulkheadRejectedCalls.incrementAndGet();
+			synchronized (this) {
+				if (permit.probe && permit.generation == generation) {
+					probesInFlight--;
+				}
+			}
+			throw new CallRejectedException("Too many calls in flight to " + name);
+		}
+		calls.incrementAndGet();
+		return permit;
+	}
+
+	private synchronized void record(Permit permit, boolean failed) {
+		if (permit.generation != generation) {
+			return;
+		}
+		if (state == State.HALF_OPEN) {
+			probesInFlight--;
+			if (failed) {
+				changeState(State.OPEN);
+			} else if (++succeededProbes >= halfOpenProbes) {
+				changeState(State.CLOSED);
+			}
+		} else if (state == State.CLOSED && failureRateThreshold > 0) {
+			if (numberOfOutcomes == outcomes.length) {
+				if (outcomes[nextOutcome]) {
+					numberOfFailures--;
+				}
+			} else {
+				numberOfOutcomes++;
+			}
+			outcomes[nextOutcome] = failed;
+			nextOutcome = (nextOutcome + 1) % outcomes.length;
+			if (failed) {
+				numberOfFailures++;
+			}
+			// Only judge the service on a full window of calls
+			if (numberOfOutcomes == outcomes.length && numberOfFailures >= failureRateThreshold * numberOfOutcomes) {
+				changeState(State.OPEN);
+			}
+		}
+	}
+
+	private void changeState(State newState) {
+		if (newState == State.OPEN) {
+			openedAt = System.nanoTime();
+			timesOpened++;
+			System.err.println("Circuit breaker for " + name + " opened");
+		} else if (newState == State.CLOSED) {
+			System.out.println("Circuit breaker for " + name + " closed");
+		}
+		state = newState;
+		generation++;
+		probesInFlight = 0;
+		succeededProbes = 0;
+		nextOutcome = 0;
+		numberOfOutcomes = 0;
+		numberOfFailures = 0;
+	}
+
+	private static boolean isServerError(Response response) {
+		return response.code() >= 500;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public synchronized String getState() {
+		return state.name();
+	}
+
+	@Override
+	public synchronized long getTimesOpened() {
+		return timesOpened;
+	}
+
+	@Override
+	public synchronized double getFailureRate() {
+		return numberOfOutcomes == 0 ? 0 : numberOfFailures / (double) numberOfOutcomes;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public long getFailedCalls() {
+		return failedCalls.get();
+	}
+
+	@Override
+	public long getShortCircuitedCalls() {
+		return shortCircuitedCalls.get();
+	}
+
+	@Override
+	public long getBulkheadRejectedCalls() {
+		return bulkheadRejectedCalls.get();
+	}
+
+	@Override
+	public int getCallsInFlight() {
+		return maxCallsInFlight - bulkhead.availablePermits();
+	}
+
+	@Override
+	public int getMaxCallsInFlight() {
+		return maxCallsInFlight;
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + getState() + ", " + calls.get() + " calls, " + shortCircuitedCalls.get()
+				+ " short circuited, " + bulkheadRejectedCalls.get() + " rejected by the bulkhead";
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+/**
+ * Management interface of a {@link CircuitBreakerCallFactory}, e.g. for following the state of
+ * the circuit breaker in JMC.
+ * 
+ * @author Marcus Hirt
+ */
+public interface CircuitBreakerCallFactoryMXBean {
+	/**
+	 * @return the name of the service called.
+	 */
+	String getName();
+
+	/**
+	 * @return the state of the circuit breaker - CLOSED, OPEN or HALF_OPEN.
+	 */
+	String getState();
+
+	/**
+	 * @return the number of times the circuit breaker has opened.
+	 */
+	long getTimesOpened();
+
+	/**
+	 * @return the fraction of the recent calls that failed, between 0 and 1.
+	 */
+	double getFailureRate();
+
+	/**
+	 * @return the number of calls made.
+	 */
+	long getCalls();
+
+	/**
+	 * @return the number of calls that failed, or got a server error.
+	 */
+	long getFailedCalls();
+
+	/**
+	 * @return the number of calls rejected since the circuit breaker was open.
+	 */
+	long getShortCircuitedCalls();
+
+	/**
+	 * @return the number of calls rejected since there already were too many calls in flight.
+	 */
+	long getBulkheadRejectedCalls();
+
+	/**
+	 * @return the number of calls in flight, or waiting to be made.
+	 */
+	int getCallsInFlight();
+
+	/**
+	 * @return the maximum number of calls in flight, or waiting to be made.
+	 */
+	int getMaxCallsInFlight();
+}
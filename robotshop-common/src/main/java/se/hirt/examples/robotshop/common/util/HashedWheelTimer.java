@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A timer for large numbers of short tasks with coarse deadlines, like timeouts and retries.
+ * <p>
+ * The timeouts are kept in a wheel of buckets, each covering one tick. Scheduling and cancelling
+ * a timeout is O(1) - no matter how many timeouts are pending - which is not the case for the
+ * priority queue of a {@link java.util.concurrent.ScheduledThreadPoolExecutor}. In return, tasks
+ * run up to one tick late. A timeout further away than one turn of the wheel stays in its bucket
+ * for the remaining turns.
+ * <p>
+ * All the tasks run on the single timer thread, so they must be quick - hand off anything that
+ * may block.
+ * 
+ * @author Marcus Hirt
+ */
+public final class HashedWheelTimer {
+	private final static AtomicInteger COUNT = new AtomicInteger();
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+	private final AtomicLong pending = new AtomicLong();
+	private final Thread worker;
+	private final long startTime;
+
+	private volatile boolean stopped;
+	// Only accessed by the worker
+	private long tick;
+
+	/**
+	 * A task scheduled in the timer.
+	 */
+	public final static class Timeout {
+		private final static int STATE_PENDING = 0;
+		private final static int STATE_CANCELLED = 1;
+		private final static int STATE_EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+
+		// Only accessed by the worker
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout previous;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, unless it has already run.
+		 * 
+		 * @return true if the task was cancelled, false if it has already run or been cancelled.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_CANCELLED)) {
+				return false;
+			}
+			timer.pending.decrementAndGet();
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task has been cancelled.
+		 */
+		public boolean isCancelled() {
+			return state.get() == STATE_CANCELLED;
+		}
+
+		/**
+		 * @return true if the task has run (or is running).
+		 */
+		public boolean isExpired() {
+			return state.get() == STATE_EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(STATE_PENDING, STATE_EXPIRED)) {
+				return;
+			}
+			timer.pending.decrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				System.err.println("Timer task " + task + " failed: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The timeouts of one tick of the wheel, as a doubly linked list. Only accessed by the worker.
+	 */
+	private final static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			} else {
+				tail = timeout.previous;
+			}
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.previous = null;
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Creates and starts a timer.
+	 * 
+	 * @param name
+	 *            the name of the timer thread.
+	 * @param tickMillis
+	 *            the duration of a tick, i.e. the precision of the timer.
+	 * @param ticksPerWheel
+	 *            the number of buckets in the wheel, rounded up to a power of two. Timeouts further
+	 *            away than this many ticks cost an extra check per turn of the wheel.
+	 */
+	public HashedWheelTimer(String name, long tickMillis, int ticksPerWheel) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("tickMillis must be positive, was " + tickMillis);
+		}
+		if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+			throw new IllegalArgumentException("ticksPerWheel must be in [1, 2^30], was " + ticksPerWheel);
+		}
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		startTime = System.nanoTime();
+		worker = new Thread(this::run, name + " " + COUNT.getAndIncrement());
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a task to run once, after the delay.
+	 * 
+	 * @param task
+	 *            the task to run on the timer thread.
+	 * @param delay
+	 *            the minimum delay before the task is run.
+	 * @param unit
+	 *            the unit of the delay.
+	 * @return the timeout, which can be used to cancel the task.
+	 * @throws IllegalStateException
+	 *             if the timer has been stopped.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		if (stopped) {
+			throw new IllegalStateException("The timer " + worker.getName() + " has been stopped");
+		}
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay)));
+		pending.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of tasks scheduled that have not yet run or been cancelled.
+	 */
+	public long getPendingTimeouts() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the timer. Pending tasks will not be run.
+	 */
+	public void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+	private void run() {
+		while (!stopped) {
+			long deadline = waitForNextTick();
+			if (deadline < 0) {
+				break;
+			}
+			removeCancelled();
+			addScheduled();
+			wheel[(int) (tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private long waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos <= 0) {
+				return deadline;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				if (stopped) {
+					return -1;
+				}
+			}
+		}
+	}
+
+	private void addScheduled() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			long ticks = timeout.deadline / tickNanos;
+			// Already due ones go in the current bucket
+			long bucketTick = Math.max(ticks, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int) (bucketTick & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+}
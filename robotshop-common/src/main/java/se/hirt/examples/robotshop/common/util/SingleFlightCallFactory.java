@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.util.GlobalTracer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Collapses concurrent identical GET requests into one call. The first request for a URL (with
+ * the same headers) makes the call, and any identical requests made before it completes share its
+ * response, rather than making calls of their own. Other methods, and GETs with Cache-Control:
+ * no-cache, always make calls of their own.
+ * <p>
+ * Since the response is shared, its body is read into memory - do not use this for streaming
+ * responses. The callbacks of collapsed asynchronous calls are run on the thread completing the
+ * shared call. The span of the shared call is a child of the span active when the first request
+ * was created.
+ * <p>
+ * The number of calls made and collapsed are available as an MBean
+ * (se.hirt.examples.robotshop.common:type=SingleFlight,name=&lt;name&gt;).
+ * 
+ * @author Marcus Hirt
+ */
+public final class SingleFlightCallFactory implements Call.Factory, SingleFlightCallFactoryMXBean {
+	private final Call.Factory delegate;
+	private final String name;
+	private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong collapsedCalls = new AtomicLong();
+
+	/**
+	 * A call in flight, and the requests waiting for it.
+	 */
+	private final static class Flight extends CompletableFuture<SharedResponse> {
+	}
+
+	/**
+	 * A response with the body read, so that it can be handed to all waiting.
+	 */
+	private final static class SharedResponse {
+		private final Response response;
+		private final MediaType contentType;
+		private final byte[] body;
+
+		SharedResponse(Response response, MediaType contentType, byte[] body) {
+			this.response = response;
+			this.contentType = contentType;
+			this.body = body;
+		}
+
+		Response copyFor(Request request) {
+			return response.newBuilder().request(request).body(ResponseBody.create(contentType, body)).build();
+		}
+	}
+
+	private final class SingleFlightCall implements Call {
+		private final Request request;
+		private final Span parent;
+		private final AtomicBoolean executed = new AtomicBoolean();
+		private volatile boolean canceled;
+
+		SingleFlightCall(Request request, Span parent) {
+			this.request = request;
+			this.parent = parent;
+		}
+
+		@Override
+		public Request request() {
+			return request;
+		}
+
+		@Override
+		public Response execute() throws IOException {
+			markExecuted();
+			String key = keyOf(request);
+			Flight flight = new Flight();
+			Flight existing = flights.putIfAbsent(key, flight);
+			if (existing == null) {
+				calls.incrementAndGet();
+				try {
+					land(key, flight, newDelegateCall().execute());
+				} catch (IOException | RuntimeException e) {
+					crash(key, flight, e);
+				}
+			} else {
+				collapsedCalls.incrementAndGet();
+				flight = existing;
+			}
+			try {
+				return flight.get().copyFor(request);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + request.url());
+			} catch (ExecutionException e) {
+				throw asIOException(e.getCause());
+			}
+		}
+
+		@Override
+		public void enqueue(Callback callback) {
+			markExecuted();
+			String key = keyOf(request);
+			Flight flight = new Flight();
+			Flight existing = flights.putIfAbsent(key, flight);
+			if (existing == null) {
+				calls.incrementAndGet();
+				Flight leader = flight;
+				newDelegateCall().enqueue(new Callback() {
+					@Override
+					public void onFailure(Call call, IOException e) {
+						crash(key, leader, e);
+					}
+
+					@Override
+					public void onResponse(Call call, Response response) {
+						land(key, leader, response);
+					}
+				});
+			} else {
+				collapsedCalls.incrementAndGet();
+				flight = existing;
+			}
+			flight.whenComplete((shared, t) -> {
+				if (canceled) {
+					callback.onFailure(this, new IOException("Canceled"));
+				} else if (t != null) {
+					callback.onFailure(this, asIOException(t));
+				} else {
+					try {
+						callback.onResponse(this, shared.copyFor(request));
+					} catch (IOException e) {
+						callback.onFailure(this, e);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Only this request stops waiting - the shared call may be needed by others.
+		 */
+		@Override
+		public void cancel() {
+			canceled = true;
+		}
+
+		@Override
+		public boolean isExecuted() {
+			return executed.get();
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public Call clone() {
+			return new SingleFlightCall(request, parent);
+		}
+
+		private void markExecuted() {
+			if (!executed.compareAndSet(false, true)) {
+				throw new IllegalStateException("Already Executed");
+			}
+		}
+
+		private Call newDelegateCall() {
+			try (Scope scope = parent != null ? GlobalTracer.get().scopeManager().activate(parent, false) : null) {
+				return delegate.newCall(request);
+			}
+		}
+	}
+
+	/**
+	 * @param delegate
+	 *            the factory making the actual calls.
+	 * @param name
+	 *            the name of the MBean with the statistics.
+	 */
+	public SingleFlightCallFactory(Call.Factory delegate, String name) {
+		this.delegate = delegate;
+		this.name = name;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(
+					"se.hirt.examples.robotshop.common:type=SingleFlight,name=" + ObjectName.quote(name)));
+		} catch (JMException e) {
+			System.err.println("Could not register the single flight MBean " + name + ": " + e.getMessage());
+		}
+	}
+
+	@Override
+	public Call newCall(Request request) {
+		if (!"GET".equals(request.method()) || "no-cache".equals(request.header("Cache-Control"))) {
+			return delegate.newCall(request);
+		}
+		return new SingleFlightCall(request, GlobalTracer.get().activeSpan());
+	}
+
+	private void land(String key, Flight flight, Response response) {
+		SharedResponse shared;
+		try (ResponseBody body = response.body()) {
+			shared = new SharedResponse(response.newBuilder().body(null).build(), body.contentType(), body.bytes());
+		} catch (IOException | RuntimeException e) {
+			crash(key, flight, e);
+			return;
+		}
+		// Requests made from now on make a new call
+		flights.remove(key, flight);
+		flight.complete(shared);
+	}
+
+	private void crash(String key, Flight flight, Exception e) {
+		flights.remove(key, flight);
+		flight.completeExceptionally(e);
+	}
+
+	private static String keyOf(Request request) {
+		return request.url() + "\n" + request.headers();
+	}
+
+	private static IOException asIOException(Throwable t) {
+		if (t instanceof IOException) {
+			return (IOException) t;
+		}
+		return new IOException(t);
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCalls() {
+		return calls.get();
+	}
+
+	@Override
+	public long getCollapsedCalls() {
+		return collapsedCalls.get();
+	}
+
+	@Override
+	public int getCallsInFlight() {
+		return flights.size();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + calls.get() + " calls, " + collapsedCalls.get() + " collapsed";
+	}
+}
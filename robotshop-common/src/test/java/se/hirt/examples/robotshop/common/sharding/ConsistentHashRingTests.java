@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.sharding;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the placement of the customers on the {@link ConsistentHashRing}.
+ */
+public class ConsistentHashRingTests extends TestCase {
+	private final static String NODE_A = "http://a:8081";
+	private final static String NODE_B = "http://b:8081";
+	private final static String NODE_C = "http://c:8081";
+	private final static String NODE_D = "http://d:8081";
+	private final static int NUMBER_OF_IDS = 100000;
+
+	public ConsistentHashRingTests(String testName) {
+		super(testName);
+	}
+
+	public void testSingleNodeOwnsAll() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A));
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(NODE_A, ring.getNode(customerId(i)));
+		}
+	}
+
+	public void testPlacementIgnoresNodeOrder() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A, NODE_B, NODE_C));
+		ConsistentHashRing reversed = new ConsistentHashRing(Arrays.asList(NODE_C, NODE_B, NODE_A));
+		for (int i = 0; i < NUMBER_OF_IDS; i++) {
+			assertEquals(ring.getNode(customerId(i)), reversed.getNode(customerId(i)));
+		}
+	}
+
+	public void testPlacementIsBalanced() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A, NODE_B, NODE_C, NODE_D));
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < NUMBER_OF_IDS; i++) {
+			counts.merge(ring.getNode(customerId(i)), 1, Integer::sum);
+		}
+		assertEquals(4, counts.size());
+		for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+			double share = entry.getValue() / (double) NUMBER_OF_IDS;
+			assertTrue(entry.getKey() + " owns " + share, share > 0.15 && share < 0.35);
+		}
+	}
+
+	public void testAddingNodeOnlyMovesCustomersToIt() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A, NODE_B, NODE_C));
+		ConsistentHashRing grown = ring.withNode(NODE_D);
+		int moved = 0;
+		for (int i = 0; i < NUMBER_OF_IDS; i++) {
+			long id = customerId(i);
+			if (!ring.getNode(id).equals(grown.getNode(id))) {
+				assertEquals(NODE_D, grown.getNode(id));
+				moved++;
+			}
+		}
+		double share = moved / (double) NUMBER_OF_IDS;
+		assertTrue("Moved " + share, share > 0.15 && share < 0.35);
+	}
+
+	public void testRemovingNodeOnlyMovesItsCustomers() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A, NODE_B, NODE_C, NODE_D));
+		ConsistentHashRing shrunk = new ConsistentHashRing(Arrays.asList(NODE_A, NODE_B, NODE_D));
+		for (int i = 0; i < NUMBER_OF_IDS; i++) {
+			long id = customerId(i);
+			if (ring.getNode(id).equals(NODE_C)) {
+				assertFalse(NODE_C.equals(shrunk.getNode(id)));
+			} else {
+				assertEquals(ring.getNode(id), shrunk.getNode(id));
+			}
+		}
+	}
+
+	public void testWithNode() {
+		ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(NODE_A), 16);
+		ConsistentHashRing grown = ring.withNode(" " + NODE_B + "/");
+		assertEquals(Arrays.asList(NODE_A, NODE_B), grown.getNodes());
+		assertEquals(16, grown.getVirtualNodes());
+		assertEquals(grown.getNodes(), grown.withNode(NODE_B).getNodes());
+	}
+
+	public void testParse() {
+		ConsistentHashRing ring = ConsistentHashRing.parse(" " + NODE_A + "/ ," + NODE_B + ",, " + NODE_A);
+		assertEquals(Arrays.asList(NODE_A, NODE_B), ring.getNodes());
+		assertEquals(ConsistentHashRing.DEFAULT_VIRTUAL_NODES, ring.getVirtualNodes());
+		assertEquals(NODE_A + "," + NODE_B, ring.toString());
+	}
+
+	public void testParseWithoutNodes() {
+		try {
+			ConsistentHashRing.parse(" , ");
+			fail("Parsed a ring without nodes");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testNormalize() {
+		assertEquals(NODE_A, ConsistentHashRing.normalize(NODE_A));
+		assertEquals(NODE_A, ConsistentHashRing.normalize("  " + NODE_A + "//\t"));
+		assertEquals("", ConsistentHashRing.normalize(" / "));
+	}
+
+	public void testNeedsVirtualNodes() {
+		try {
+			new ConsistentHashRing(Arrays.asList(NODE_A), 0);
+			fail("Created a ring without virtual nodes");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/*
+	 * Ids like the ones allocated by the customer service - time, node and sequence.
+	 */
+	private static long customerId(int i) {
+		return ((1_500_000_000_000L + i / 16) << 22) | ((i % 3) << 12) | (i % 16);
+	}
+}
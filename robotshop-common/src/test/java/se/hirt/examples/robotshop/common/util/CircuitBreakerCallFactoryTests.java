@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+import se.hirt.examples.robotshop.common.util.StubCallFactory.StubCall;
+
+/**
+ * Tests the state changes of the {@link CircuitBreakerCallFactory}, and its bulkhead.
+ */
+public class CircuitBreakerCallFactoryTests extends TestCase {
+	private final static String URL = "http://factory/factory/pickup";
+	private final static int WINDOW_SIZE = 4;
+	private final static double FAILURE_RATE = 0.5;
+	private final static long OPEN_MILLIS = 100;
+	private final static int PROBES = 2;
+	private final static long MAX_WAIT_MILLIS = 5000;
+
+	private StubCallFactory stub;
+	private CircuitBreakerCallFactory breaker;
+
+	public CircuitBreakerCallFactoryTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * Records the outcome of an enqueued call.
+	 */
+	private final static class RecordingCallback implements Callback {
+		private final CompletableFuture<Integer> code = new CompletableFuture<>();
+
+		@Override
+		public void onFailure(Call call, IOException e) {
+			code.completeExceptionally(e);
+		}
+
+		@Override
+		public void onResponse(Call call, Response response) {
+			response.close();
+			code.complete(response.code());
+		}
+
+		int awaitCode() throws Exception {
+			return code.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		IOException awaitFailure() throws Exception {
+			try {
+				code.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				fail("Expected the call to fail");
+				return null;
+			} catch (ExecutionException e) {
+				return (IOException) e.getCause();
+			}
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		stub = new StubCallFactory();
+		breaker = newBreaker(10);
+	}
+
+	public void testStaysClosedUntilWindowIsFull() throws Exception {
+		call(500);
+		call(500);
+		call(500);
+		// Three out of three failed, but that is not yet a full window
+		assertEquals("CLOSED", breaker.getState());
+		assertEquals(3, breaker.getFailedCalls());
+	}
+
+	public void testOpensAtThreshold() throws Exception {
+		call(500);
+		call(200);
+		call(200);
+		assertEquals("CLOSED", breaker.getState());
+		failCall();
+		// Two out of four - exactly the threshold
+		assertEquals("OPEN", breaker.getState());
+		assertEquals(1, breaker.getTimesOpened());
+
+		int callsMade = stub.getCallCount();
+		assertTrue(rejectedCall() instanceof CallRejectedException);
+		assertEquals(callsMade, stub.getCallCount());
+		assertEquals(1, breaker.getShortCircuitedCalls());
+	}
+
+	public void testStaysClosedBelowThreshold() throws Exception {
+		call(500);
+		for (int i = 0; i < 10; i++) {
+			call(200);
+		}
+		// Client errors are the caller's fault, not the service's
+		call(404);
+		call(404);
+		assertEquals("CLOSED", breaker.getState());
+		assertEquals(0, breaker.getFailureRate(), 0.0);
+	}
+
+	public void testFailuresRollOutOfWindow() throws Exception {
+		call(500);
+		call(200);
+		call(200);
+		call(200);
+		// The first failure rolls out, so this is still one out of four
+		call(500);
+		assertEquals("CLOSED", breaker.getState());
+		assertEquals(0.25, breaker.getFailureRate(), 0.0);
+	}
+
+	public void testHalfOpenAfterOpenTime() throws Exception {
+		open();
+		assertTrue(rejectedCall() instanceof CallRejectedException);
+		Thread.sleep(OPEN_MILLIS + 20);
+
+		// Lets the probes through, but no more than that
+		int firstProbeCall = stub.getCallCount();
+		RecordingCallback firstProbe = enqueue();
+		RecordingCallback secondProbe = enqueue();
+		assertEquals("HALF_OPEN", breaker.getState());
+		IOException rejected = rejectedCall();
+		assertTrue(rejected instanceof CallRejectedException);
+		assertTrue(rejected.getMessage().contains("probing"));
+
+		respond(firstProbeCall, 200);
+		assertEquals(200, firstProbe.awaitCode());
+		assertEquals("HALF_OPEN", breaker.getState());
+		respond(firstProbeCall + 1, 200);
+		assertEquals(200, secondProbe.awaitCode());
+	}
+
+	public void testSucceededProbesClose() throws Exception {
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		call(200);
+		assertEquals("HALF_OPEN", breaker.getState());
+		call(200);
+		assertEquals("CLOSED", breaker.getState());
+
+		// And judges the service on a fresh window
+		call(500);
+		call(500);
+		call(500);
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	public void testFailedProbeReopens() throws Exception {
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		call(200);
+		call(503);
+		assertEquals("OPEN", breaker.getState());
+		assertEquals(2, breaker.getTimesOpened());
+		assertTrue(rejectedCall() instanceof CallRejectedException);
+	}
+
+	public void testBulkheadRejects() throws Exception {
+		breaker = newBreaker(2);
+		RecordingCallback first = enqueue();
+		RecordingCallback second = enqueue();
+		assertEquals(2, breaker.getCallsInFlight());
+
+		int callsMade = stub.getCallCount();
+		IOException rejected = rejectedCall();
+		assertTrue(rejected instanceof CallRejectedException);
+		assertTrue(rejected.getMessage().contains("Too many calls"));
+		assertEquals(callsMade, stub.getCallCount());
+		assertEquals(1, breaker.getBulkheadRejectedCalls());
+
+		// Frees a permit
+		respond(0, 200);
+		assertEquals(200, first.awaitCode());
+		assertEquals(1, breaker.getCallsInFlight());
+		RecordingCallback third = enqueue();
+		respond(1, 200);
+		respond(2, 200);
+		assertEquals(200, second.awaitCode());
+		assertEquals(200, third.awaitCode());
+		assertEquals(0, breaker.getCallsInFlight());
+		// Rejections by the bulkhead are not failures of the service
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	public void testBulkheadRejectionReturnsProbe() throws Exception {
+		breaker = newBreaker(1);
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		RecordingCallback probe = enqueue();
+		// Rejected by the bulkhead, which must not use up the second probe
+		assertTrue(rejectedCall().getMessage().contains("Too many calls"));
+		respond(stub.getCallCount() - 1, 200);
+		assertEquals(200, probe.awaitCode());
+		call(200);
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	public void testIgnoresCallsFromEarlierStates() throws Exception {
+		// A slow call made while closed
+		RecordingCallback slow = enqueue();
+		int slowCall = stub.getCallCount() - 1;
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		RecordingCallback probe = enqueue();
+		int probeCall = stub.getCallCount() - 1;
+
+		// The slow call failing says nothing about the probe
+		stub.awaitCall(slowCall).fail(new IOException("Read timed out"));
+		assertEquals("Read timed out", slow.awaitFailure().getMessage());
+		assertEquals("HALF_OPEN", breaker.getState());
+
+		respond(probeCall, 200);
+		assertEquals(200, probe.awaitCode());
+		call(200);
+		assertEquals("CLOSED", breaker.getState());
+	}
+
+	public void testStaleSuccessIsNotAProbe() throws Exception {
+		RecordingCallback slow = enqueue();
+		int slowCall = stub.getCallCount() - 1;
+		open();
+		Thread.sleep(OPEN_MILLIS + 20);
+		call(200);
+
+		// Would close the breaker, if it counted as the second probe
+		respond(slowCall, 200);
+		assertEquals(200, slow.awaitCode());
+		assertEquals("HALF_OPEN", breaker.getState());
+	}
+
+	public void testExecuteIsGuarded() throws Exception {
+		open();
+		Call call = breaker.newCall(StubCallFactory.get(URL));
+		try {
+			call.execute();
+			fail("Should be rejected while open");
+		} catch (CallRejectedException e) {
+			// Expected
+		}
+		Thread.sleep(OPEN_MILLIS + 20);
+		int probeCall = stub.getCallCount();
+		CompletableFuture<Integer> code = CompletableFuture.supplyAsync(() -> {
+			try (Response response = breaker.newCall(StubCallFactory.get(URL)).execute()) {
+				return response.code();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}, runnable -> new Thread(runnable, "Caller").start());
+		respond(probeCall, 200);
+		assertEquals(200, code.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+		assertEquals("HALF_OPEN", breaker.getState());
+	}
+
+	public void testCancelReachesDelegate() throws Exception {
+		Call call = breaker.newCall(StubCallFactory.get(URL));
+		RecordingCallback callback = new RecordingCallback();
+		call.enqueue(callback);
+		call.cancel();
+		assertTrue(stub.awaitCall(0).isCanceled());
+		assertEquals("Canceled", callback.awaitFailure().getMessage());
+		assertEquals(0, breaker.getCallsInFlight());
+	}
+
+	public void testFailedEnqueueReleasesPermit() throws Exception {
+		breaker = newBreaker(1);
+		stub.failEnqueues(new RejectedExecutionException("Dispatcher shut down"));
+		IOException failure = enqueue().awaitFailure();
+		assertTrue(failure.getCause() instanceof RejectedExecutionException);
+		assertEquals(0, breaker.getCallsInFlight());
+		assertEquals(1, breaker.getFailedCalls());
+
+		// Would be rejected by the bulkhead, had the permit leaked
+		stub.failEnqueues(null);
+		call(200);
+		assertEquals(0, breaker.getBulkheadRejectedCalls());
+	}
+
+	private CircuitBreakerCallFactory newBreaker(int maxCallsInFlight) {
+		return new CircuitBreakerCallFactory(stub, getName() + " " + maxCallsInFlight, maxCallsInFlight,
+				WINDOW_SIZE, FAILURE_RATE, OPEN_MILLIS, PROBES);
+	}
+
+	/*
+	 * Opens the breaker with a window of failed calls.
+	 */
+	private void open() throws Exception {
+		for (int i = 0; i < WINDOW_SIZE; i++) {
+			call(500);
+		}
+		assertEquals("OPEN", breaker.getState());
+	}
+
+	/*
+	 * Makes a call that completes with the given status code.
+	 */
+	private void call(int code) throws Exception {
+		RecordingCallback callback = enqueue();
+		respond(stub.getCallCount() - 1, code);
+		assertEquals(code, callback.awaitCode());
+	}
+
+	/*
+	 * Makes a call that fails with an IOException.
+	 */
+	private void failCall() throws Exception {
+		RecordingCallback callback = enqueue();
+		stub.awaitCall(stub.getCallCount() - 1).fail(new IOException("Connection refused"));
+		callback.awaitFailure();
+	}
+
+	private IOException rejectedCall() throws Exception {
+		return enqueue().awaitFailure();
+	}
+
+	private RecordingCallback enqueue() {
+		RecordingCallback callback = new RecordingCallback();
+		breaker.newCall(StubCallFactory.get(URL)).enqueue(callback);
+		return callback;
+	}
+
+	private void respond(int index, int code) throws InterruptedException {
+		stub.awaitCall(index).respond(code, "");
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the scheduling and cancelling of tasks in the {@link HashedWheelTimer}.
+ */
+public class HashedWheelTimerTests extends TestCase {
+	private final static long TICK_MILLIS = 10;
+	// Generous, since the tests may run on a busy machine
+	private final static long MAX_WAIT_MILLIS = 5000;
+
+	private HashedWheelTimer timer;
+
+	public HashedWheelTimerTests(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected void setUp() {
+		// A small wheel, so that the deadlines in the tests span several rounds
+		timer = new HashedWheelTimer("Test Timer", TICK_MILLIS, 8);
+	}
+
+	@Override
+	protected void tearDown() {
+		timer.stop();
+	}
+
+	public void testRunsNoEarlierThanDelay() throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		AtomicLong ranAt = new AtomicLong();
+		long start = System.nanoTime();
+		HashedWheelTimer.Timeout timeout = timer.schedule(() -> {
+			ranAt.set(System.nanoTime());
+			ran.countDown();
+		}, 50, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start) >= 50);
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.isCancelled());
+	}
+
+	public void testRunsInDeadlineOrder() throws InterruptedException {
+		List<Long> delays = Arrays.asList(120L, 30L, 90L, 0L, 60L, 150L);
+		List<Long> order = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch ran = new CountDownLatch(delays.size());
+		for (long delay : delays) {
+			timer.schedule(() -> {
+				order.add(delay);
+				ran.countDown();
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList(0L, 30L, 60L, 90L, 120L, 150L), order);
+	}
+
+	public void testDeadlineSeveralRoundsAway() throws InterruptedException {
+		// The wheel turns every 80 ms, so this stays in its bucket for a few turns
+		long delay = 300;
+		CountDownLatch ran = new CountDownLatch(1);
+		AtomicLong ranAt = new AtomicLong();
+		long start = System.nanoTime();
+		timer.schedule(() -> {
+			ranAt.set(System.nanoTime());
+			ran.countDown();
+		}, delay, TimeUnit.MILLISECONDS);
+		// Something in the same bucket on the first turn must not take the far one along
+		CountDownLatch nearRan = new CountDownLatch(1);
+		timer.schedule(nearRan::countDown, delay % 80, TimeUnit.MILLISECONDS);
+
+		assertTrue(nearRan.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(1, ran.getCount());
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(ranAt.get() - start) >= delay);
+	}
+
+	public void testCancelBeforeAdded() throws InterruptedException {
+		AtomicInteger runs = new AtomicInteger();
+		// Cancelled right away, most likely before the worker has moved it into the wheel
+		HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 0, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertTrue(timeout.isCancelled());
+		assertFalse(timeout.cancel());
+		assertEquals(0, timer.getPendingTimeouts());
+
+		awaitTicks(10);
+		assertEquals(0, runs.get());
+		assertFalse(timeout.isExpired());
+	}
+
+	public void testCancelAfterAdded() throws InterruptedException {
+		AtomicInteger runs = new AtomicInteger();
+		HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 200, TimeUnit.MILLISECONDS);
+		// Let the worker move it into its bucket
+		awaitTicks(5);
+		assertTrue(timeout.cancel());
+		assertEquals(0, timer.getPendingTimeouts());
+
+		Thread.sleep(300);
+		assertEquals(0, runs.get());
+		assertTrue(timeout.isCancelled());
+	}
+
+	public void testCancelAfterRun() throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		HashedWheelTimer.Timeout timeout = timer.schedule(ran::countDown, 10, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertFalse(timeout.cancel());
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.isCancelled());
+	}
+
+	public void testPendingTimeouts() throws InterruptedException {
+		int count = 100;
+		CountDownLatch ran = new CountDownLatch(count - 10);
+		List<HashedWheelTimer.Timeout> timeouts = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			timeouts.add(timer.schedule(ran::countDown, 100 + i, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(count, timer.getPendingTimeouts());
+		for (int i = 0; i < 10; i++) {
+			timeouts.get(i * 10).cancel();
+		}
+		assertEquals(count - 10, timer.getPendingTimeouts());
+
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(0, timer.getPendingTimeouts());
+	}
+
+	public void testFailingTaskDoesNotStopTimer() throws InterruptedException {
+		timer.schedule(() -> {
+			throw new IllegalStateException("Expected by the test");
+		}, 0, TimeUnit.MILLISECONDS);
+		CountDownLatch ran = new CountDownLatch(1);
+		timer.schedule(ran::countDown, 30, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+	}
+
+	public void testScheduleAfterStop() {
+		timer.stop();
+		try {
+			timer.schedule(() -> {
+			}, 0, TimeUnit.MILLISECONDS);
+			fail("Should not schedule in a stopped timer");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	public void testInvalidArguments() {
+		try {
+			new HashedWheelTimer("Invalid", 0, 8);
+			fail("Should not accept a zero tick");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			new HashedWheelTimer("Invalid", TICK_MILLIS, 0);
+			fail("Should not accept an empty wheel");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/*
+	 * Waits until the worker has gone through at least the given number of ticks.
+	 */
+	private void awaitTicks(int ticks) throws InterruptedException {
+		CountDownLatch ticked = new CountDownLatch(1);
+		timer.schedule(ticked::countDown, ticks * TICK_MILLIS, TimeUnit.MILLISECONDS);
+		assertTrue(ticked.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+	}
+}
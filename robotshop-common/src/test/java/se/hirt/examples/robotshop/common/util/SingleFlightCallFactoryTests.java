@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import junit.framework.TestCase;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import se.hirt.examples.robotshop.common.util.StubCallFactory.StubCall;
+
+/**
+ * Tests the collapsing of identical requests by the {@link SingleFlightCallFactory}.
+ */
+public class SingleFlightCallFactoryTests extends TestCase {
+	private final static String URL = "http://customers/customers/4711";
+	private final static long MAX_WAIT_MILLIS = 5000;
+
+	private StubCallFactory stub;
+	private SingleFlightCallFactory singleFlight;
+
+	public SingleFlightCallFactoryTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * Records the outcome of an enqueued call.
+	 */
+	private final static class RecordingCallback implements Callback {
+		private final CompletableFuture<String> body = new CompletableFuture<>();
+
+		@Override
+		public void onFailure(Call call, IOException e) {
+			body.completeExceptionally(e);
+		}
+
+		@Override
+		public void onResponse(Call call, Response response) throws IOException {
+			body.complete(response.body().string());
+		}
+
+		String awaitBody() throws Exception {
+			return body.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+		}
+
+		IOException awaitFailure() throws Exception {
+			try {
+				body.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+				fail("Expected the call to fail");
+				return null;
+			} catch (ExecutionException e) {
+				return (IOException) e.getCause();
+			}
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		stub = new StubCallFactory();
+		singleFlight = new SingleFlightCallFactory(stub, getName());
+	}
+
+	public void testCollapsesEnqueuedCalls() throws Exception {
+		List<RecordingCallback> callbacks = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			RecordingCallback callback = new RecordingCallback();
+			singleFlight.newCall(StubCallFactory.get(URL)).enqueue(callback);
+			callbacks.add(callback);
+		}
+		assertEquals(1, stub.getCallCount());
+		assertEquals(1, singleFlight.getCalls());
+		assertEquals(2, singleFlight.getCollapsedCalls());
+		assertEquals(1, singleFlight.getCallsInFlight());
+
+		stub.awaitCall(0).respond(200, "Customer 4711");
+		for (RecordingCallback callback : callbacks) {
+			assertEquals("Customer 4711", callback.awaitBody());
+		}
+		assertEquals(0, singleFlight.getCallsInFlight());
+	}
+
+	public void testCollapsesExecutedCalls() throws Exception {
+		int callers = 4;
+		List<CompletableFuture<String>> bodies = new ArrayList<>();
+		for (int i = 0; i < callers; i++) {
+			bodies.add(CompletableFuture.supplyAsync(() -> {
+				try (Response response = singleFlight.newCall(StubCallFactory.get(URL)).execute()) {
+					return response.body().string();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}, runnable -> new Thread(runnable, "Caller").start()));
+		}
+		StubCall call = stub.awaitCall(0);
+		awaitCondition(() -> singleFlight.getCollapsedCalls() == callers - 1);
+
+		call.respond(200, "Customer 4711");
+		for (CompletableFuture<String> body : bodies) {
+			assertEquals("Customer 4711", body.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		}
+		assertEquals(1, stub.getCallCount());
+	}
+
+	public void testCollapsesExecuteWithEnqueue() throws Exception {
+		RecordingCallback leader = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(leader);
+		CompletableFuture<String> follower = CompletableFuture.supplyAsync(() -> {
+			try (Response response = singleFlight.newCall(StubCallFactory.get(URL)).execute()) {
+				return response.body().string();
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}, runnable -> new Thread(runnable, "Caller").start());
+		awaitCondition(() -> singleFlight.getCollapsedCalls() == 1);
+
+		stub.awaitCall(0).respond(200, "Customer 4711");
+		assertEquals("Customer 4711", leader.awaitBody());
+		assertEquals("Customer 4711", follower.get(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS));
+		assertEquals(1, stub.getCallCount());
+	}
+
+	public void testSharesFailure() throws Exception {
+		RecordingCallback first = new RecordingCallback();
+		RecordingCallback second = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(first);
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(second);
+
+		IOException failure = new IOException("Connection refused");
+		stub.awaitCall(0).fail(failure);
+		assertSame(failure, first.awaitFailure());
+		assertSame(failure, second.awaitFailure());
+		assertEquals(0, singleFlight.getCallsInFlight());
+
+		// A failed call is not remembered
+		RecordingCallback retry = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(retry);
+		stub.awaitCall(1).respond(200, "Customer 4711");
+		assertEquals("Customer 4711", retry.awaitBody());
+	}
+
+	public void testSharesErrorResponses() throws Exception {
+		RecordingCallback first = new RecordingCallback();
+		RecordingCallback second = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(first);
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(second);
+
+		stub.awaitCall(0).respond(404, "No such customer");
+		assertEquals("No such customer", first.awaitBody());
+		assertEquals("No such customer", second.awaitBody());
+		assertEquals(1, stub.getCallCount());
+	}
+
+	public void testCancelOnlyAffectsCaller() throws Exception {
+		RecordingCallback canceled = new RecordingCallback();
+		RecordingCallback other = new RecordingCallback();
+		Call canceledCall = singleFlight.newCall(StubCallFactory.get(URL));
+		canceledCall.enqueue(canceled);
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(other);
+
+		canceledCall.cancel();
+		assertTrue(canceledCall.isCanceled());
+		StubCall call = stub.awaitCall(0);
+		assertFalse(call.isCanceled());
+
+		call.respond(200, "Customer 4711");
+		assertEquals("Canceled", canceled.awaitFailure().getMessage());
+		assertEquals("Customer 4711", other.awaitBody());
+	}
+
+	public void testNewCallAfterCompletion() throws Exception {
+		RecordingCallback first = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(first);
+		stub.awaitCall(0).respond(200, "Before");
+		assertEquals("Before", first.awaitBody());
+
+		RecordingCallback second = new RecordingCallback();
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(second);
+		stub.awaitCall(1).respond(200, "After");
+		assertEquals("After", second.awaitBody());
+		assertEquals(2, singleFlight.getCalls());
+		assertEquals(0, singleFlight.getCollapsedCalls());
+	}
+
+	public void testDoesNotCollapseDifferentRequests() throws Exception {
+		singleFlight.newCall(StubCallFactory.get(URL)).enqueue(new RecordingCallback());
+		singleFlight.newCall(StubCallFactory.get(URL + "2")).enqueue(new RecordingCallback());
+		singleFlight.newCall(new Request.Builder().url(URL).header("Accept", "text/plain").build())
+				.enqueue(new RecordingCallback());
+		assertEquals(3, stub.getCallCount());
+		assertEquals(0, singleFlight.getCollapsedCalls());
+	}
+
+	public void testDoesNotCollapseOtherMethods() {
+		Request post = new Request.Builder().url(URL)
+				.post(RequestBody.create(MediaType.parse("application/json"), "{}")).build();
+		Call first = singleFlight.newCall(post);
+		Call second = singleFlight.newCall(post);
+		// Passed straight through to the delegate
+		assertTrue(first instanceof StubCall);
+		assertNotSame(first, second);
+		assertEquals(2, stub.getCallCount());
+	}
+
+	public void testDoesNotCollapseNoCache() {
+		Request noCache = new Request.Builder().url(URL).header("Cache-Control", "no-cache").build();
+		assertTrue(singleFlight.newCall(noCache) instanceof StubCall);
+	}
+
+	public void testCallCanOnlyBeExecutedOnce() throws Exception {
+		Call call = singleFlight.newCall(StubCallFactory.get(URL));
+		call.enqueue(new RecordingCallback());
+		assertTrue(call.isExecuted());
+		try {
+			call.enqueue(new RecordingCallback());
+			fail("Should not be possible to enqueue a call twice");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		Call clone = call.clone();
+		assertFalse(clone.isExecuted());
+		RecordingCallback cloneCallback = new RecordingCallback();
+		clone.enqueue(cloneCallback);
+		stub.awaitCall(0).respond(200, "Customer 4711");
+		assertEquals("Customer 4711", cloneCallback.awaitBody());
+	}
+
+	private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting for the condition");
+			}
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.common.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * An in-process {@link Call.Factory} for testing the call factory decorators. The calls do not
+ * complete until the test completes them, with {@link StubCall#respond(int, String)} or
+ * {@link StubCall#fail(IOException)}.
+ */
+final class StubCallFactory implements Call.Factory {
+	private final static MediaType TEXT = MediaType.parse("text/plain");
+
+	// Guarded by this
+	private final List<StubCall> calls = new ArrayList<>();
+	private volatile RuntimeException enqueueFailure;
+
+	final class StubCall implements Call {
+		private final Request request;
+		private final CompletableFuture<Response> result = new CompletableFuture<>();
+		private volatile boolean executed;
+		private volatile boolean canceled;
+
+		StubCall(Request request) {
+			this.request = request;
+		}
+
+		@Override
+		public Request request() {
+			return request;
+		}
+
+		@Override
+		public Response execute() throws IOException {
+			markExecuted();
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw (IOException) e.getCause();
+			}
+		}
+
+		@Override
+		public void enqueue(Callback callback) {
+			markExecuted();
+			RuntimeException failure = enqueueFailure;
+			if (failure != null) {
+				throw failure;
+			}
+			result.whenComplete((response, t) -> {
+				if (t != null) {
+					callback.onFailure(this, (IOException) t);
+				} else {
+					try {
+						callback.onResponse(this, response);
+					} catch (IOException e) {
+						callback.onFailure(this, e);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void cancel() {
+			canceled = true;
+			result.completeExceptionally(new IOException("Canceled"));
+		}
+
+		@Override
+		public boolean isExecuted() {
+			return executed;
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public Call clone() {
+			return newCall(request);
+		}
+
+		void respond(int code, String body) {
+			result.complete(new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code)
+					.message("Stub " + code).body(ResponseBody.create(TEXT, body)).build());
+		}
+
+		void fail(IOException e) {
+			result.completeExceptionally(e);
+		}
+
+		private void markExecuted() {
+			if (executed) {
+				throw new IllegalStateException("Already Executed");
+			}
+			executed = true;
+		}
+	}
+
+	@Override
+	public synchronized Call newCall(Request request) {
+		StubCall call = new StubCall(request);
+		calls.add(call);
+		notifyAll();
+		return call;
+	}
+
+	/**
+	 * Makes the enqueue of the calls throw the given exception, like a rejecting dispatcher, or
+	 * enqueue them normally again if null.
+	 */
+	void failEnqueues(RuntimeException failure) {
+		enqueueFailure = failure;
+	}
+
+	synchronized int getCallCount() {
+		return calls.size();
+	}
+
+	/**
+	 * Waits until the call with the given index (in the order created) has been created.
+	 */
+	synchronized StubCall awaitCall(int index) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (calls.size() <= index) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new AssertionError("Call " + index + " was never made, only " + calls.size());
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return calls.get(index);
+	}
+
+	static Request get(String url) {
+		return new Request.Builder().url(url).build();
+	}
+}
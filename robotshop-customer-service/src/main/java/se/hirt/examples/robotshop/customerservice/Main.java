@@ -32,6 +32,8 @@
 package se.hirt.examples.robotshop.customerservice;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 
@@ -42,9 +44,14 @@ import org.apache.catalina.startup.Tomcat;
 import org.apache.catalina.webresources.DirResourceSet;
 import org.apache.catalina.webresources.StandardRoot;
 import org.glassfish.jersey.server.ResourceConfig;
+import org.glassfish.jersey.server.ServerProperties;
 import org.glassfish.jersey.servlet.ServletContainer;
 
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
+import se.hirt.examples.robotshop.common.sharding.ConsistentHashRing;
+import se.hirt.examples.robotshop.customerservice.data.CustomerSeeder;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+import se.hirt.examples.robotshop.customerservice.data.Journal;
 
 /**
  * Launches the embedded Tomcat for the customers service.
@@ -53,11 +60,19 @@ import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
  */
 public class Main {
 	private static final String DEFAULT_PORT = "8081";
+	private static final String DEFAULT_JOURNAL_SYNC = "periodic";
+	private static final String DEFAULT_JOURNAL_SYNC_INTERVAL = "100";
+	private static final String DEFAULT_SNAPSHOT_INTERVAL = "300";
 
 	@SuppressWarnings("deprecation")
-	public static void main(String[] args) throws ServletException, LifecycleException {
+	public static void main(String[] args) throws ServletException, LifecycleException, IOException {
 		OpenTracingUtil.configureOpenTracing("RobotShop-Customer-Service");
-		
+		enablePersistence();
+		// Before seeding, so that the new ids are owned by this shard, and rows owned by others skipped
+		enableSharding();
+		seedCustomers();
+		enableReplication();
+
 		String webappDirLocation = "src/main/webapp/";
 		Tomcat tomcat = new Tomcat();
 
@@ -84,8 +99,86 @@ public class Main {
 		tomcat.getServer().await();
 	}
 
+	/*
+	 * Persistence is optional, and enabled by setting CUSTOMER_JOURNAL_DIR.
+	 */
+	private static void enablePersistence() throws IOException {
+		String journalDir = System.getenv("CUSTOMER_JOURNAL_DIR");
+		if (journalDir == null || journalDir.isEmpty()) {
+			return;
+		}
+		Journal.SyncPolicy syncPolicy = Journal.SyncPolicy
+				.fromString(getEnv("CUSTOMER_JOURNAL_SYNC", DEFAULT_JOURNAL_SYNC));
+		long syncInterval = Long.parseLong(getEnv("CUSTOMER_JOURNAL_SYNC_INTERVAL", DEFAULT_JOURNAL_SYNC_INTERVAL));
+		long snapshotInterval = Long.parseLong(getEnv("CUSTOMER_SNAPSHOT_INTERVAL", DEFAULT_SNAPSHOT_INTERVAL));
+
+		long start = System.currentTimeMillis();
+		Journal journal = DataAccess.enablePersistence(new File(journalDir), syncPolicy, syncInterval,
+				TimeUnit.SECONDS.toMillis(snapshotInterval));
+		Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "Journal Shutdown"));
+		System.out.println(String.format("Recovered %d customers from %s in %d ms (sync policy %s).",
+				DataAccess.getNumberOfCustomers(), journalDir, System.currentTimeMillis() - start, syncPolicy));
+	}
+
+	/*
+	 * Loads the customers in CUSTOMER_SEED_FILE, if set, unless there already are customers (e.g.
+	 * recovered from the journal). If sharded, only the customers owned by this shard are loaded.
+	 */
+	private static void seedCustomers() throws IOException {
+		String seedFile = System.getenv("CUSTOMER_SEED_FILE");
+		if (seedFile == null || seedFile.isEmpty()) {
+			return;
+		}
+		if (DataAccess.getNumberOfCustomers() > 0) {
+			System.out.println("Not seeding from " + seedFile + " - already have " + DataAccess.getNumberOfCustomers()
+					+ " customers.");
+			return;
+		}
+		long start = System.currentTimeMillis();
+		long loaded = CustomerSeeder.seed(new File(seedFile));
+		long time = Math.max(1, System.currentTimeMillis() - start);
+		System.out.println(String.format("Seeded %d customers from %s in %d ms (%d customers/s).", loaded, seedFile,
+				time, loaded * 1000 / time));
+	}
+
+	/*
+	 * Sharding is optional, and enabled by setting CUSTOMER_SHARDS to the locations of all the
+	 * shards, and CUSTOMER_SHARD_LOCATION to the location of this one.
+	 */
+	private static void enableSharding() {
+		String shards = System.getenv("CUSTOMER_SHARDS");
+		if (shards == null || shards.isEmpty()) {
+			return;
+		}
+		String location = System.getenv("CUSTOMER_SHARD_LOCATION");
+		if (location == null || location.isEmpty()) {
+			location = "http://localhost:" + getEnv("PORT", DEFAULT_PORT);
+			System.err.println("CUSTOMER_SHARD_LOCATION not set - assuming " + location);
+		}
+		ShardManager.getInstance().configure(ConsistentHashRing.parse(shards), location);
+	}
+
+	/*
+	 * Makes this instance a read-only replica of the primary in CUSTOMER_REPLICA_OF, if set.
+	 */
+	private static void enableReplication() {
+		String primary = System.getenv("CUSTOMER_REPLICA_OF");
+		if (primary == null || primary.isEmpty()) {
+			return;
+		}
+		Replicator.start(ConsistentHashRing.normalize(primary));
+		System.out.println("Replicating the customers from " + primary);
+	}
+
+	private static String getEnv(String name, String defaultValue) {
+		String value = System.getenv(name);
+		return (value == null || value.isEmpty()) ? defaultValue : value;
+	}
+
 	private static ServletContainer resourceConfig() {
-		return new ServletContainer(new ResourceConfig(new ResourceLoader().getClasses()));
+		// Don't buffer the responses to compute their lengths - the change feed must be streamed
+		return new ServletContainer(new ResourceConfig(new ResourceLoader().getClasses())
+				.property(ServerProperties.OUTBOUND_CONTENT_LENGTH_BUFFER, 0));
 	}
 
 }
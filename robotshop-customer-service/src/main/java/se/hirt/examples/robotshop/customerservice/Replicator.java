@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.BufferedSource;
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.customerservice.data.ChangeFeed.Change;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+import se.hirt.examples.robotshop.customerservice.rest.CustomerChangesResource;
+import se.hirt.examples.robotshop.customerservice.rest.ReplicationFilter;
+
+/**
+ * Keeps this customer service instance a read-only replica of a primary instance, by following
+ * the change feed of the primary (/customers/changes).
+ * <p>
+ * The replica first loads all the customers from the primary, page by page, and then applies the
+ * changes published since it started loading, in order. Since every change carries the state of
+ * the customer after the change, replaying changes that were already part of the loaded pages is
+ * harmless. When the replica falls too far behind (or the primary restarts), the customers are
+ * loaded again, and the customers that are gone from the primary are removed.
+ * <p>
+ * The sequence of the last applied change can be used for read-your-writes; see
+ * {@link #awaitSequence(long, long)}.
+ * 
+ * @author Marcus Hirt
+ */
+public final class Replicator implements ReplicatorMXBean, Runnable {
+	public final static String STATE_SYNCING = "SYNCING";
+	public final static String STATE_STREAMING = "STREAMING";
+	public final static String STATE_DISCONNECTED = "DISCONNECTED";
+
+	private final static int STREAM_WAIT_SECONDS = 30;
+	private final static int PAGE_SIZE = 10000;
+	// Changes to replay from before the load started, in case they were not visible in the pages yet
+	private final static long REPLAY_MARGIN = 1024;
+	private final static long MAX_RECONNECT_DELAY = 10000;
+
+	private static volatile Replicator instance;
+
+	private final String primary;
+	private final OkHttpClient httpClient = new OkHttpClient.Builder()
+			.readTimeout(STREAM_WAIT_SECONDS * 2, TimeUnit.SECONDS).build();
+	private final Object monitor = new Object();
+
+	private volatile String state = STATE_SYNCING;
+	private volatile long appliedSequence;
+	private volatile long primarySequence;
+	private volatile long lastApplyLag;
+	private volatile long lastInSync = System.currentTimeMillis();
+	private volatile long appliedChanges;
+	private volatile long fullSyncs;
+	private boolean needsFullSync = true;
+
+	private Replicator(String primary) {
+		this.primary = primary;
+	}
+
+	/**
+	 * Starts replicating from the primary, in the background.
+	 * 
+	 * @param primary
+	 *            the location of the primary, e.g. http://host:8081.
+	 * @return the replicator.
+	 */
+	public static synchronized Replicator start(String primary) {
+		if (instance != null) {
+			throw new IllegalStateException("Already replicating from " + instance.getPrimary());
+		}
+		Replicator replicator = new Replicator(primary);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(replicator,
+					new ObjectName("se.hirt.examples.robotshop.customerservice:type=Replicator"));
+		} catch (JMException e) {
+			System.err.println("Could not register the replicator MBean: " + e.getMessage());
+		}
+		Thread thread = new Thread(replicator, "Customer Replicator");
+		thread.setDaemon(true);
+		thread.start();
+		instance = replicator;
+		return replicator;
+	}
+
+	/**
+	 * @return the replicator, or null if this instance is not a replica.
+	 */
+	public static Replicator getInstance() {
+		return instance;
+	}
+
+	@Override
+	public void run() {
+		long reconnectDelay = 100;
+		while (true) {
+			try {
+				if (needsFullSync) {
+					fullSync();
+				}
+				stream();
+				reconnectDelay = 100;
+			} catch (IOException | RuntimeException e) {
+				if (state != STATE_DISCONNECTED) {
+					System.err.println("Lost contact with the primary " + primary + ": " + e);
+				}
+				state = STATE_DISCONNECTED;
+				try {
+					Thread.sleep(reconnectDelay);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				reconnectDelay = Math.min(MAX_RECONNECT_DELAY, reconnectDelay * 2);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the change with the sequence from the primary has been applied.
+	 * 
+	 * @return true if the change has been applied, false if the wait timed out.
+	 */
+	public boolean awaitSequence(long sequence, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (monitor) {
+			while (appliedSequence < sequence || state == STATE_SYNCING) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0) {
+					return false;
+				}
+				monitor.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the status of the replication, as JSon.
+	 */
+	public JsonObjectBuilder getStatus() {
+		return Json.createObjectBuilder().add("primary", primary).add("state", getState())
+				.add("appliedSequence", getAppliedSequence()).add("primarySequence", getPrimarySequence())
+				.add("lagChanges", getLagChanges()).add("lagMillis", getLagMillis())
+				.add("appliedChanges", getAppliedChanges()).add("fullSyncs", getFullSyncs());
+	}
+
+	@Override
+	public String getPrimary() {
+		return primary;
+	}
+
+	@Override
+	public String getState() {
+		return state;
+	}
+
+	@Override
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+
+	@Override
+	public long getPrimarySequence() {
+		return primarySequence;
+	}
+
+	@Override
+	public long getLagChanges() {
+		return Math.max(0, primarySequence - appliedSequence);
+	}
+
+	@Override
+	public long getLagMillis() {
+		if (state == STATE_STREAMING) {
+			return lastApplyLag;
+		}
+		return System.currentTimeMillis() - lastInSync;
+	}
+
+	@Override
+	public long getAppliedChanges() {
+		return appliedChanges;
+	}
+
+	@Override
+	public long getFullSyncs() {
+		return fullSyncs;
+	}
+
+	/*
+	 * Loads all the customers from the primary, and removes the ones no longer there.
+	 */
+	private void fullSync() throws IOException {
+		state = STATE_SYNCING;
+		long start = System.currentTimeMillis();
+		long sequence;
+		// Only to find out the current sequence of the primary
+		Request sequenceRequest = new Request.Builder()
+				.url(primary + "/customers/changes?wait=0").get().build();
+		try (Response response = httpClient.newCall(sequenceRequest).execute()) {
+			checkSuccessful(response);
+			sequence = Long.parseLong(response.header(ReplicationFilter.HEADER_SEQUENCE));
+		}
+
+		int loaded = 0;
+		Long after = null;
+		while (true) {
+			HttpUrl.Builder url = HttpUrl.parse(primary + "/customers").newBuilder();
+			if (after != null) {
+				url.addQueryParameter("after", String.valueOf(after));
+			}
+			url.addQueryParameter("limit", String.valueOf(PAGE_SIZE));
+			JsonArray page;
+			try (Response response = httpClient.newCall(new Request.Builder().url(url.build()).get().build())
+					.execute()) {
+				page = Json.createReader(new StringReader(checkSuccessful(response).body().string())).readArray();
+			}
+			Map<Long, Customer> customers = new HashMap<>();
+			Long last = null;
+			for (JsonObject jsonCustomer : page.getValuesAs(JsonObject.class)) {
+				Customer customer = Customer.fromJSon(jsonCustomer);
+				customers.put(customer.getId(), customer);
+				last = customer.getId();
+			}
+			// The last page covers all ids after it
+			boolean isLastPage = page.size() < PAGE_SIZE;
+			sweep(after, isLastPage ? null : last, customers);
+			for (Customer customer : customers.values()) {
+				if (!isSame(customer, DataAccess.getCustomerById(customer.getId()))) {
+					DataAccess.applyReplicatedChange(customer.getId(), customer);
+				}
+			}
+			loaded += customers.size();
+			if (isLastPage) {
+				break;
+			}
+			after = last;
+		}
+		needsFullSync = false;
+		fullSyncs++;
+		primarySequence = Math.max(primarySequence, sequence);
+		lastInSync = System.currentTimeMillis();
+		state = STATE_STREAMING;
+		setAppliedSequence(Math.max(0, sequence - REPLAY_MARGIN));
+		System.out.println(String.format("Loaded %d customers from the primary %s in %d ms", loaded, primary,
+				System.currentTimeMillis() - start));
+	}
+
+	/*
+	 * Removes the local customers in the range of ids (after, last] that are not in the page.
+	 */
+	private static void sweep(Long after, Long last, Map<Long, Customer> page) {
+		Long cursor = after;
+		while (true) {
+			List<Customer> local = DataAccess.getCustomersAfter(cursor, PAGE_SIZE);
+			for (Customer customer : local) {
+				if (last != null && customer.getId() > last) {
+					return;
+				}
+				if (!page.containsKey(customer.getId())) {
+					DataAccess.applyReplicatedChange(customer.getId(), null);
+				}
+			}
+			if (local.size() < PAGE_SIZE) {
+				return;
+			}
+			cursor = local.get(local.size() - 1).getId();
+		}
+	}
+
+	/*
+	 * Applies the changes from one long poll of the change feed.
+	 */
+	private void stream() throws IOException {
+		HttpUrl url = HttpUrl.parse(primary + "/customers/changes").newBuilder()
+				.addQueryParameter("since", String.valueOf(appliedSequence))
+				.addQueryParameter("wait", String.valueOf(STREAM_WAIT_SECONDS)).build();
+		try (Response response = httpClient.newCall(new Request.Builder().url(url).get().build()).execute()) {
+			if (response.code() == 410) {
+				needsFullSync = true;
+				return;
+			}
+			checkSuccessful(response);
+			state = STATE_STREAMING;
+			lastInSync = System.currentTimeMillis();
+			notifyWaiters();
+			BufferedSource source = response.body().source();
+			String line;
+			while ((line = source.readUtf8Line()) != null) {
+				JsonObject jsonChange = Json.createReader(new StringReader(line)).readObject();
+				long sequence = jsonChange.getJsonNumber(Change.KEY_SEQUENCE).longValue();
+				primarySequence = Math.max(primarySequence, sequence);
+				if (CustomerChangesResource.TYPE_RESET.equals(jsonChange.getString(Change.KEY_TYPE))) {
+					// We fell too far behind
+					needsFullSync = true;
+					return;
+				}
+				if (sequence <= appliedSequence) {
+					continue;
+				}
+				long customerId = Long.parseLong(jsonChange.getString(Customer.KEY_CUSTOMER_ID));
+				Customer customer = jsonChange.containsKey(Change.KEY_CUSTOMER)
+						? Customer.fromJSon(jsonChange.getJsonObject(Change.KEY_CUSTOMER))
+						: null;
+				DataAccess.applyReplicatedChange(customerId, customer);
+				appliedChanges++;
+				long now = System.currentTimeMillis();
+				lastApplyLag = Math.max(0, now - jsonChange.getJsonNumber(Change.KEY_TIMESTAMP).longValue());
+				lastInSync = now;
+				setAppliedSequence(sequence);
+			}
+		}
+	}
+
+	private void setAppliedSequence(long sequence) {
+		appliedSequence = sequence;
+		notifyWaiters();
+	}
+
+	private void notifyWaiters() {
+		synchronized (monitor) {
+			monitor.notifyAll();
+		}
+	}
+
+	private static boolean isSame(Customer a, Customer b) {
+		return b != null && a.getFullName().equals(b.getFullName()) && a.getPhoneNumber().equals(b.getPhoneNumber());
+	}
+
+	private static Response checkSuccessful(Response response) throws IOException {
+		if (!response.isSuccessful()) {
+			throw new IOException("Call to " + response.request().url() + " failed with status " + response.code());
+		}
+		return response;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice;
+
+/**
+ * Management interface of the {@link Replicator}, e.g. for following the replication lag in JMC.
+ * 
+ * @author Marcus Hirt
+ */
+public interface ReplicatorMXBean {
+	/**
+	 * @return the location of the primary.
+	 */
+	String getPrimary();
+
+	/**
+	 * @return SYNCING while loading the customers from the primary, STREAMING when following the
+	 *         changes, and DISCONNECTED when trying to reconnect.
+	 */
+	String getState();
+
+	/**
+	 * @return the sequence of the last change from the primary that has been applied.
+	 */
+	long getAppliedSequence();
+
+	/**
+	 * @return the highest sequence known to have been published by the primary.
+	 */
+	long getPrimarySequence();
+
+	/**
+	 * @return the number of known changes not yet applied.
+	 */
+	long getLagChanges();
+
+	/**
+	 * @return when streaming, the time from the last applied change being published on the primary
+	 *         until it was applied here. Otherwise the time since the replica was last in sync.
+	 */
+	long getLagMillis();
+
+	/**
+	 * @return the number of changes applied since the replica started.
+	 */
+	long getAppliedChanges();
+
+	/**
+	 * @return the number of times the customers have been reloaded from the primary.
+	 */
+	long getFullSyncs();
+}
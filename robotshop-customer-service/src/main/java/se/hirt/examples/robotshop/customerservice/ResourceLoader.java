@@ -39,9 +39,13 @@ import javax.ws.rs.core.Application;
 import org.glassfish.jersey.jsonb.internal.JsonBindingProvider;
 
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingDynamicFeature;
+import se.hirt.examples.robotshop.customerservice.rest.CustomerChangesResource;
+import se.hirt.examples.robotshop.customerservice.rest.CustomerReplicationResource;
 import se.hirt.examples.robotshop.customerservice.rest.CustomerResource;
+import se.hirt.examples.robotshop.customerservice.rest.CustomerShardsResource;
 import se.hirt.examples.robotshop.customerservice.rest.CustomersResource;
 import se.hirt.examples.robotshop.customerservice.rest.HelloRest;
+import se.hirt.examples.robotshop.customerservice.rest.ReplicationFilter;
 
 /**
  * Programmatic adding of our specific REST resources.
@@ -56,6 +60,10 @@ public class ResourceLoader extends Application {
 		classes.add(HelloRest.class);
 		classes.add(CustomerResource.class);
 		classes.add(CustomersResource.class);
+		classes.add(CustomerChangesResource.class);
+		classes.add(CustomerShardsResource.class);
+		classes.add(CustomerReplicationResource.class);
+		classes.add(ReplicationFilter.class);
 		classes.add(JsonBindingProvider.class);
 		classes.add(OpenTracingDynamicFeature.class);
 		return classes;
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.contrib.okhttp3.TracingCallFactory;
+import io.opentracing.util.GlobalTracer;
+import okhttp3.Call;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
+import se.hirt.examples.robotshop.common.opentracing.SpanDecorator;
+import se.hirt.examples.robotshop.common.sharding.ConsistentHashRing;
+import se.hirt.examples.robotshop.common.sharding.CustomerRouter;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+
+/**
+ * Keeps track of the shards when the customer service is sharded, and moves the customers that
+ * this instance no longer owns to their new owners when the ring changes.
+ * <p>
+ * The customers are moved in chunks, and each moved customer is only removed here if it was not
+ * changed while being moved. Changed customers are moved again in the next pass. Writes to moved
+ * customers from clients still using the old ring are lost, so switch the clients over before the
+ * rebalancing is done.
+ * 
+ * @author Marcus Hirt
+ */
+public final class ShardManager {
+	private final static ShardManager INSTANCE = new ShardManager();
+	private final static MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+	private final static int TRANSFER_CHUNK_SIZE = 1000;
+	private final static String KEY_COORDINATING = "coordinating";
+
+	private final Call.Factory httpClient = new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(),
+			SpanDecorator.getSpanDecorators());
+
+	// Guarded by this
+	private Thread rebalancer;
+	private boolean rebalanceAgain;
+	private Thread coordinator;
+	private volatile long moved;
+	private volatile String lastError;
+
+	private ShardManager() {
+	}
+
+	public static ShardManager getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the initial ring, without moving any customers.
+	 */
+	public void configure(ConsistentHashRing ring, String location) {
+		DataAccess.setShards(ring, ConsistentHashRing.normalize(location));
+		if (!ring.getNodes().contains(DataAccess.getShardLocation())) {
+			System.err.println("This shard (" + location + ") is not part of the ring " + ring + "!");
+		}
+		System.out.println("Customer service shard " + DataAccess.getShardLocation() + " of " + ring);
+	}
+
+	/**
+	 * Switches to a new ring, and starts moving the customers no longer owned to their new owners.
+	 */
+	public synchronized void rebalance(ConsistentHashRing ring) {
+		String location = DataAccess.getShardLocation();
+		if (location == null) {
+			throw new IllegalStateException("Not sharded - set CUSTOMER_SHARDS and CUSTOMER_SHARD_LOCATION");
+		}
+		DataAccess.setShards(ring, location);
+		if (rebalancer != null) {
+			rebalanceAgain = true;
+			return;
+		}
+		lastError = null;
+		rebalancer = new Thread(this::runRebalancing, "Shard Rebalancer");
+		rebalancer.setDaemon(true);
+		rebalancer.start();
+	}
+
+	public synchronized boolean isRebalancing() {
+		return rebalancer != null;
+	}
+
+	/**
+	 * Moves the customers of all the instances to a new ring, in the background. Tells every
+	 * instance in either ring about the new ring, and waits for them to move the customers (see
+	 * {@link CustomerRouter#rebalance(ConsistentHashRing)}).
+	 * 
+	 * @return false if this instance is already coordinating a rebalancing.
+	 */
+	public synchronized boolean coordinateRebalance(ConsistentHashRing ring) {
+		if (DataAccess.getShardLocation() == null) {
+			throw new IllegalStateException("Not sharded - set CUSTOMER_SHARDS and CUSTOMER_SHARD_LOCATION");
+		}
+		if (coordinator != null) {
+			return false;
+		}
+		CustomerRouter router = new CustomerRouter(httpClient, DataAccess.getShardRing());
+		lastError = null;
+		coordinator = new Thread(() -> runCoordination(router, ring), "Shard Rebalance Coordinator");
+		coordinator.setDaemon(true);
+		coordinator.start();
+		return true;
+	}
+
+	public synchronized boolean isCoordinating() {
+		return coordinator != null;
+	}
+
+	/**
+	 * @return the status of the sharding, as JSon.
+	 */
+	public JsonObjectBuilder getStatus() {
+		JsonObjectBuilder builder = Json.createObjectBuilder();
+		ConsistentHashRing ring = DataAccess.getShardRing();
+		JsonArrayBuilder shards = Json.createArrayBuilder();
+		if (ring != null) {
+			ring.getNodes().forEach(shards::add);
+		}
+		builder.add(CustomerRouter.KEY_SHARDS, shards);
+		builder.add(CustomerRouter.KEY_REBALANCING, isRebalancing());
+		builder.add(KEY_COORDINATING, isCoordinating());
+		builder.add(CustomerRouter.KEY_MOVED, moved);
+		if (lastError != null) {
+			builder.add("error", lastError);
+		}
+		return builder;
+	}
+
+	private void runCoordination(CustomerRouter router, ConsistentHashRing ring) {
+		Span span = GlobalTracer.get().buildSpan("coordinateRebalance").start();
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			router.rebalance(ring);
+			System.out.println("Rebalanced the customers to " + ring);
+		} catch (Throwable t) {
+			span.log(OpenTracingUtil.getSpanLogMap(t));
+			lastError = t.toString();
+			System.err.println("Failed to coordinate the rebalancing of the customers: " + t);
+		} finally {
+			synchronized (this) {
+				coordinator = null;
+			}
+			span.finish();
+		}
+	}
+
+	private void runRebalancing() {
+		Span span = GlobalTracer.get().buildSpan("rebalanceShards").start();
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			while (true) {
+				int leftBehind = movePass();
+				synchronized (this) {
+					if (leftBehind == 0 && !rebalanceAgain) {
+						rebalancer = null;
+						return;
+					}
+					rebalanceAgain = false;
+				}
+			}
+		} catch (Throwable t) {
+			span.log(OpenTracingUtil.getSpanLogMap(t));
+			lastError = t.toString();
+			System.err.println("Failed to rebalance the customers: " + t);
+			synchronized (this) {
+				rebalancer = null;
+			}
+		} finally {
+			span.setTag(CustomerRouter.KEY_MOVED, moved);
+			span.finish();
+		}
+	}
+
+	/**
+	 * @return the number of customers that were changed while being moved, and must be moved again.
+	 */
+	private int movePass() throws IOException {
+		int leftBehind = 0;
+		Map<String, List<Customer>> chunks = new HashMap<>();
+		for (Customer customer : DataAccess.getAllCustomers()) {
+			if (!DataAccess.isOwned(customer.getId())) {
+				String owner = DataAccess.getShardRing().getNode(customer.getId());
+				List<Customer> chunk = chunks.computeIfAbsent(owner, (node) -> new ArrayList<>(TRANSFER_CHUNK_SIZE));
+				chunk.add(customer);
+				if (chunk.size() == TRANSFER_CHUNK_SIZE) {
+					leftBehind += transfer(owner, chunk);
+					chunk.clear();
+				}
+			}
+		}
+		for (Map.Entry<String, List<Customer>> entry : chunks.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				leftBehind += transfer(entry.getKey(), entry.getValue());
+			}
+		}
+		return leftBehind;
+	}
+
+	private int transfer(String owner, List<Customer> customers) throws IOException {
+		JsonArrayBuilder jsonCustomers = Json.createArrayBuilder();
+		customers.forEach((customer) -> jsonCustomers.add(customer.toJSon()));
+		String body = Json.createObjectBuilder().add(Customer.KEY_CUSTOMERS, jsonCustomers).build().toString();
+		Request request = new Request.Builder().url(owner + "/customers/transfer").put(RequestBody.create(JSON, body))
+				.build();
+		try (Response response = httpClient.newCall(request).execute()) {
+			if (!response.isSuccessful()) {
+				throw new IOException("Failed to move customers to " + owner + ": " + response.code());
+			}
+		}
+		int leftBehind = 0;
+		for (Customer customer : customers) {
+			if (DataAccess.removeCustomerIfUnchanged(customer)) {
+				moved++;
+			} else if (DataAccess.getCustomerById(customer.getId()) != null) {
+				leftBehind++;
+			}
+		}
+		return leftBehind;
+	}
+}
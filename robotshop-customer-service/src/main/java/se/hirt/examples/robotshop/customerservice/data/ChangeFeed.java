@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * An in-memory feed of the changes to the customers, kept in a ring buffer of the most recent
+ * changes.
+ * <p>
+ * Every change gets a sequence number, starting at 1. The writers claim a sequence with an atomic
+ * increment, and then publish the change in the slot of the sequence. Since the changes are
+ * published from within the compute of the customer id, the changes to a customer are always
+ * sequenced in the order they were applied. Readers find the change by its slot, and since the
+ * change carries its own sequence, they can tell a change that is not yet published from one that
+ * has already been overwritten by a later lap of the ring. Readers never block the writers; a
+ * reader that falls more than a full ring behind has to start over.
+ * 
+ * @author Marcus Hirt
+ */
+public final class ChangeFeed {
+	public enum ChangeType {
+		CREATED, UPDATED, DELETED
+	}
+
+	/**
+	 * A change to a customer.
+	 */
+	public final static class Change {
+		public final static String KEY_SEQUENCE = "sequence";
+		public final static String KEY_TYPE = "type";
+		public final static String KEY_CUSTOMER = "customer";
+		public final static String KEY_TIMESTAMP = "timestamp";
+
+		private final long sequence;
+		private final ChangeType type;
+		private final long customerId;
+		private final Customer customer;
+		private final long timestamp;
+
+		Change(long sequence, ChangeType type, long customerId, Customer customer, long timestamp) {
+			this.sequence = sequence;
+			this.type = type;
+			this.customerId = customerId;
+			this.customer = customer;
+			this.timestamp = timestamp;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public ChangeType getType() {
+			return type;
+		}
+
+		public long getCustomerId() {
+			return customerId;
+		}
+
+		/**
+		 * @return the customer after the change, or null if it was deleted.
+		 */
+		public Customer getCustomer() {
+			return customer;
+		}
+
+		/**
+		 * @return when the change was published, in milliseconds since the epoch.
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		public JsonObjectBuilder toJSon() {
+			JsonObjectBuilder builder = Json.createObjectBuilder();
+			builder.add(KEY_SEQUENCE, sequence);
+			builder.add(KEY_TYPE, type.name());
+			builder.add(Customer.KEY_CUSTOMER_ID, String.valueOf(customerId));
+			builder.add(KEY_TIMESTAMP, timestamp);
+			if (customer != null) {
+				builder.add(KEY_CUSTOMER, customer.toJSon());
+			}
+			return builder;
+		}
+	}
+
+	private final int mask;
+	private final AtomicReferenceArray<Change> ring;
+	private final AtomicLong lastClaimed = new AtomicLong();
+
+	// Only bother with the monitor if someone is waiting
+	private final AtomicInteger waiters = new AtomicInteger();
+	private final Object monitor = new Object();
+
+	/**
+	 * @param capacity
+	 *            the number of changes to keep. Rounded up to a power of two.
+	 */
+	public ChangeFeed(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		mask = size - 1;
+		ring = new AtomicReferenceArray<>(size);
+	}
+
+	/**
+	 * Publishes a change. Must be called from within the compute of the customer id.
+	 */
+	void publish(ChangeType type, long customerId, Customer customer) {
+		long sequence = lastClaimed.incrementAndGet();
+		int slot = (int) (sequence & mask);
+		// Don't lap a writer that has yet to publish - only happens if a writer stalls for a full ring
+		long previousSequence = sequence - ring.length();
+		while (!isPreviousLap(ring.get(slot), previousSequence)) {
+			Thread.yield();
+		}
+		ring.set(slot, new Change(sequence, type, customerId, customer, System.currentTimeMillis()));
+		if (waiters.get() > 0) {
+			synchronized (monitor) {
+				monitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the sequence of the last change claimed by a writer, which may not be published yet.
+	 */
+	public long getLastSequence() {
+		return lastClaimed.get();
+	}
+
+	/**
+	 * Reads published changes.
+	 * 
+	 * @param afterSequence
+	 *            read the changes after this sequence.
+	 * @param maxChanges
+	 *            the maximum number of changes to read.
+	 * @return the changes, in order, up to the first unpublished change. Null if the changes after
+	 *         the sequence have already been overwritten, or if the sequence is from the future
+	 *         (e.g. from before a restart), in which case the reader must start over.
+	 */
+	public List<Change> read(long afterSequence, int maxChanges) {
+		if (afterSequence < 0 || afterSequence > lastClaimed.get()) {
+			return null;
+		}
+		List<Change> changes = new ArrayList<>();
+		for (long sequence = afterSequence + 1; changes.size() < maxChanges; sequence++) {
+			Change change = ring.get((int) (sequence & mask));
+			if (change == null || change.getSequence() < sequence) {
+				// Not published yet
+				break;
+			}
+			if (change.getSequence() > sequence) {
+				return null;
+			}
+			changes.add(change);
+		}
+		return changes;
+	}
+
+	/**
+	 * Waits until the change after the sequence has been published.
+	 * 
+	 * @return true if the change after the sequence is available (or overwritten), false if the
+	 *         wait timed out.
+	 */
+	public boolean await(long afterSequence, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		waiters.incrementAndGet();
+		try {
+			synchronized (monitor) {
+				while (!isPublished(afterSequence + 1)) {
+					long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (remaining <= 0) {
+						return false;
+					}
+					monitor.wait(remaining);
+				}
+				return true;
+			}
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	private static boolean isPreviousLap(Change change, long previousSequence) {
+		if (previousSequence <= 0) {
+			return change == null;
+		}
+		return change != null && change.getSequence() == previousSequence;
+	}
+
+	private boolean isPublished(long sequence) {
+		Change change = ring.get((int) (sequence & mask));
+		return change != null && change.getSequence() >= sequence;
+	}
+}
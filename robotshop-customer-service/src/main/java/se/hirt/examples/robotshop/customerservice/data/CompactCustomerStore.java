@@ -0,0 +1,787 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * A customer store optimized for heap size, for when there are many millions of customers.
+ * <p>
+ * Rather than keeping a Customer object (with two strings and a boxed key) per customer, plus the
+ * map and index entries, the customers are kept in a set of parallel primitive arrays, indexed by
+ * slot:
+ * <ul>
+ * <li>The ids are found through an open addressing table of slots, keyed by the primitive id.</li>
+ * <li>The full names are deduplicated in a reference counted pool of UTF-8 bytes. The name index
+ * is a chain of slots per pooled name.</li>
+ * <li>The phone numbers are packed four bits per character into two longs, which fits all phone
+ * numbers of up to 32 digits and separators. Anything else is kept as a string on the side. The
+ * phone index is a hash table of slot chains.</li>
+ * <li>The ids are also kept in order, in a list of sorted chunks of primitive ids, for paging.
+ * That is another 8 to 16 bytes per customer, depending on how full the chunks are.</li>
+ * </ul>
+ * With a million customers, that comes to about 100 bytes per customer including the pooled
+ * names, compared to over 600 bytes for the {@link ConcurrentCustomerStore}. The Customer objects
+ * are materialized when read.
+ * <p>
+ * All writes are serialized by a {@link StampedLock}. The point lookups are optimistic, and only
+ * take the read lock if a write got in the way. So are the pages, which are looked up in the
+ * ordered ids, and cost in proportion to the size of the page rather than the number of customers.
+ * 
+ * @author Marcus Hirt
+ */
+final class CompactCustomerStore implements CustomerStore {
+	private final static int INITIAL_CAPACITY = 1024;
+	private final static int NO_SLOT = -1;
+	// Id table entries are slot + 1, so that the zero filled table is empty
+	private final static int EMPTY = 0;
+	private final static int TOMBSTONE = -1;
+	// Never produced by packing - a terminating zero nibble followed by more characters
+	private final static long UNPACKABLE = 0x0FFFFFFFFFFFFFFFL;
+	private final static String PHONE_ALPHABET = "0123456789+-() ";
+	private final static int PACKED_PHONE_MAX_LENGTH = 32;
+	// Number of customers to materialize per read lock when iterating
+	private final static int ITERATION_CHUNK_SIZE = 1024;
+
+	private final StampedLock lock = new StampedLock();
+
+	// The customer columns, by slot. A free slot has no name, and is linked through nextByName.
+	private long[] ids;
+	private int[] names;
+	private long[] phonesHigh;
+	private long[] phonesLow;
+	private int[] nextByName;
+	private int[] nextByPhone;
+	// Concurrent, since it is read under optimistic stamps
+	private final Map<Integer, String> unpackablePhones = new ConcurrentHashMap<>();
+	private int slotsUsed;
+	private int freeSlots = NO_SLOT;
+	private int size;
+
+	private int[] idTable;
+	private int idTableUsed;
+
+	private int[] phoneHeads;
+
+	private final NamePool namePool = new NamePool();
+	private final IdIndex idIndex = new IdIndex();
+
+	CompactCustomerStore() {
+		allocateSlots(INITIAL_CAPACITY);
+		idTable = new int[INITIAL_CAPACITY * 2];
+	}
+
+	@Override
+	public Customer get(long id) {
+		return read(() -> {
+			int slot = findSlot(id);
+			return slot == NO_SLOT ? null : materialize(slot);
+		});
+	}
+
+	@Override
+	public Customer compute(long id, UnaryOperator<Customer> function) {
+		long stamp = lock.writeLock();
+		try {
+			int slot = findSlot(id);
+			Customer before = slot == NO_SLOT ? null : materialize(slot);
+			Customer after = function.apply(before);
+			if (after == before) {
+				return after;
+			}
+			if (before != null) {
+				freeSlot(slot);
+			}
+			if (after != null) {
+				occupySlot(after);
+			}
+			return after;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public List<Customer> getByName(String fullName) {
+		byte[] nameBytes = fullName.getBytes(StandardCharsets.UTF_8);
+		return read(() -> {
+			int name = namePool.find(nameBytes);
+			if (name == NO_SLOT) {
+				return Collections.emptyList();
+			}
+			List<Customer> result = new ArrayList<>();
+			// Chains are bounded by the number of slots, in case an optimistic read sees a torn chain
+			for (int slot = namePool.heads[name], n = 0; slot != NO_SLOT && n < slotsUsed; slot = nextByName[slot], n++) {
+				result.add(materialize(slot));
+			}
+			return result;
+		});
+	}
+
+	@Override
+	public List<Customer> getByPhone(String phoneNumber) {
+		long high = packHigh(phoneNumber);
+		long low = packLow(phoneNumber);
+		return read(() -> {
+			List<Customer> result = new ArrayList<>();
+			int head = phoneHeads[phoneHash(high, low, phoneNumber) & (phoneHeads.length - 1)];
+			for (int slot = head, n = 0; slot != NO_SLOT && n < slotsUsed; slot = nextByPhone[slot], n++) {
+				if (phonesHigh[slot] == high && phonesLow[slot] == low
+						&& (high != UNPACKABLE || phoneNumber.equals(unpackablePhones.get(slot)))) {
+					result.add(materialize(slot));
+				}
+			}
+			return result;
+		});
+	}
+
+	/**
+	 * Looks up the ids after the given one in the ordered ids, and materializes them. Optimistic,
+	 * like the point lookups, so the page is still a point-in-time snapshot.
+	 */
+	@Override
+	public List<Customer> getPage(Long afterId, int limit) {
+		return read(() -> {
+			long[] pageIds = new long[Math.max(0, Math.min(limit, size))];
+			int count = idIndex.collect(afterId, pageIds);
+			List<Customer> page = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				page.add(materialize(findSlot(pageIds[i])));
+			}
+			return page;
+		});
+	}
+
+	/**
+	 * Materializes the customers a chunk at a time, each chunk under the read lock.
+	 */
+	@Override
+	public Iterable<Customer> getAll() {
+		return () -> new Iterator<Customer>() {
+			private int nextSlot;
+			private Iterator<Customer> chunk = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!chunk.hasNext()) {
+					if (!fetchChunk()) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public Customer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return chunk.next();
+			}
+
+			private boolean fetchChunk() {
+				long stamp = lock.readLock();
+				try {
+					if (nextSlot >= slotsUsed) {
+						return false;
+					}
+					List<Customer> customers = new ArrayList<>(ITERATION_CHUNK_SIZE);
+					while (nextSlot < slotsUsed && customers.size() < ITERATION_CHUNK_SIZE) {
+						if (names[nextSlot] != NO_SLOT) {
+							customers.add(materialize(nextSlot));
+						}
+						nextSlot++;
+					}
+					chunk = customers.iterator();
+					return true;
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		long stamp = lock.tryOptimisticRead();
+		int currentSize = size;
+		if (!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				currentSize = size;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return currentSize;
+	}
+
+	/*
+	 * Runs the reader optimistically, and again under the read lock if there was a concurrent
+	 * write. An optimistic read may see anything, so any exception is taken as a failed read.
+	 */
+	private <T> T read(Supplier<T> reader) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				T result = reader.get();
+				if (lock.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (lock.validate(stamp)) {
+					throw e;
+				}
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return reader.get();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private Customer materialize(int slot) {
+		String phoneNumber = phonesHigh[slot] == UNPACKABLE ? unpackablePhones.get(slot)
+				: unpack(phonesHigh[slot], phonesLow[slot]);
+		return new Customer(ids[slot], namePool.get(names[slot]), phoneNumber);
+	}
+
+	private int findSlot(long id) {
+		int[] table = idTable;
+		int mask = table.length - 1;
+		int index = hash(id) & mask;
+		for (int probes = 0; probes < table.length; probes++) {
+			int entry = table[index];
+			if (entry == EMPTY) {
+				return NO_SLOT;
+			}
+			if (entry != TOMBSTONE && ids[entry - 1] == id) {
+				return entry - 1;
+			}
+			index = (index + 1) & mask;
+		}
+		return NO_SLOT;
+	}
+
+	/*
+	 * Write lock must be held.
+	 */
+	private void occupySlot(Customer customer) {
+		if (freeSlots == NO_SLOT && slotsUsed == ids.length) {
+			allocateSlots(ids.length * 2);
+		}
+		if ((idTableUsed + 1) * 2 > idTable.length) {
+			// Rehashing also drops the tombstones, so only grow if there are many live entries
+			rehashIds(size * 4 > idTable.length ? idTable.length * 2 : idTable.length);
+		}
+		int slot;
+		if (freeSlots != NO_SLOT) {
+			slot = freeSlots;
+			freeSlots = nextByName[slot];
+		} else {
+			slot = slotsUsed++;
+		}
+		ids[slot] = customer.getId();
+
+		int name = namePool.acquire(customer.getFullName().getBytes(StandardCharsets.UTF_8));
+		names[slot] = name;
+		nextByName[slot] = namePool.heads[name];
+		namePool.heads[name] = slot;
+
+		String phoneNumber = customer.getPhoneNumber();
+		phonesHigh[slot] = packHigh(phoneNumber);
+		phonesLow[slot] = packLow(phoneNumber);
+		if (phonesHigh[slot] == UNPACKABLE) {
+			unpackablePhones.put(slot, phoneNumber);
+		}
+		int bucket = phoneHash(phonesHigh[slot], phonesLow[slot], phoneNumber) & (phoneHeads.length - 1);
+		nextByPhone[slot] = phoneHeads[bucket];
+		phoneHeads[bucket] = slot;
+
+		insertId(customer.getId(), slot);
+		idIndex.add(customer.getId());
+		size++;
+	}
+
+	/*
+	 * Write lock must be held.
+	 */
+	private void freeSlot(int slot) {
+		removeId(ids[slot]);
+		idIndex.remove(ids[slot]);
+
+		int name = names[slot];
+		namePool.heads[name] = unlink(namePool.heads[name], slot, nextByName);
+		namePool.release(name);
+
+		String phoneNumber = phonesHigh[slot] == UNPACKABLE ? unpackablePhones.remove(slot) : null;
+		int bucket = phoneHash(phonesHigh[slot], phonesLow[slot], phoneNumber) & (phoneHeads.length - 1);
+		phoneHeads[bucket] = unlink(phoneHeads[bucket], slot, nextByPhone);
+
+		names[slot] = NO_SLOT;
+		nextByName[slot] = freeSlots;
+		freeSlots = slot;
+		size--;
+	}
+
+	/*
+	 * Removes the slot from the chain, returning the new head.
+	 */
+	private static int unlink(int head, int slot, int[] next) {
+		if (head == slot) {
+			return next[slot];
+		}
+		for (int previous = head; previous != NO_SLOT; previous = next[previous]) {
+			if (next[previous] == slot) {
+				next[previous] = next[slot];
+				break;
+			}
+		}
+		return head;
+	}
+
+	/*
+	 * The caller makes sure that there is room in the table.
+	 */
+	private void insertId(long id, int slot) {
+		int mask = idTable.length - 1;
+		int index = hash(id) & mask;
+		while (idTable[index] != EMPTY && idTable[index] != TOMBSTONE) {
+			index = (index + 1) & mask;
+		}
+		if (idTable[index] == EMPTY) {
+			idTableUsed++;
+		}
+		idTable[index] = slot + 1;
+	}
+
+	private void removeId(long id) {
+		int mask = idTable.length - 1;
+		int index = hash(id) & mask;
+		while (idTable[index] != EMPTY) {
+			int entry = idTable[index];
+			if (entry != TOMBSTONE && ids[entry - 1] == id) {
+				idTable[index] = TOMBSTONE;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private void rehashIds(int capacity) {
+		int[] table = new int[capacity];
+		int mask = capacity - 1;
+		for (int slot = 0; slot < slotsUsed; slot++) {
+			if (names[slot] != NO_SLOT) {
+				int index = hash(ids[slot]) & mask;
+				while (table[index] != EMPTY) {
+					index = (index + 1) & mask;
+				}
+				table[index] = slot + 1;
+			}
+		}
+		idTable = table;
+		idTableUsed = size;
+	}
+
+	private void allocateSlots(int capacity) {
+		int oldCapacity = ids == null ? 0 : ids.length;
+		ids = ids == null ? new long[capacity] : Arrays.copyOf(ids, capacity);
+		names = names == null ? new int[capacity] : Arrays.copyOf(names, capacity);
+		Arrays.fill(names, oldCapacity, capacity, NO_SLOT);
+		phonesHigh = phonesHigh == null ? new long[capacity] : Arrays.copyOf(phonesHigh, capacity);
+		phonesLow = phonesLow == null ? new long[capacity] : Arrays.copyOf(phonesLow, capacity);
+		nextByName = nextByName == null ? new int[capacity] : Arrays.copyOf(nextByName, capacity);
+		nextByPhone = nextByPhone == null ? new int[capacity] : Arrays.copyOf(nextByPhone, capacity);
+
+		// One phone bucket per slot - rechain everything
+		int[] heads = new int[capacity];
+		Arrays.fill(heads, NO_SLOT);
+		for (int slot = 0; slot < slotsUsed; slot++) {
+			if (names[slot] != NO_SLOT) {
+				String phoneNumber = phonesHigh[slot] == UNPACKABLE ? unpackablePhones.get(slot) : null;
+				int bucket = phoneHash(phonesHigh[slot], phonesLow[slot], phoneNumber) & (capacity - 1);
+				nextByPhone[slot] = heads[bucket];
+				heads[bucket] = slot;
+			}
+		}
+		phoneHeads = heads;
+	}
+
+	private static int hash(long value) {
+		long h = value * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static int phoneHash(long high, long low, String phoneNumber) {
+		if (high == UNPACKABLE) {
+			return hash(phoneNumber.hashCode());
+		}
+		return hash(high ^ Long.rotateLeft(low, 29));
+	}
+
+	private static long packHigh(String phoneNumber) {
+		if (!isPackable(phoneNumber)) {
+			return UNPACKABLE;
+		}
+		return pack(phoneNumber, 0);
+	}
+
+	private static long packLow(String phoneNumber) {
+		if (!isPackable(phoneNumber)) {
+			return 0;
+		}
+		return pack(phoneNumber, 16);
+	}
+
+	private static boolean isPackable(String phoneNumber) {
+		if (phoneNumber.length() > PACKED_PHONE_MAX_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < phoneNumber.length(); i++) {
+			if (PHONE_ALPHABET.indexOf(phoneNumber.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Packs 16 characters starting at the offset, first character in the highest nibble. Zero
+	 * nibbles terminate the string.
+	 */
+	private static long pack(String phoneNumber, int offset) {
+		long packed = 0;
+		for (int i = 0; i < 16; i++) {
+			int index = offset + i;
+			long code = index < phoneNumber.length() ? PHONE_ALPHABET.indexOf(phoneNumber.charAt(index)) + 1 : 0;
+			packed |= code << (60 - i * 4);
+		}
+		return packed;
+	}
+
+	private static String unpack(long high, long low) {
+		StringBuilder builder = new StringBuilder(PACKED_PHONE_MAX_LENGTH);
+		for (long packed : new long[] {high, low}) {
+			for (int i = 0; i < 16; i++) {
+				int code = (int) ((packed >>> (60 - i * 4)) & 0xF);
+				if (code == 0) {
+					return builder.toString();
+				}
+				builder.append(PHONE_ALPHABET.charAt(code - 1));
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Reference counted, deduplicated full names. Doubles as the name index, by keeping the head
+	 * of the chain of slots with the name. Guarded by the lock of the store.
+	 */
+	private final static class NamePool {
+		private byte[][] bytes = new byte[INITIAL_CAPACITY][];
+		private int[] hashes = new int[INITIAL_CAPACITY];
+		private int[] referenceCounts = new int[INITIAL_CAPACITY];
+		// Head slot per name, or the next free name for the free names
+		private int[] heads = new int[INITIAL_CAPACITY];
+		private int namesUsed;
+		private int freeNames = NO_SLOT;
+		private int size;
+
+		// Name + 1, same encoding as the id table
+		private int[] table = new int[INITIAL_CAPACITY * 2];
+		private int tableUsed;
+
+		String get(int name) {
+			return new String(bytes[name], StandardCharsets.UTF_8);
+		}
+
+		int find(byte[] nameBytes) {
+			int[] currentTable = table;
+			int mask = currentTable.length - 1;
+			int hash = Arrays.hashCode(nameBytes);
+			int index = hash(hash) & mask;
+			for (int probes = 0; probes < currentTable.length; probes++) {
+				int entry = currentTable[index];
+				if (entry == EMPTY) {
+					return NO_SLOT;
+				}
+				if (entry != TOMBSTONE && hashes[entry - 1] == hash && Arrays.equals(bytes[entry - 1], nameBytes)) {
+					return entry - 1;
+				}
+				index = (index + 1) & mask;
+			}
+			return NO_SLOT;
+		}
+
+		int acquire(byte[] nameBytes) {
+			int name = find(nameBytes);
+			if (name != NO_SLOT) {
+				referenceCounts[name]++;
+				return name;
+			}
+			if ((tableUsed + 1) * 2 > table.length) {
+				rehash(size * 4 > table.length ? table.length * 2 : table.length);
+			}
+			if (freeNames != NO_SLOT) {
+				name = freeNames;
+				freeNames = heads[name];
+			} else {
+				if (namesUsed == bytes.length) {
+					int capacity = bytes.length * 2;
+					bytes = Arrays.copyOf(bytes, capacity);
+					hashes = Arrays.copyOf(hashes, capacity);
+					referenceCounts = Arrays.copyOf(referenceCounts, capacity);
+					heads = Arrays.copyOf(heads, capacity);
+				}
+				name = namesUsed++;
+			}
+			bytes[name] = nameBytes;
+			hashes[name] = Arrays.hashCode(nameBytes);
+			referenceCounts[name] = 1;
+			heads[name] = NO_SLOT;
+			insert(name);
+			size++;
+			return name;
+		}
+
+		void release(int name) {
+			if (--referenceCounts[name] > 0) {
+				return;
+			}
+			int mask = table.length - 1;
+			int index = hash(hashes[name]) & mask;
+			while (table[index] != name + 1) {
+				index = (index + 1) & mask;
+			}
+			table[index] = TOMBSTONE;
+			bytes[name] = null;
+			heads[name] = freeNames;
+			freeNames = name;
+			size--;
+		}
+
+		private void insert(int name) {
+			int mask = table.length - 1;
+			int index = hash(hashes[name]) & mask;
+			while (table[index] != EMPTY && table[index] != TOMBSTONE) {
+				index = (index + 1) & mask;
+			}
+			if (table[index] == EMPTY) {
+				tableUsed++;
+			}
+			table[index] = name + 1;
+		}
+
+		private void rehash(int capacity) {
+			int[] newTable = new int[capacity];
+			int mask = capacity - 1;
+			for (int name = 0; name < namesUsed; name++) {
+				if (bytes[name] != null) {
+					int index = hash(hashes[name]) & mask;
+					while (newTable[index] != EMPTY) {
+						index = (index + 1) & mask;
+					}
+					newTable[index] = name + 1;
+				}
+			}
+			table = newTable;
+			tableUsed = size;
+		}
+	}
+
+	/**
+	 * The ids in order, as a list of sorted chunks. Inserting or removing an id shifts at most a
+	 * chunk, and since the ids are mostly increasing, most inserts just append to the last chunk.
+	 * Guarded by the lock of the store.
+	 */
+	private final static class IdIndex {
+		private final static int CHUNK_SIZE = 1024;
+
+		// Never empty chunks, ordered by their first id
+		private long[][] chunks = new long[16][];
+		private int[] sizes = new int[16];
+		private int chunkCount;
+
+		void add(long id) {
+			if (chunkCount == 0) {
+				insertChunk(0, id);
+				return;
+			}
+			int chunk = findChunk(id);
+			int index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], id);
+			if (index >= 0) {
+				return;
+			}
+			index = -index - 1;
+			if (sizes[chunk] == CHUNK_SIZE) {
+				if (chunk == chunkCount - 1 && index == CHUNK_SIZE) {
+					// Appending - start a new chunk rather than leaving two half full ones
+					insertChunk(chunkCount, id);
+					return;
+				}
+				split(chunk);
+				if (index > sizes[chunk]) {
+					index -= sizes[chunk];
+					chunk++;
+				}
+			}
+			long[] ids = chunks[chunk];
+			System.arraycopy(ids, index, ids, index + 1, sizes[chunk] - index);
+			ids[index] = id;
+			sizes[chunk]++;
+		}
+
+		void remove(long id) {
+			if (chunkCount == 0) {
+				return;
+			}
+			int chunk = findChunk(id);
+			int index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], id);
+			if (index < 0) {
+				return;
+			}
+			long[] ids = chunks[chunk];
+			System.arraycopy(ids, index + 1, ids, index, sizes[chunk] - index - 1);
+			if (--sizes[chunk] == 0) {
+				removeChunk(chunk);
+			} else if (sizes[chunk] < CHUNK_SIZE / 4) {
+				// Merge sparse chunks with a neighbour, so that deletes do not leave mostly empty chunks
+				if (chunk + 1 < chunkCount && sizes[chunk] + sizes[chunk + 1] <= CHUNK_SIZE) {
+					merge(chunk);
+				} else if (chunk > 0 && sizes[chunk - 1] + sizes[chunk] <= CHUNK_SIZE) {
+					merge(chunk - 1);
+				}
+			}
+		}
+
+		/**
+		 * Fills the array with the ids after the given one (or the first ids, if null), returning
+		 * how many there were. May be called optimistically - every step moves forward, so a torn
+		 * read still terminates.
+		 */
+		int collect(Long afterId, long[] result) {
+			if (chunkCount == 0) {
+				return 0;
+			}
+			int chunk = 0;
+			int index = 0;
+			if (afterId != null) {
+				chunk = findChunk(afterId);
+				index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], afterId);
+				index = index >= 0 ? index + 1 : -index - 1;
+			}
+			int count = 0;
+			while (count < result.length && chunk < chunkCount) {
+				if (index >= sizes[chunk]) {
+					chunk++;
+					index = 0;
+				} else {
+					result[count++] = chunks[chunk][index++];
+				}
+			}
+			return count;
+		}
+
+		/*
+		 * The last chunk starting at or before the id, or the first chunk.
+		 */
+		private int findChunk(long id) {
+			int low = 0;
+			int high = chunkCount - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (chunks[middle][0] <= id) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+
+		private void insertChunk(int chunk, long firstId) {
+			if (chunkCount == chunks.length) {
+				chunks = Arrays.copyOf(chunks, chunkCount * 2);
+				sizes = Arrays.copyOf(sizes, chunkCount * 2);
+			}
+			System.arraycopy(chunks, chunk, chunks, chunk + 1, chunkCount - chunk);
+			System.arraycopy(sizes, chunk, sizes, chunk + 1, chunkCount - chunk);
+			chunks[chunk] = new long[CHUNK_SIZE];
+			chunks[chunk][0] = firstId;
+			sizes[chunk] = 1;
+			chunkCount++;
+		}
+
+		private void removeChunk(int chunk) {
+			System.arraycopy(chunks, chunk + 1, chunks, chunk, chunkCount - chunk - 1);
+			System.arraycopy(sizes, chunk + 1, sizes, chunk, chunkCount - chunk - 1);
+			chunks[--chunkCount] = null;
+		}
+
+		/*
+		 * Moves the upper half of the full chunk into a new chunk after it.
+		 */
+		private void split(int chunk) {
+			int half = CHUNK_SIZE / 2;
+			long[] ids = chunks[chunk];
+			insertChunk(chunk + 1, ids[half]);
+			System.arraycopy(ids, half, chunks[chunk + 1], 0, CHUNK_SIZE - half);
+			sizes[chunk + 1] = CHUNK_SIZE - half;
+			sizes[chunk] = half;
+		}
+
+		/*
+		 * Appends the next chunk to the given one, and removes it.
+		 */
+		private void merge(int chunk) {
+			System.arraycopy(chunks[chunk + 1], 0, chunks[chunk], sizes[chunk], sizes[chunk + 1]);
+			sizes[chunk] += sizes[chunk + 1];
+			removeChunk(chunk + 1);
+		}
+	}
+}
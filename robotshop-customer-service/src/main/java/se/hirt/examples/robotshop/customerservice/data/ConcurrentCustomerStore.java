@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * The default customer store, optimized for concurrency.
+ * <p>
+ * Reads never block. Writes are serialized per customer id only, by doing all the index
+ * maintenance inside the (bin-locked) compute of the customer map. Since a customer is published
+ * in the customer map only after its index entries have been updated, the index lookups validate
+ * their hits against the customer map, so that the indexes always appear consistent to readers.
+ * <p>
+ * Pages of customers are read from an ordered index, and validated seqlock style against the
+ * number of started and completed writes, so that a page is a point-in-time snapshot without ever
+ * making the writers wait. The write counters are striped, so that they are only summed by the
+ * (rare) page reads, and the writers do not contend on them.
+ * 
+ * @author Marcus Hirt
+ */
+final class ConcurrentCustomerStore implements CustomerStore {
+	// Number of attempts to get a page without any concurrent writes, before giving up on the snapshot
+	private final static int MAX_SNAPSHOT_ATTEMPTS = 16;
+
+	private final ConcurrentMap<Long, Customer> customers = new ConcurrentHashMap<>();
+	private final CustomerIndex indexByName = CustomerIndex.of("name", Customer::getFullName);
+	private final CustomerIndex indexByPhone = CustomerIndex.of("phone", Customer::getPhoneNumber);
+	private final List<CustomerIndex> indexes = Arrays.asList(indexByName, indexByPhone);
+	private final ConcurrentNavigableMap<Long, Customer> orderedById = new ConcurrentSkipListMap<>();
+
+	private final LongAdder writesStarted = new LongAdder();
+	private final LongAdder writesCompleted = new LongAdder();
+
+	@Override
+	public Customer get(long id) {
+		return customers.get(id);
+	}
+
+	@Override
+	public Customer compute(long id, UnaryOperator<Customer> function) {
+		writesStarted.increment();
+		try {
+			return customers.compute(id, (key, before) -> {
+				Customer after = function.apply(before);
+				if (after != before) {
+					reindex(before, after);
+				}
+				return after;
+			});
+		} finally {
+			writesCompleted.increment();
+		}
+	}
+
+	/*
+	 * Must only be called from within the compute of the customer id.
+	 */
+	private void reindex(Customer before, Customer after) {
+		if (before == null) {
+			for (CustomerIndex index : indexes) {
+				index.add(after);
+			}
+			orderedById.put(after.getId(), after);
+		} else if (after == null) {
+			for (CustomerIndex index : indexes) {
+				index.remove(before);
+			}
+			orderedById.remove(before.getId());
+		} else {
+			for (CustomerIndex index : indexes) {
+				index.update(before, after);
+			}
+			orderedById.put(after.getId(), after);
+		}
+	}
+
+	@Override
+	public List<Customer> getByName(String fullName) {
+		return lookup(indexByName, fullName);
+	}
+
+	@Override
+	public List<Customer> getByPhone(String phoneNumber) {
+		return lookup(indexByPhone, phoneNumber);
+	}
+
+	/*
+	 * Index entries are written before the customer is published, so only trust an index hit if
+	 * the currently published version of the customer still has the key.
+	 */
+	private List<Customer> lookup(CustomerIndex index, String key) {
+		List<Customer> result = new ArrayList<>();
+		for (Long id : index.lookup(key)) {
+			Customer customer = customers.get(id);
+			if (customer != null && index.matches(customer, key)) {
+				result.add(customer);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * The page is a point-in-time snapshot, unless the writes are so frequent that no snapshot
+	 * could be taken in {@value #MAX_SNAPSHOT_ATTEMPTS} attempts, in which case the page is weakly
+	 * consistent.
+	 */
+	@Override
+	public List<Customer> getPage(Long afterId, int limit) {
+		for (int i = 0; i < MAX_SNAPSHOT_ATTEMPTS; i++) {
+			// The sums are not atomic, but the counters only ever grow and completed never exceeds
+			// started, so summing completed first can only give equal sums if no write was in flight
+			long completed = writesCompleted.sum();
+			if (writesStarted.sum() != completed) {
+				// Writes in flight
+				Thread.yield();
+				continue;
+			}
+			List<Customer> page = collectPage(afterId, limit);
+			if (writesStarted.sum() == completed) {
+				return page;
+			}
+		}
+		return collectPage(afterId, limit);
+	}
+
+	private List<Customer> collectPage(Long afterId, int limit) {
+		Collection<Customer> tail = (afterId == null) ? orderedById.values()
+				: orderedById.tailMap(afterId, false).values();
+		List<Customer> page = new ArrayList<>(Math.min(limit, 1024));
+		for (Customer customer : tail) {
+			if (page.size() >= limit) {
+				break;
+			}
+			page.add(customer);
+		}
+		return page;
+	}
+
+	@Override
+	public Iterable<Customer> getAll() {
+		return customers.values();
+	}
+
+	@Override
+	public int size() {
+		return customers.size();
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * A declarative, multi-valued secondary index over customers. Any number of customers may share
+ * a key, and a customer may have any number of keys. The index only stores customer ids, and
+ * lookups must be validated against the primary storage, see {@link #matches(Customer, String)}.
+ * <p>
+ * All modifications for a certain customer must be done by the thread owning the customer id
+ * (i.e. from within the compute of the primary storage), so that the operations for a customer
+ * are always applied in order. Lookups never block.
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerIndex {
+	private final String name;
+	private final Function<Customer, Collection<String>> keyExtractor;
+	private final ConcurrentMap<String, Set<Long>> entries = new ConcurrentHashMap<>();
+
+	private CustomerIndex(String name, Function<Customer, Collection<String>> keyExtractor) {
+		this.name = name;
+		this.keyExtractor = keyExtractor;
+	}
+
+	/**
+	 * Creates an index where each customer has exactly one key.
+	 * 
+	 * @param name
+	 *            the name of the index.
+	 * @param keyExtractor
+	 *            function extracting the key from the customer. Null keys are not indexed.
+	 * @return the new index.
+	 */
+	public static CustomerIndex of(String name, Function<Customer, String> keyExtractor) {
+		return new CustomerIndex(name, (customer) -> {
+			String key = keyExtractor.apply(customer);
+			return key == null ? Collections.emptySet() : Collections.singleton(key);
+		});
+	}
+
+	/**
+	 * Creates an index where each customer can have any number of keys.
+	 * 
+	 * @param name
+	 *            the name of the index.
+	 * @param keysExtractor
+	 *            function extracting the keys from the customer.
+	 * @return the new index.
+	 */
+	public static CustomerIndex ofMany(String name, Function<Customer, Collection<String>> keysExtractor) {
+		return new CustomerIndex(name, keysExtractor);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	void add(Customer customer) {
+		for (String key : keyExtractor.apply(customer)) {
+			addEntry(key, customer.getId());
+		}
+	}
+
+	void remove(Customer customer) {
+		for (String key : keyExtractor.apply(customer)) {
+			removeEntry(key, customer.getId());
+		}
+	}
+
+	/**
+	 * Moves the customer from the keys of the old version, to the keys of the new version, only
+	 * touching the keys that actually changed.
+	 */
+	void update(Customer before, Customer after) {
+		Collection<String> oldKeys = keyExtractor.apply(before);
+		Collection<String> newKeys = keyExtractor.apply(after);
+		for (String key : oldKeys) {
+			if (!newKeys.contains(key)) {
+				removeEntry(key, before.getId());
+			}
+		}
+		for (String key : newKeys) {
+			if (!oldKeys.contains(key)) {
+				addEntry(key, after.getId());
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key to look up.
+	 * @return a weakly consistent view of the ids of the customers indexed under the key. May
+	 *         contain ids for customers being modified, so validate with
+	 *         {@link #matches(Customer, String)}.
+	 */
+	public Set<Long> lookup(String key) {
+		Set<Long> ids = entries.get(key);
+		return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+	}
+
+	/**
+	 * @return true if the customer currently has the key in this index.
+	 */
+	public boolean matches(Customer customer, String key) {
+		return keyExtractor.apply(customer).contains(key);
+	}
+
+	/**
+	 * @return the number of distinct keys in the index.
+	 */
+	public int getNumberOfKeys() {
+		return entries.size();
+	}
+
+	private void addEntry(String key, long id) {
+		// Done in compute, so that an empty set can never be removed while we add to it
+		entries.compute(key, (k, ids) -> {
+			if (ids == null) {
+				ids = ConcurrentHashMap.newKeySet(2);
+			}
+			ids.add(id);
+			return ids;
+		});
+	}
+
+	private void removeEntry(String key, long id) {
+		// Empty sets are dropped, so that churn does not leak keys
+		entries.computeIfPresent(key, (k, ids) -> {
+			ids.remove(id);
+			return ids.isEmpty() ? null : ids;
+		});
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.data.ValidationException;
+
+/**
+ * Bulk loads customers from a local CSV or NDJSON file, e.g. to seed a performance test
+ * environment with millions of customers without going through HTTP.
+ * <p>
+ * The file is split into line aligned chunks, which are memory mapped and parsed in parallel, and
+ * loaded into the {@link DataAccess} in batches, see {@link DataAccess#loadCustomers(List)}. The CSV may have a header naming the columns
+ * (customerId, fullName and phoneNumber). Without a header, two columns are taken to be the full
+ * name and the phone number, and three columns the id, the full name and the phone number. Fields
+ * may be quoted with double quotes. NDJSON files (*.ndjson or *.json) use the format of
+ * /customers/export. Customers with ids keep them, the others get new ids. If this instance is a
+ * shard, the customers with ids owned by other shards are skipped, so the same file can seed all
+ * the shards.
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerSeeder {
+	private final static int BATCH_SIZE = 1024;
+	private final static long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+	private final static int MAX_REPORTED_ERRORS = 10;
+	private final static int NO_COLUMN = -1;
+	private final static long NO_ID = -1;
+
+	private final File file;
+	private final boolean isJSon;
+	private final AtomicLong loaded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	// CSV column indexes
+	private int idColumn = NO_COLUMN;
+	private int nameColumn = 0;
+	private int phoneColumn = 1;
+	private long dataStart;
+
+	private CustomerSeeder(File file) {
+		this.file = file;
+		String name = file.getName().toLowerCase();
+		this.isJSon = name.endsWith(".ndjson") || name.endsWith(".json");
+	}
+
+	/**
+	 * Loads the customers in the file into the {@link DataAccess}.
+	 * 
+	 * @param file
+	 *            the CSV or NDJSON file to load.
+	 * @return the number of customers loaded.
+	 * @throws IOException
+	 *             if the file could not be read.
+	 */
+	public static long seed(File file) throws IOException {
+		CustomerSeeder seeder = new CustomerSeeder(file);
+		seeder.load();
+		if (seeder.failed.get() > 0) {
+			System.err.println("Failed to parse " + seeder.failed.get() + " lines of " + file);
+		}
+		if (seeder.skipped.get() > 0) {
+			System.out.println("Skipped " + seeder.skipped.get() + " customers in " + file + " owned by other shards");
+		}
+		return seeder.loaded.get();
+	}
+
+	private void load() throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (!isJSon) {
+				readCsvHeader(channel);
+			}
+			long[] boundaries = findChunkBoundaries(channel);
+			IntStream.range(0, boundaries.length - 1).parallel().forEach((chunk) -> {
+				try {
+					long start = boundaries[chunk];
+					long end = boundaries[chunk + 1];
+					if (end > start) {
+						loadChunk(channel.map(MapMode.READ_ONLY, start, end - start));
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException("Failed to map " + file, e);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Splits the file into chunks of whole lines, about one per core, but no larger than can be
+	 * mapped in one go.
+	 */
+	private long[] findChunkBoundaries(FileChannel channel) throws IOException {
+		long size = channel.size() - dataStart;
+		int chunks = (int) Math.max(Runtime.getRuntime().availableProcessors() * 4L,
+				(size + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		long chunkSize = Math.max(1, size / chunks);
+		List<Long> boundaries = new ArrayList<>();
+		boundaries.add(dataStart);
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long position = dataStart + chunkSize;
+		while (position < channel.size()) {
+			long lineEnd = findNextLineStart(channel, position, buffer);
+			if (lineEnd - boundaries.get(boundaries.size() - 1) > Integer.MAX_VALUE) {
+				throw new IOException("Lines too long to map in " + file);
+			}
+			boundaries.add(lineEnd);
+			position = Math.max(lineEnd, position + chunkSize);
+		}
+		if (boundaries.get(boundaries.size() - 1) < channel.size()) {
+			boundaries.add(channel.size());
+		}
+		return boundaries.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/*
+	 * @return the position after the next newline at or after the position, or the end of the
+	 * file.
+	 */
+	private static long findNextLineStart(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		long current = position;
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, current);
+			if (read <= 0) {
+				return channel.size();
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return current + i + 1;
+				}
+			}
+			current += read;
+		}
+	}
+
+	private void readCsvHeader(FileChannel channel) throws IOException {
+		long firstLineEnd = findNextLineStart(channel, 0, ByteBuffer.allocate(8192));
+		ByteBuffer firstLine = ByteBuffer.allocate((int) Math.min(firstLineEnd, 64 * 1024));
+		channel.read(firstLine, 0);
+		List<String> columns = parseCsvLine(firstLine.array(), trimLineEnd(firstLine.array(), firstLine.position()),
+				new ArrayList<>());
+		if (columns.contains(Customer.KEY_FULL_NAME) && columns.contains(Customer.KEY_PHONE_NUMBER)) {
+			idColumn = columns.indexOf(Customer.KEY_CUSTOMER_ID);
+			nameColumn = columns.indexOf(Customer.KEY_FULL_NAME);
+			phoneColumn = columns.indexOf(Customer.KEY_PHONE_NUMBER);
+			dataStart = firstLineEnd;
+		} else if (columns.size() >= 3) {
+			idColumn = 0;
+			nameColumn = 1;
+			phoneColumn = 2;
+		}
+	}
+
+	private void loadChunk(MappedByteBuffer buffer) {
+		Batch batch = new Batch();
+		List<String> fields = new ArrayList<>(4);
+		byte[] line = new byte[256];
+		int limit = buffer.limit();
+		int lineStart = 0;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+				lineEnd++;
+			}
+			int length = lineEnd - lineStart;
+			if (line.length < length) {
+				line = new byte[Math.max(length, line.length * 2)];
+			}
+			buffer.position(lineStart);
+			buffer.get(line, 0, length);
+			length = trimLineEnd(line, length);
+			if (length > 0) {
+				try {
+					batch.add(isJSon ? parseJSon(line, length) : parseCsv(line, length, fields));
+				} catch (ValidationException | RuntimeException e) {
+					if (failed.incrementAndGet() <= MAX_REPORTED_ERRORS) {
+						System.err.println("Could not parse '" + new String(line, 0, length, StandardCharsets.UTF_8)
+								+ "': " + e.getMessage());
+					}
+				}
+			}
+			lineStart = lineEnd + 1;
+		}
+		batch.flush();
+	}
+
+	private Customer parseCsv(byte[] line, int length, List<String> fields) throws ValidationException {
+		parseCsvLine(line, length, fields);
+		String fullName = fields.get(nameColumn);
+		String phoneNumber = fields.get(phoneColumn);
+		Customer.validate(fullName, phoneNumber);
+		long id = (idColumn == NO_COLUMN || fields.get(idColumn).isEmpty()) ? NO_ID
+				: Long.parseLong(fields.get(idColumn));
+		return new Customer(id, fullName, phoneNumber);
+	}
+
+	private static Customer parseJSon(byte[] line, int length) throws ValidationException {
+		JsonObject json = Json.createReader(new StringReader(new String(line, 0, length, StandardCharsets.UTF_8)))
+				.readObject();
+		String fullName = json.getString(Customer.KEY_FULL_NAME);
+		String phoneNumber = json.getString(Customer.KEY_PHONE_NUMBER);
+		Customer.validate(fullName, phoneNumber);
+		long id = json.containsKey(Customer.KEY_CUSTOMER_ID) ? Long.parseLong(json.getString(Customer.KEY_CUSTOMER_ID))
+				: NO_ID;
+		return new Customer(id, fullName, phoneNumber);
+	}
+
+	/*
+	 * Splits a CSV line into its fields. Fields may be quoted, with "" for a quote within quotes.
+	 */
+	private static List<String> parseCsvLine(byte[] line, int length, List<String> fields) {
+		fields.clear();
+		StringBuilder quoted = new StringBuilder();
+		int i = 0;
+		while (i <= length) {
+			if (i < length && line[i] == '"') {
+				quoted.setLength(0);
+				int segmentStart = ++i;
+				while (i < length) {
+					if (line[i] == '"') {
+						quoted.append(new String(line, segmentStart, i - segmentStart, StandardCharsets.UTF_8));
+						if (i + 1 < length && line[i + 1] == '"') {
+							quoted.append('"');
+							i += 2;
+							segmentStart = i;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				fields.add(quoted.toString());
+				// Skip the closing quote and up to the next separator
+				while (i < length && line[i] != ',') {
+					i++;
+				}
+				i++;
+			} else {
+				int fieldStart = i;
+				while (i < length && line[i] != ',') {
+					i++;
+				}
+				fields.add(new String(line, fieldStart, i - fieldStart, StandardCharsets.UTF_8).trim());
+				i++;
+			}
+		}
+		return fields;
+	}
+
+	private static int trimLineEnd(byte[] line, int length) {
+		int end = length;
+		while (end > 0 && (line[end - 1] == '\n' || line[end - 1] == '\r')) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * A batch of customers to load.
+	 */
+	private final class Batch {
+		private final List<Customer> customers = new ArrayList<>(BATCH_SIZE);
+
+		void add(Customer customer) {
+			if (customer.getId() != NO_ID && !DataAccess.isOwned(customer.getId())) {
+				skipped.incrementAndGet();
+				return;
+			}
+			customers.add(customer.getId() == NO_ID
+					? new Customer(DataAccess.createNewId(), customer.getFullName(), customer.getPhoneNumber())
+					: customer);
+			if (customers.size() >= BATCH_SIZE) {
+				flush();
+			}
+		}
+
+		void flush() {
+			if (!customers.isEmpty()) {
+				DataAccess.loadCustomers(customers);
+				loaded.addAndGet(customers.size());
+				customers.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * The in-memory storage of the customers, including any indexes.
+ * 
+ * @author Marcus Hirt
+ */
+interface CustomerStore {
+	/**
+	 * @return the customer with the id, or null if there is no such customer.
+	 */
+	Customer get(long id);
+
+	/**
+	 * Atomically replaces the customer with the id. The function is called exactly once, while
+	 * holding whatever the store uses to serialize the writes to the id, so it may be used to
+	 * record the change in order (e.g. in the journal). The store updates its indexes as needed.
+	 * 
+	 * @param id
+	 *            the id of the customer.
+	 * @param function
+	 *            gets the current customer, or null if there is none, and returns the new
+	 *            customer, or null to remove it. Returning the very same instance leaves the store
+	 *            unchanged.
+	 * @return the customer returned by the function.
+	 */
+	Customer compute(long id, UnaryOperator<Customer> function);
+
+	/**
+	 * @return all customers with the exact full name.
+	 */
+	List<Customer> getByName(String fullName);
+
+	/**
+	 * @return all customers with the exact phone number.
+	 */
+	List<Customer> getByPhone(String phoneNumber);
+
+	/**
+	 * @param afterId
+	 *            only return customers with an id greater than this, or null to start from the
+	 *            beginning.
+	 * @param limit
+	 *            the maximum number of customers to return.
+	 * @return a page of customers, ordered by id. How consistent the page is depends on the store.
+	 */
+	List<Customer> getPage(Long afterId, int limit);
+
+	/**
+	 * @return a weakly consistent view of all the customers.
+	 */
+	Iterable<Customer> getAll();
+
+	/**
+	 * @return the number of customers.
+	 */
+	int size();
+}
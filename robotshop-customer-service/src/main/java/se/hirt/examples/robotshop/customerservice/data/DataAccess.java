@@ -31,134 +31,514 @@
  */
 package se.hirt.examples.robotshop.customerservice.data;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.sharding.ConsistentHashRing;
+
 /**
- * Simplified data access. 
- * 
+ * Simplified data access.
+ * <p>
+ * The customers are kept in a {@link CustomerStore}, selected with the environment variable
+ * CUSTOMER_STORE. The default (concurrent) store never blocks the readers, and serializes the
+ * writes per customer id only. The compact store keeps the customers in primitive arrays, which
+ * makes for a much smaller heap with many millions of customers, at the price of serializing all
+ * the writes.
+ * <p>
+ * New customer ids are allocated by an {@link IdGenerator}, with the node id taken from the
+ * environment variable CUSTOMER_SERVICE_NODE_ID. Give each instance sharing the same customers its
+ * own node id. When sharded, new ids are only taken from the part of the ring owned by this instance.
+ * <p>
+ * If persistence is enabled, all changes are appended to the {@link Journal} from within the
+ * compute of the customer id, so that the journal order per customer is the order in which the
+ * changes were applied. The same goes for the {@link ChangeFeed} and the {@link TrigramIndex}.
+ * <p>
  * FIXME: Store in couch base/cassandra/whatever:
  * 
  * @author Marcus Hirt
  */
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+public class DataAccess {
+	private final static CustomerStore STORE;
+	private final static IdGenerator ID_GENERATOR;
+	private final static String DEFAULT_CHANGE_FEED_SIZE = "65536";
+	private final static ChangeFeed CHANGE_FEED;
+	private final static TrigramIndex SEARCH_INDEX;
 
-import se.hirt.examples.robotshop.common.data.Customer;
+	private static volatile Journal journal;
+	private static volatile ConsistentHashRing shardRing;
+	private static volatile String shardLocation;
 
-public class DataAccess {
-	private final static Map<Long, Customer> CUSTOMERS = new HashMap<>();
-	private final static Map<String, Customer> CUSTOMERS_INDEX_BY_NAME = new HashMap<>();
-	private final static Map<String, Customer> CUSTOMERS_INDEX_BY_PHONE = new HashMap<>();
-	private final static ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	static {
+		String storeType = System.getenv("CUSTOMER_STORE");
+		if ("compact".equalsIgnoreCase(storeType)) {
+			STORE = new CompactCustomerStore();
+		} else {
+			if (storeType != null && !"concurrent".equalsIgnoreCase(storeType)) {
+				System.err.println("Unknown CUSTOMER_STORE " + storeType + " - using the concurrent store!");
+			}
+			STORE = new ConcurrentCustomerStore();
+		}
+		System.out.println("Using the " + STORE.getClass().getSimpleName());
+
+		String nodeId = System.getenv("CUSTOMER_SERVICE_NODE_ID");
+		ID_GENERATOR = new IdGenerator((nodeId == null || nodeId.isEmpty()) ? 0 : Integer.parseInt(nodeId));
 
-	private final static Random CUSTOMER_ID_GENERATOR = new Random();
+		String changeFeedSize = System.getenv("CUSTOMER_CHANGE_FEED_SIZE");
+		CHANGE_FEED = new ChangeFeed(Integer.parseInt(
+				(changeFeedSize == null || changeFeedSize.isEmpty()) ? DEFAULT_CHANGE_FEED_SIZE : changeFeedSize));
+
+		// The search index costs a couple of hundred bytes per customer - allow it to be turned off
+		SEARCH_INDEX = "false".equalsIgnoreCase(System.getenv("CUSTOMER_SEARCH_INDEX")) ? null : new TrigramIndex();
+	}
 
 	/**
-	 * Synchronizing write access
+	 * Creates a new customer. Lock free, except for the new id.
 	 * 
 	 * @param fullName
 	 * @param phoneNumber
-	 * @return
+	 * @return the newly created customer.
 	 */
-	public static synchronized Customer createCustomer(String fullName, String phoneNumber) {
-		Lock writeLock = readWriteLock.writeLock();
+	public static Customer createCustomer(String fullName, String phoneNumber) {
 		try {
-			writeLock.lock();
-			Customer newCustomer = new Customer(getNewId(), fullName, phoneNumber);
-			CUSTOMERS.put(newCustomer.getId(), newCustomer);
-			CUSTOMERS_INDEX_BY_NAME.put(newCustomer.getFullName(), newCustomer);
-			CUSTOMERS_INDEX_BY_PHONE.put(newCustomer.getPhoneNumber(), newCustomer);
-			return newCustomer;
+			return insertNew(fullName, phoneNumber);
 		} finally {
-			writeLock.unlock();
+			completeWrite();
+		}
+	}
+
+	private static Customer insertNew(String fullName, String phoneNumber) {
+		while (true) {
+			Customer newCustomer = new Customer(createNewId(), fullName, phoneNumber);
+			// Only collides with ids from another source, e.g. an instance with the same node id
+			if (compute(newCustomer.getId(), (existing) -> {
+				if (existing != null) {
+					return existing;
+				}
+				journal(newCustomer);
+				CHANGE_FEED.publish(ChangeFeed.ChangeType.CREATED, newCustomer.getId(), newCustomer);
+				return newCustomer;
+			}) == newCustomer) {
+				return newCustomer;
+			}
 		}
 	}
 
-	public static Collection<Customer> getAllCustomers() {
-		Lock readLock = readWriteLock.readLock();
+	/**
+	 * Creates a chunk of customers at once. The customers are journaled with a single append, and
+	 * are then published one by one. Does not validate the customers.
+	 * 
+	 * @param fullNames
+	 *            the full names of the customers to create.
+	 * @param phoneNumbers
+	 *            the phone numbers of the customers to create, in the same order as the names.
+	 * @return the created customers, in the same order as the names.
+	 */
+	public static List<Customer> createCustomers(List<String> fullNames, List<String> phoneNumbers) {
+		if (fullNames.size() != phoneNumbers.size()) {
+			throw new IllegalArgumentException("Must have one phone number per full name!");
+		}
+		List<Customer> newCustomers = new ArrayList<>(fullNames.size());
+		for (int i = 0; i < fullNames.size(); i++) {
+			newCustomers.add(new Customer(createNewId(), fullNames.get(i), phoneNumbers.get(i)));
+		}
 		try {
-			readLock.lock();
-			return CUSTOMERS.values();
+			// Nobody else knows about the new ids yet, so no need to journal from within the computes
+			Journal currentJournal = journal;
+			if (currentJournal != null) {
+				currentJournal.appendPuts(newCustomers);
+			}
+			for (int i = 0; i < newCustomers.size(); i++) {
+				Customer newCustomer = newCustomers.get(i);
+				if (compute(newCustomer.getId(), (existing) -> {
+					if (existing != null) {
+						return existing;
+					}
+					CHANGE_FEED.publish(ChangeFeed.ChangeType.CREATED, newCustomer.getId(), newCustomer);
+					return newCustomer;
+				}) != newCustomer) {
+					// The id was already taken (see insertNew) - correct the journal, and insert it the normal way
+					rejournal(newCustomer.getId());
+					newCustomers.set(i, insertNew(newCustomer.getFullName(), newCustomer.getPhoneNumber()));
+				}
+			}
 		} finally {
-			readLock.unlock();
+			completeWrite();
 		}
+		return newCustomers;
 	}
 
-	public static Customer getCustomerByName(String fullName) {
-		Lock readLock = readWriteLock.readLock();
+	/**
+	 * Loads customers in bulk, e.g. when seeding the customers at startup. Like the recovery, the
+	 * changes are not published to the change feed, and the search index is updated a batch at a
+	 * time. If an id occurs more than once, the last one wins. Batches may be loaded concurrently,
+	 * even with overlapping ids. Must only be called before the service starts taking requests.
+	 * 
+	 * @param customers
+	 *            the customers to load, with their ids, e.g. from {@link #createNewId()}.
+	 */
+	public static void loadCustomers(List<Customer> customers) {
+		Map<Long, Customer> unique = new LinkedHashMap<>();
+		for (Customer customer : customers) {
+			// Customers are equal by id, so remove first to keep the last one
+			unique.remove(customer.getId());
+			unique.put(customer.getId(), customer);
+		}
+		List<Customer> added = new ArrayList<>(unique.size());
 		try {
-			readLock.lock();
-			return CUSTOMERS_INDEX_BY_NAME.get(fullName);
+			for (Customer customer : unique.values()) {
+				ID_GENERATOR.observe(customer.getId());
+				STORE.compute(customer.getId(), (existing) -> {
+					if (SEARCH_INDEX != null) {
+						if (existing == null) {
+							added.add(customer);
+						} else {
+							SEARCH_INDEX.update(existing, customer);
+						}
+					}
+					return customer;
+				});
+			}
+			if (SEARCH_INDEX != null) {
+				SEARCH_INDEX.addAll(added);
+				// Another batch may have replaced some of the added customers before they were indexed
+				for (Customer customer : added) {
+					STORE.compute(customer.getId(), (existing) -> {
+						if (existing == null || !existing.getFullName().equals(customer.getFullName())) {
+							SEARCH_INDEX.update(customer, existing);
+						}
+						return existing;
+					});
+				}
+			}
+			Journal currentJournal = journal;
+			if (currentJournal != null) {
+				currentJournal.appendPuts(new ArrayList<>(unique.values()));
+			}
 		} finally {
-			readLock.unlock();
+			completeWrite();
 		}
 	}
 
-	public static Customer getCustomerByPhone(String phone) {
-		Lock readLock = readWriteLock.readLock();
+	/**
+	 * Enables persistence of the customers. Recovers the customers from the journal, and then
+	 * journals all subsequent changes. Must be called before any other writes are made.
+	 * 
+	 * @param directory
+	 *            the directory where the journal is kept.
+	 * @param syncPolicy
+	 *            when to force the journal to disk.
+	 * @param syncIntervalMillis
+	 *            the interval between forces, for {@link Journal.SyncPolicy#PERIODIC}.
+	 * @param snapshotIntervalMillis
+	 *            the interval between snapshots, or 0 for no snapshots.
+	 * @return the journal, already started.
+	 * @throws IOException
+	 *             if the journal could not be recovered.
+	 */
+	public static Journal enablePersistence(
+		File directory, Journal.SyncPolicy syncPolicy, long syncIntervalMillis, long snapshotIntervalMillis)
+			throws IOException {
+		Journal newJournal = new Journal(directory, syncPolicy, syncIntervalMillis, snapshotIntervalMillis,
+				STORE::getAll);
+		// Used for recovery - the changes are not journaled
+		newJournal.recover((customer) -> {
+			ID_GENERATOR.observe(customer.getId());
+			compute(customer.getId(), (existing) -> customer);
+		}, (id) -> compute(id, (existing) -> null));
+		newJournal.start();
+		journal = newJournal;
+		return newJournal;
+	}
+
+	/**
+	 * Makes this instance one of the shards of a sharded customer service. New customers will only
+	 * get ids owned by this instance.
+	 * 
+	 * @param ring
+	 *            the ring of all the shards, or null to stop sharding.
+	 * @param location
+	 *            the location of this instance in the ring.
+	 */
+	public static void setShards(ConsistentHashRing ring, String location) {
+		shardLocation = location;
+		shardRing = ring;
+	}
+
+	/**
+	 * @return the ring this instance is a shard of, or null if not sharded.
+	 */
+	public static ConsistentHashRing getShardRing() {
+		return shardRing;
+	}
+
+	/**
+	 * @return the location of this instance in the ring.
+	 */
+	public static String getShardLocation() {
+		return shardLocation;
+	}
+
+	/**
+	 * @return true if the customer belongs to this instance.
+	 */
+	public static boolean isOwned(long customerId) {
+		ConsistentHashRing ring = shardRing;
+		return ring == null || ring.getNode(customerId).equals(shardLocation);
+	}
+
+	/**
+	 * Inserts or replaces customers, keeping their ids, e.g. when receiving customers moved from
+	 * another shard. Does not validate the customers.
+	 * 
+	 * @param customers
+	 *            the customers to put.
+	 */
+	public static void putCustomers(Collection<Customer> customers) {
 		try {
-			readLock.lock();
-			return CUSTOMERS_INDEX_BY_PHONE.get(phone);
+			for (Customer customer : customers) {
+				ID_GENERATOR.observe(customer.getId());
+				replace(customer.getId(), customer);
+			}
 		} finally {
-			readLock.unlock();
+			completeWrite();
 		}
 	}
 
-	public static void removeCustomer(Customer customer) {
-		Lock writeLock = readWriteLock.writeLock();
+	/**
+	 * Applies a change replicated from the primary, see {@link ChangeFeed}.
+	 * 
+	 * @param customerId
+	 *            the id of the changed customer.
+	 * @param customer
+	 *            the customer after the change, or null if it was deleted.
+	 */
+	public static void applyReplicatedChange(long customerId, Customer customer) {
 		try {
-			writeLock.lock();
-			CUSTOMERS.remove(customer.getId());
-			CUSTOMERS_INDEX_BY_NAME.remove(customer.getFullName());
+			replace(customerId, customer);
 		} finally {
-			writeLock.unlock();
+			completeWrite();
 		}
 	}
 
-	public static int getNumberOfCustomers() {
-		Lock readLock = readWriteLock.readLock();
+	private static void replace(long id, Customer customer) {
+		compute(id, (existing) -> {
+			if (customer == null) {
+				if (existing != null) {
+					Journal currentJournal = journal;
+					if (currentJournal != null) {
+						currentJournal.appendDelete(id);
+					}
+					CHANGE_FEED.publish(ChangeFeed.ChangeType.DELETED, id, null);
+				}
+				return null;
+			}
+			journal(customer);
+			CHANGE_FEED.publish(existing == null ? ChangeFeed.ChangeType.CREATED : ChangeFeed.ChangeType.UPDATED, id,
+					customer);
+			return customer;
+		});
+	}
+
+	/**
+	 * @return a weakly consistent view of all the customers. Never throws
+	 *         ConcurrentModificationException.
+	 */
+	public static Iterable<Customer> getAllCustomers() {
+		return STORE.getAll();
+	}
+
+	/**
+	 * Returns a page of customers, ordered by id. Whether the page is a point-in-time snapshot
+	 * depends on the store, see {@link ConcurrentCustomerStore} and {@link CompactCustomerStore}.
+	 * 
+	 * @param afterId
+	 *            only return customers with an id greater than this, or null to start from the
+	 *            beginning.
+	 * @param limit
+	 *            the maximum number of customers to return.
+	 * @return the customers in the page.
+	 */
+	public static List<Customer> getCustomersAfter(Long afterId, int limit) {
+		return STORE.getPage(afterId, limit);
+	}
+
+	/**
+	 * @return all customers with the exact full name.
+	 */
+	public static List<Customer> getCustomersByName(String fullName) {
+		return STORE.getByName(fullName);
+	}
+
+	/**
+	 * @return all customers with the exact phone number.
+	 */
+	public static List<Customer> getCustomersByPhone(String phone) {
+		return STORE.getByPhone(phone);
+	}
+
+	public static void removeCustomer(Customer customer) {
 		try {
-			readLock.lock();
-			return CUSTOMERS.size();
+			compute(customer.getId(), (existing) -> {
+				if (existing == null) {
+					return null;
+				}
+				Journal currentJournal = journal;
+				if (currentJournal != null) {
+					currentJournal.appendDelete(existing.getId());
+				}
+				CHANGE_FEED.publish(ChangeFeed.ChangeType.DELETED, existing.getId(), null);
+				return null;
+			});
 		} finally {
-			readLock.unlock();
+			completeWrite();
 		}
 	}
 
-	public static Customer getCustomerById(Long id) {
-		Lock readLock = readWriteLock.readLock();
+	/**
+	 * Removes the customer, unless it has been changed since the given version of it was read.
+	 * 
+	 * @param customer
+	 *            the version of the customer to remove.
+	 * @return true if the customer was removed.
+	 */
+	public static boolean removeCustomerIfUnchanged(Customer customer) {
+		boolean[] removed = new boolean[1];
 		try {
-			readLock.lock();
-			return CUSTOMERS.get(id);
+			compute(customer.getId(), (existing) -> {
+				if (existing == null || !existing.getFullName().equals(customer.getFullName())
+						|| !existing.getPhoneNumber().equals(customer.getPhoneNumber())) {
+					return existing;
+				}
+				Journal currentJournal = journal;
+				if (currentJournal != null) {
+					currentJournal.appendDelete(existing.getId());
+				}
+				CHANGE_FEED.publish(ChangeFeed.ChangeType.DELETED, existing.getId(), null);
+				removed[0] = true;
+				return null;
+			});
 		} finally {
-			readLock.unlock();
+			completeWrite();
+		}
+		return removed[0];
+	}
+
+	/**
+	 * Fuzzy searches the customers by name.
+	 * 
+	 * @param query
+	 *            the (partial) name to search for.
+	 * @param limit
+	 *            the maximum number of hits to return.
+	 * @return the hits, best first, or null if the search index is disabled.
+	 */
+	public static List<TrigramIndex.Hit> searchCustomers(String query, int limit) {
+		if (SEARCH_INDEX == null) {
+			return null;
 		}
+		return SEARCH_INDEX.search(query, limit, STORE::get);
+	}
+
+	/**
+	 * @return the feed of changes made to the customers since the service started.
+	 */
+	public static ChangeFeed getChangeFeed() {
+		return CHANGE_FEED;
+	}
+
+	public static int getNumberOfCustomers() {
+		return STORE.size();
+	}
+
+	public static Customer getCustomerById(Long id) {
+		return STORE.get(id);
 	}
 
 	public static void updateCustomer(Long id, String fullName, String phoneNumber) {
-		Lock writeLock = readWriteLock.writeLock();
+		Customer updated = new Customer(id, fullName, phoneNumber);
 		try {
-			writeLock.lock();
-			Customer updated = new Customer(id, fullName, phoneNumber);
-			CUSTOMERS.put(id, updated);
+			compute(id, (existing) -> {
+				journal(updated);
+				CHANGE_FEED.publish(existing == null ? ChangeFeed.ChangeType.CREATED : ChangeFeed.ChangeType.UPDATED,
+						id, updated);
+				return updated;
+			});
 		} finally {
-			writeLock.unlock();
+			completeWrite();
 		}
 	}
 
-	private static long getNewId() {
-		long newId = createNewId();
-		// In the unlikely event of a collision...
-		while (CUSTOMERS.get(newId) != null) {
-			newId = createNewId();
+	/*
+	 * All changes go through here, to keep the indexes that are not part of the store up to date.
+	 */
+	private static Customer compute(long id, UnaryOperator<Customer> function) {
+		return STORE.compute(id, (before) -> {
+			Customer after = function.apply(before);
+			if (after != before && SEARCH_INDEX != null) {
+				SEARCH_INDEX.update(before, after);
+			}
+			return after;
+		});
+	}
+
+	/*
+	 * Must only be called from within the compute of the customer id.
+	 */
+	private static void journal(Customer customer) {
+		Journal currentJournal = journal;
+		if (currentJournal != null) {
+			currentJournal.appendPut(customer);
 		}
-		return newId;
 	}
 
-	private static long createNewId() {
-		return Math.abs(CUSTOMER_ID_GENERATOR.nextLong());
+	/*
+	 * Appends the current state of the customer to the journal again, overriding anything appended
+	 * for the id outside of its compute.
+	 */
+	private static void rejournal(long id) {
+		Journal currentJournal = journal;
+		if (currentJournal != null) {
+			compute(id, (existing) -> {
+				if (existing == null) {
+					currentJournal.appendDelete(id);
+				} else {
+					currentJournal.appendPut(existing);
+				}
+				return existing;
+			});
+		}
+	}
+
+	/*
+	 * Called by the writer once the change has been published.
+	 */
+	private static void completeWrite() {
+		Journal currentJournal = journal;
+		if (currentJournal != null) {
+			currentJournal.commit();
+		}
+	}
+
+	/**
+	 * @return a new customer id, owned by this instance if sharded.
+	 */
+	public static long createNewId() {
+		ConsistentHashRing ring = shardRing;
+		String location = shardLocation;
+		long id = ID_GENERATOR.nextId();
+		if (ring != null && ring.getNodes().contains(location)) {
+			// Takes about as many tries as there are shards
+			while (!ring.getNode(id).equals(location)) {
+				id = ID_GENERATOR.nextId();
+			}
+		}
+		return id;
 	}
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snowflake style id allocator. The ids are made up of, from the most significant bit:
+ * <ul>
+ * <li>1 bit always zero, so that the ids are positive.</li>
+ * <li>{@value #TIMESTAMP_BITS} bits of milliseconds since {@link #EPOCH} (lasts until 2087).</li>
+ * <li>{@value #NODE_BITS} bits of node id, unique per allocating instance.</li>
+ * <li>{@value #SEQUENCE_BITS} bits of sequence within the millisecond.</li>
+ * </ul>
+ * Several instances with different node ids can therefore allocate ids without any coordination.
+ * The last allocated timestamp and sequence is kept in a single atomic, so the allocation is lock
+ * free. Should the clock go backwards, or more than {@value #MAX_SEQUENCE} ids be requested in a
+ * millisecond, the allocator keeps counting from the last id, borrowing time from the future until
+ * the clock catches up. The ids allocated by an instance are thus strictly increasing.
+ * 
+ * @author Marcus Hirt
+ */
+public final class IdGenerator {
+	/**
+	 * 2018-01-01T00:00:00Z
+	 */
+	public final static long EPOCH = 1514764800000L;
+	public final static int TIMESTAMP_BITS = 41;
+	public final static int NODE_BITS = 10;
+	public final static int SEQUENCE_BITS = 12;
+	public final static int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+	public final static int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+	private final int nodeId;
+	// Timestamp << SEQUENCE_BITS | sequence, of the last allocated id
+	private final AtomicLong last = new AtomicLong();
+
+	public IdGenerator(int nodeId) {
+		if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+			throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ", was " + nodeId);
+		}
+		this.nodeId = nodeId;
+	}
+
+	/**
+	 * @return a new, unique, positive id.
+	 */
+	public long nextId() {
+		while (true) {
+			long current = last.get();
+			long now = System.currentTimeMillis() - EPOCH;
+			long next = (now > (current >>> SEQUENCE_BITS)) ? now << SEQUENCE_BITS : current + 1;
+			if (last.compareAndSet(current, next)) {
+				return toId(next);
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that ids allocated from now on are greater than the given id, if it was allocated
+	 * with the same node id. Used when recovering ids allocated before a restart, in case the clock
+	 * has moved backwards since. Ids with a timestamp ahead of the clock are observed too - the
+	 * following ids are then borrowed from that time, until the clock catches up.
+	 * 
+	 * @param id
+	 *            an id that may have been allocated by this node.
+	 */
+	public void observe(long id) {
+		if (id < 0 || getNodeId(id) != nodeId) {
+			return;
+		}
+		long observed = (id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS | (id & MAX_SEQUENCE);
+		long current = last.get();
+		while (observed > current) {
+			if (last.compareAndSet(current, observed)) {
+				long now = System.currentTimeMillis();
+				if (getTimestamp(id) > now && (current >>> SEQUENCE_BITS) + EPOCH <= now) {
+					System.err.println("Observed id " + id + " from " + (getTimestamp(id) - now)
+							+ " ms in the future - borrowing ids from then until the clock catches up");
+				}
+				return;
+			}
+			current = last.get();
+		}
+	}
+
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * @return the node id the id was allocated by.
+	 */
+	public static int getNodeId(long id) {
+		return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE_ID);
+	}
+
+	/**
+	 * @return the time, in epoch milliseconds, when the id was allocated.
+	 */
+	public static long getTimestamp(long id) {
+		return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+
+	private long toId(long timestampAndSequence) {
+		return (timestampAndSequence >>> SEQUENCE_BITS) << (NODE_BITS + SEQUENCE_BITS)
+				| ((long) nodeId << SEQUENCE_BITS) | (timestampAndSequence & MAX_SEQUENCE);
+	}
+}
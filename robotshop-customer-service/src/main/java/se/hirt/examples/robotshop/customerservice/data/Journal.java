@@ -0,0 +1,688 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Append-only, memory mapped change log for the customers, with group commit and periodic
+ * compacted snapshots.
+ * <p>
+ * Changes are appended to fixed size, memory mapped segment files. How the appends are made
+ * durable is decided by the {@link SyncPolicy}. With {@link SyncPolicy#ALWAYS}, writers wait
+ * until their change has been forced to disk, but all writers waiting at the same time share a
+ * single force (group commit).
+ * <p>
+ * Snapshots roll the log to a new segment, write all customers to a snapshot file, and then
+ * delete the older segments. Since a snapshot is taken while writes continue, it may already
+ * contain some of the changes in the segments kept. That is fine, since replaying a change is
+ * idempotent.
+ * <p>
+ * Record layout: int payload length, int CRC32 of payload, byte type, long id, and, for puts,
+ * the UTF-8 encoded full name and phone number, each prefixed with a short length.
+ * 
+ * @author Marcus Hirt
+ */
+public final class Journal implements Closeable {
+	private final static long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	private final static String SEGMENT_PREFIX = "journal-";
+	private final static String SEGMENT_SUFFIX = ".log";
+	private final static String SNAPSHOT_PREFIX = "snapshot-";
+	private final static String SNAPSHOT_SUFFIX = ".snap";
+	private final static int RECORD_HEADER_SIZE = 8;
+	private final static byte TYPE_PUT = 1;
+	private final static byte TYPE_DELETE = 2;
+	// The strings are prefixed with an unsigned short length
+	private final static int MAX_STRING_BYTES = 0xFFFF;
+	private final static ThreadGroup GROUP = new ThreadGroup("Journal");
+
+	/**
+	 * How to make the appended changes durable.
+	 */
+	public enum SyncPolicy {
+		/**
+		 * Writers wait until their changes have been forced to disk. Concurrent writers share one
+		 * force.
+		 */
+		ALWAYS,
+		/**
+		 * The journal is forced to disk at a fixed interval. Writers never wait, but the changes
+		 * made in the last interval may be lost on power failure.
+		 */
+		PERIODIC,
+		/**
+		 * Leave it to the operating system. Survives process crashes, but not power failures.
+		 */
+		NEVER;
+
+		public static SyncPolicy fromString(String policy) {
+			return valueOf(policy.trim().toUpperCase());
+		}
+	}
+
+	private final static class Segment {
+		private final long index;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		// Appended changes not yet published in the maps
+		private final AtomicInteger inFlight = new AtomicInteger();
+
+		Segment(long index, File file, MappedByteBuffer buffer) {
+			this.index = index;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * What a thread has appended since its last commit. Only touched by the owning thread.
+	 */
+	private final static class Ticket {
+		// Usually just the one, but the appends may cross a roll
+		private final List<Segment> segments = new ArrayList<>(1);
+		private long lsn;
+
+		void hold(Segment segment) {
+			if (!segments.contains(segment)) {
+				segment.inFlight.incrementAndGet();
+				segments.add(segment);
+			}
+		}
+
+		void release() {
+			for (Segment segment : segments) {
+				segment.inFlight.decrementAndGet();
+			}
+		}
+	}
+
+	private final File directory;
+	private final SyncPolicy syncPolicy;
+	private final long syncIntervalMillis;
+	private final long snapshotIntervalMillis;
+	private final long segmentSize;
+	private final Supplier<Iterable<Customer>> snapshotSource;
+
+	private final ReentrantLock appendLock = new ReentrantLock();
+	// Guarded by appendLock
+	private final Deque<Segment> segments = new ArrayDeque<>();
+	private volatile Segment current;
+	// Log sequence number - the total number of bytes appended. Written with appendLock held.
+	private volatile long appendedLsn;
+	private volatile long durableLsn;
+	private long lsnAtLastSnapshot;
+
+	private final Object syncMonitor = new Object();
+	// Guarded by syncMonitor
+	private long requestedLsn;
+	private volatile boolean closed;
+
+	private final ThreadLocal<Ticket> pendingTicket = new ThreadLocal<>();
+	private Thread syncThread;
+	private ScheduledExecutorService snapshotExecutor;
+
+	/**
+	 * Creates a new journal. Call {@link #recover(Consumer, LongConsumer)} and then
+	 * {@link #start()} before appending anything.
+	 * 
+	 * @param directory
+	 *            the directory in which to keep the journal and snapshot files.
+	 * @param syncPolicy
+	 *            how to make the changes durable.
+	 * @param syncIntervalMillis
+	 *            the interval between forces, for {@link SyncPolicy#PERIODIC}.
+	 * @param snapshotIntervalMillis
+	 *            the interval between snapshots, or 0 to never take snapshots.
+	 * @param snapshotSource
+	 *            supplies the customers to write to the snapshots.
+	 */
+	public Journal(File directory, SyncPolicy syncPolicy, long syncIntervalMillis, long snapshotIntervalMillis,
+			Supplier<Iterable<Customer>> snapshotSource) {
+		this(directory, syncPolicy, syncIntervalMillis, snapshotIntervalMillis, DEFAULT_SEGMENT_SIZE,
+				snapshotSource);
+	}
+
+	Journal(File directory, SyncPolicy syncPolicy, long syncIntervalMillis, long snapshotIntervalMillis,
+			long segmentSize, Supplier<Iterable<Customer>> snapshotSource) {
+		this.directory = directory;
+		this.syncPolicy = syncPolicy;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+		this.segmentSize = segmentSize;
+		this.snapshotSource = snapshotSource;
+	}
+
+	/**
+	 * Loads the latest snapshot and replays the journal segments written after it.
+	 * 
+	 * @param put
+	 *            called for every customer created or updated.
+	 * @param remove
+	 *            called with the id of every customer removed.
+	 * @return the number of changes recovered.
+	 * @throws IOException
+	 *             if the journal directory could not be read.
+	 */
+	public long recover(Consumer<Customer> put, LongConsumer remove) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + directory);
+		}
+		long count = 0;
+		long snapshotIndex = findLatest(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		if (snapshotIndex >= 0) {
+			count += readSnapshot(snapshotFile(snapshotIndex), put);
+		}
+		long lastIndex = snapshotIndex;
+		for (long index : listIndexes(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (index < snapshotIndex) {
+				// Compacted by the snapshot, but not yet deleted
+				continue;
+			}
+			count += replaySegment(segmentFile(index), put, remove);
+			segments.addLast(new Segment(index, segmentFile(index), null));
+			lastIndex = Math.max(lastIndex, index);
+		}
+		appendLock.lock();
+		try {
+			if (!segments.isEmpty()) {
+				// Make sure the first snapshot compacts the recovered segments
+				lsnAtLastSnapshot = -1;
+			}
+			current = openSegment(lastIndex + 1);
+			segments.addLast(current);
+		} finally {
+			appendLock.unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Starts the background syncing and snapshotting.
+	 */
+	public void start() {
+		if (syncPolicy != SyncPolicy.NEVER) {
+			syncThread = new Thread(GROUP, this::syncLoop, "Journal Syncer");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		}
+		if (snapshotIntervalMillis > 0) {
+			snapshotExecutor = Executors.newSingleThreadScheduledExecutor((r) -> {
+				Thread thread = new Thread(GROUP, r, "Journal Snapshotter");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshotExecutor.scheduleWithFixedDelay(this::snapshotQuietly, snapshotIntervalMillis,
+					snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Appends a put of the customer. Must be called from within the compute of the customer id, so
+	 * that the changes to a customer are appended in the order they are applied. Must be followed
+	 * by {@link #commit()} once the change has been published.
+	 */
+	void appendPut(Customer customer) {
+		append(Collections.singletonList(encodePut(customer)));
+	}
+
+	/**
+	 * Appends puts of all the customers, acquiring the append lock only once. Only for customers
+	 * not yet published, i.e. with ids that no other writer can be modifying. Must be followed by
+	 * {@link #commit()} once the customers have been published.
+	 */
+	void appendPuts(List<Customer> customers) {
+		List<byte[]> payloads = new ArrayList<>(customers.size());
+		for (Customer customer : customers) {
+			payloads.add(encodePut(customer));
+		}
+		append(payloads);
+	}
+
+	/**
+	 * Appends a removal of the customer. Same rules as for {@link #appendPut(Customer)}.
+	 */
+	void appendDelete(long id) {
+		ByteBuffer payload = ByteBuffer.allocate(1 + 8);
+		payload.put(TYPE_DELETE).putLong(id);
+		append(Collections.singletonList(payload.array()));
+	}
+
+	/**
+	 * To be called by the writer after all the changes it appended have been published. Until then,
+	 * no snapshot will drop the segments holding them. Waits until the changes appended by this
+	 * thread are durable, if so required by the sync policy.
+	 */
+	void commit() {
+		Ticket ticket = pendingTicket.get();
+		if (ticket == null) {
+			return;
+		}
+		pendingTicket.remove();
+		ticket.release();
+		if (syncPolicy == SyncPolicy.ALWAYS) {
+			awaitDurable(ticket.lsn);
+		}
+	}
+
+	private static byte[] encodePut(Customer customer) {
+		byte[] name = encodeString(customer.getFullName());
+		byte[] phone = encodeString(customer.getPhoneNumber());
+		ByteBuffer payload = ByteBuffer.allocate(1 + 8 + 2 + name.length + 2 + phone.length);
+		payload.put(TYPE_PUT).putLong(customer.getId());
+		payload.putShort((short) name.length).put(name);
+		payload.putShort((short) phone.length).put(phone);
+		return payload.array();
+	}
+
+	/*
+	 * Throws IllegalArgumentException rather than silently writing a truncated length.
+	 */
+	private static byte[] encodeString(String string) {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_STRING_BYTES) {
+			throw new IllegalArgumentException("String too long for the journal: " + bytes.length + " bytes");
+		}
+		return bytes;
+	}
+
+	private void append(List<byte[]> payloads) {
+		int[] checksums = new int[payloads.size()];
+		CRC32 crc = new CRC32();
+		for (int i = 0; i < checksums.length; i++) {
+			byte[] payload = payloads.get(i);
+			if (RECORD_HEADER_SIZE + payload.length > segmentSize) {
+				throw new IllegalArgumentException("Record too large for the journal: " + payload.length);
+			}
+			crc.reset();
+			crc.update(payload);
+			checksums[i] = (int) crc.getValue();
+		}
+		// Held until the commit, since the writer may not have published its earlier appends yet
+		Ticket ticket = pendingTicket.get();
+		if (ticket == null) {
+			ticket = new Ticket();
+			pendingTicket.set(ticket);
+		}
+		appendLock.lock();
+		try {
+			if (closed) {
+				throw new IllegalStateException("Journal is closed!");
+			}
+			for (int i = 0; i < checksums.length; i++) {
+				byte[] payload = payloads.get(i);
+				int recordSize = RECORD_HEADER_SIZE + payload.length;
+				if (current.buffer.remaining() < recordSize) {
+					roll();
+				}
+				ticket.hold(current);
+				MappedByteBuffer buffer = current.buffer;
+				int start = buffer.position();
+				buffer.position(start + 4);
+				buffer.putInt(checksums[i]);
+				buffer.put(payload);
+				// Length last, so that a zero length always marks the end of the log
+				buffer.putInt(start, payload.length);
+				appendedLsn += recordSize;
+			}
+			ticket.lsn = appendedLsn;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/*
+	 * Must be called with appendLock held.
+	 */
+	private void roll() {
+		if (syncPolicy != SyncPolicy.NEVER) {
+			// The syncer only forces the current segment, so make sure the old one is done
+			current.buffer.force();
+		}
+		try {
+			current = openSegment(current.index + 1);
+			segments.addLast(current);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not roll the journal!", e);
+		}
+	}
+
+	private Segment openSegment(long index) throws IOException {
+		File file = segmentFile(index);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// The mapping stays valid after the channel is closed
+			return new Segment(index, file, channel.map(MapMode.READ_WRITE, 0, segmentSize));
+		}
+	}
+
+	private void awaitDurable(long lsn) {
+		if (durableLsn >= lsn) {
+			return;
+		}
+		synchronized (syncMonitor) {
+			if (requestedLsn < lsn) {
+				requestedLsn = lsn;
+				syncMonitor.notifyAll();
+			}
+			while (durableLsn < lsn && !closed) {
+				try {
+					syncMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void syncLoop() {
+		while (!closed) {
+			try {
+				if (syncPolicy == SyncPolicy.ALWAYS) {
+					synchronized (syncMonitor) {
+						while (requestedLsn <= durableLsn && !closed) {
+							syncMonitor.wait();
+						}
+					}
+				} else {
+					Thread.sleep(syncIntervalMillis);
+				}
+				sync();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void sync() {
+		// Read the lsn before the segment. If the segment was rolled in between, the roll forced
+		// the old segment.
+		long target = appendedLsn;
+		if (target == durableLsn) {
+			return;
+		}
+		current.buffer.force();
+		synchronized (syncMonitor) {
+			durableLsn = target;
+			syncMonitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all customers and deletes the journal segments it makes obsolete.
+	 * 
+	 * @throws IOException
+	 *             if the snapshot could not be written.
+	 */
+	public void snapshot() throws IOException {
+		Segment first;
+		List<Segment> obsolete = new ArrayList<>();
+		appendLock.lock();
+		try {
+			if (appendedLsn == lsnAtLastSnapshot) {
+				// Nothing new to snapshot
+				return;
+			}
+			lsnAtLastSnapshot = appendedLsn;
+			roll();
+			first = current;
+			for (Segment segment : segments) {
+				if (segment != first) {
+					obsolete.add(segment);
+				}
+			}
+		} finally {
+			appendLock.unlock();
+		}
+
+		// Changes appended to the old segments must be published before we read the maps
+		for (Segment segment : obsolete) {
+			while (segment.inFlight.get() > 0) {
+				Thread.yield();
+			}
+		}
+
+		File tmpFile = new File(directory, SNAPSHOT_PREFIX + first.index + ".tmp");
+		long count = 0;
+		try (FileOutputStream fos = new FileOutputStream(tmpFile);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1024 * 1024))) {
+			for (Customer customer : snapshotSource.get()) {
+				writeSnapshotRecord(out, customer);
+				count++;
+			}
+			out.writeInt(0);
+			out.flush();
+			fos.getChannel().force(true);
+		}
+		Files.move(tmpFile.toPath(), snapshotFile(first.index).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		appendLock.lock();
+		try {
+			segments.removeAll(obsolete);
+		} finally {
+			appendLock.unlock();
+		}
+		for (Segment segment : obsolete) {
+			delete(segment.file);
+		}
+		for (long index : listIndexes(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if (index < first.index) {
+				delete(snapshotFile(index));
+			}
+		}
+		System.out.println("Journal snapshot " + first.index + " written with " + count + " customers.");
+	}
+
+	private void snapshotQuietly() {
+		try {
+			snapshot();
+		} catch (Throwable t) {
+			System.err.println("Failed to write journal snapshot: " + t.getMessage());
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (snapshotExecutor != null) {
+			snapshotExecutor.shutdownNow();
+		}
+		if (syncThread != null) {
+			syncThread.interrupt();
+		}
+		appendLock.lock();
+		try {
+			if (current != null && syncPolicy != SyncPolicy.NEVER) {
+				current.buffer.force();
+			}
+		} finally {
+			appendLock.unlock();
+		}
+		synchronized (syncMonitor) {
+			durableLsn = appendedLsn;
+			syncMonitor.notifyAll();
+		}
+	}
+
+	private static void writeSnapshotRecord(DataOutputStream out, Customer customer) throws IOException {
+		byte[] name = encodeString(customer.getFullName());
+		byte[] phone = encodeString(customer.getPhoneNumber());
+		out.writeInt(8 + 2 + name.length + 2 + phone.length);
+		out.writeLong(customer.getId());
+		out.writeShort(name.length);
+		out.write(name);
+		out.writeShort(phone.length);
+		out.write(phone);
+	}
+
+	private static long readSnapshot(File file, Consumer<Customer> put) throws IOException {
+		long count = 0;
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1024 * 1024))) {
+			while (in.readInt() > 0) {
+				long id = in.readLong();
+				String fullName = readString(in);
+				String phoneNumber = readString(in);
+				put.accept(new Customer(id, fullName, phoneNumber));
+				count++;
+			}
+		} catch (EOFException e) {
+			// Snapshots are renamed into place when complete, so this should never happen
+			throw new IOException("Truncated snapshot " + file, e);
+		}
+		return count;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readUnsignedShort()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static long replaySegment(File file, Consumer<Customer> put, LongConsumer remove) throws IOException {
+		long count = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			CRC32 crc = new CRC32();
+			while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+				int length = buffer.getInt();
+				if (length <= 0) {
+					break;
+				}
+				int checksum = buffer.getInt();
+				if (length > buffer.remaining()) {
+					System.err.println("Ignoring torn record at the end of " + file);
+					break;
+				}
+				byte[] payload = new byte[length];
+				buffer.get(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != checksum) {
+					// Only the tail of the last segment written before a crash can be torn
+					System.err.println("Ignoring torn record at the end of " + file);
+					break;
+				}
+				ByteBuffer record = ByteBuffer.wrap(payload);
+				byte type = record.get();
+				long id = record.getLong();
+				if (type == TYPE_PUT) {
+					put.accept(new Customer(id, readString(record), readString(record)));
+				} else if (type == TYPE_DELETE) {
+					remove.accept(id);
+				}
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private long findLatest(String prefix, String suffix) {
+		long latest = -1;
+		for (long index : listIndexes(prefix, suffix)) {
+			latest = Math.max(latest, index);
+		}
+		return latest;
+	}
+
+	private List<Long> listIndexes(String prefix, String suffix) {
+		List<Long> indexes = new ArrayList<>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					try {
+						indexes.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						// Not ours
+					}
+				}
+			}
+		}
+		indexes.sort(null);
+		return indexes;
+	}
+
+	private File segmentFile(long index) {
+		return new File(directory, String.format("%s%019d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+	}
+
+	private File snapshotFile(long index) {
+		return new File(directory, String.format("%s%019d%s", SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX));
+	}
+
+	private static void delete(File file) {
+		if (!file.delete()) {
+			// Mapped files cannot be deleted on some platforms until unmapped
+			file.deleteOnExit();
+		}
+	}
+}
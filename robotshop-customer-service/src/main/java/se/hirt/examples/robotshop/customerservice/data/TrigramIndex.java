@@ -0,0 +1,753 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongFunction;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Inverted trigram index over the full names of the customers, for fuzzy name searches.
+ * <p>
+ * The names are lower cased and split into words, and each word is padded with two spaces in front
+ * and one behind, like pg_trgm does, so that "Ann" gives "  a", " an", "ann" and "nn ". Every
+ * trigram has a posting set of the customers with the trigram in their name. To keep the
+ * footprint down with millions of customers, the customers are given dense document numbers,
+ * and the posting sets are sorted primitive int arrays of document numbers, in chunks.
+ * <p>
+ * A search only visits the rarest trigrams of the query, as many as fit in a scan budget,
+ * counting how many of the posting sets each document is in. Since the documents are dense, the
+ * counting is done in a plain (pooled) array, and since the posting sets are sorted, they are
+ * counted together a window of documents at a time, so that the counts being updated stay in the
+ * cache. The documents found in the most posting sets are then ranked by the trigram similarity
+ * between the query and the current name of the customer (shared trigrams / all trigrams), which
+ * also weeds out any candidates that have changed since. Searching for common names therefore
+ * costs about the same as searching for rare ones.
+ * <p>
+ * The index must be updated from within the compute of the customer id, so that the updates for a
+ * customer are applied in order.
+ * 
+ * @author Marcus Hirt
+ */
+public final class TrigramIndex {
+	// The maximum number of posting entries to visit when looking for candidates
+	private final static int SCAN_BUDGET = 32768;
+	// The maximum number of candidates to rank by looking up their names
+	private final static int CANDIDATE_BUDGET = 64;
+	// The documents are counted a window at a time, all sets at once, so that the counts stay cached
+	private final static int COUNT_WINDOW = 1 << 16;
+	// The counts are kept in bytes
+	private final static int MAX_SCANNED_POSTINGS = Byte.MAX_VALUE;
+	private final static int NO_DOCUMENT = -1;
+
+	private final ConcurrentMap<Long, Postings> postings = new ConcurrentHashMap<>();
+
+	// Guarded by documentLock
+	private final Object documentLock = new Object();
+	private final LongIntMap idToDocument = new LongIntMap();
+	private int[] freeDocuments = new int[16];
+	private int numberOfFreeDocuments;
+	private volatile long[] documentToId = new long[1024];
+	private volatile int numberOfDocuments;
+
+	private final Queue<Counts> countsPool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * A hit from a search.
+	 */
+	public final static class Hit {
+		private final Customer customer;
+		private final double score;
+
+		Hit(Customer customer, double score) {
+			this.customer = customer;
+			this.score = score;
+		}
+
+		public Customer getCustomer() {
+			return customer;
+		}
+
+		/**
+		 * @return the similarity between the query and the name of the customer, from 0 (exclusive)
+		 *         to 1.
+		 */
+		public double getScore() {
+			return score;
+		}
+	}
+
+	/**
+	 * Updates the index for a change to a customer.
+	 * 
+	 * @param before
+	 *            the customer before the change, or null if it was created.
+	 * @param after
+	 *            the customer after the change, or null if it was deleted.
+	 */
+	void update(Customer before, Customer after) {
+		long id = (before == null) ? after.getId() : before.getId();
+		int indexed = getDocument(id);
+		if (indexed == NO_DOCUMENT) {
+			if (after == null) {
+				return;
+			}
+			// Not indexed yet, e.g. loaded by a batch that has not got to addAll yet - index it as new
+			before = null;
+			indexed = allocateDocument(id);
+			if (indexed == NO_DOCUMENT) {
+				indexed = getDocument(id);
+			}
+		}
+		int document = indexed;
+		long[] beforeTrigrams = before == null ? new long[0] : trigrams(before.getFullName());
+		long[] afterTrigrams = after == null ? new long[0] : trigrams(after.getFullName());
+		for (long trigram : beforeTrigrams) {
+			if (Arrays.binarySearch(afterTrigrams, trigram) < 0) {
+				postings.computeIfPresent(trigram, (key, set) -> set.remove(document) ? null : set);
+			}
+		}
+		for (long trigram : afterTrigrams) {
+			if (Arrays.binarySearch(beforeTrigrams, trigram) < 0) {
+				postings.compute(trigram, (key, set) -> {
+					Postings target = set == null ? new Postings() : set;
+					target.add(document);
+					return target;
+				});
+			}
+		}
+		if (after == null) {
+			freeDocument(before.getId());
+		}
+	}
+
+	/**
+	 * Adds new customers in bulk, updating each posting set once per batch rather than once per
+	 * customer. Customers already in the index are skipped. Since this is not done from within the
+	 * computes of the customers, any customer changed concurrently must be brought up to date
+	 * afterwards, by an {@link #update(Customer, Customer)} from the added to the current version.
+	 * 
+	 * @param customers
+	 *            the customers to add.
+	 */
+	void addAll(List<Customer> customers) {
+		Map<Long, int[]> documentsByTrigram = new HashMap<>();
+		for (Customer customer : customers) {
+			int document = allocateDocument(customer.getId());
+			if (document == NO_DOCUMENT) {
+				continue;
+			}
+			for (long trigram : trigrams(customer.getFullName())) {
+				// The first element is the number of documents
+				int[] documents = documentsByTrigram.get(trigram);
+				if (documents == null) {
+					documents = new int[4];
+					documentsByTrigram.put(trigram, documents);
+				} else if (documents[0] + 1 == documents.length) {
+					documents = Arrays.copyOf(documents, documents.length * 2);
+					documentsByTrigram.put(trigram, documents);
+				}
+				documents[++documents[0]] = document;
+			}
+		}
+		for (Map.Entry<Long, int[]> entry : documentsByTrigram.entrySet()) {
+			int[] documents = entry.getValue();
+			postings.compute(entry.getKey(), (key, set) -> {
+				Postings target = set == null ? new Postings() : set;
+				target.addAll(documents, 1, documents[0] + 1);
+				return target;
+			});
+		}
+	}
+
+	/**
+	 * Searches for customers with names similar to the query.
+	 * 
+	 * @param query
+	 *            the (partial) name to search for.
+	 * @param limit
+	 *            the maximum number of hits to return.
+	 * @param customers
+	 *            looks up the current version of a customer by id.
+	 * @return the hits, best first.
+	 */
+	public List<Hit> search(String query, int limit, LongFunction<Customer> customers) {
+		long[] queryTrigrams = trigrams(query);
+		List<Postings> candidateSources = new ArrayList<>(queryTrigrams.length);
+		for (long trigram : queryTrigrams) {
+			Postings set = postings.get(trigram);
+			if (set != null) {
+				candidateSources.add(set);
+			}
+		}
+		candidateSources.sort(Comparator.comparingInt(Postings::size));
+
+		// The rarest posting sets that fit in the scan budget, or at least part of the rarest one
+		int scannedSets = 0;
+		for (int planned = 0; scannedSets < candidateSources.size() && scannedSets < MAX_SCANNED_POSTINGS; scannedSets++) {
+			planned += candidateSources.get(scannedSets).size();
+			if (scannedSets > 0 && planned > SCAN_BUDGET) {
+				break;
+			}
+		}
+
+		long[] ids = documentToId;
+		int[] candidates;
+		Counts counts = borrowCounts(ids.length);
+		try {
+			int budget = SCAN_BUDGET;
+			for (int start = 0; start < ids.length && budget > 0; start += COUNT_WINDOW) {
+				for (int i = 0; i < scannedSets && budget > 0; i++) {
+					budget -= candidateSources.get(i).countInto(counts, start, start + COUNT_WINDOW, budget);
+				}
+			}
+			candidates = counts.mostCounted(CANDIDATE_BUDGET);
+		} finally {
+			returnCounts(counts);
+		}
+
+		// Keep the best hits in a heap with the worst of them on top
+		Comparator<Hit> bestFirst = Comparator.comparingDouble(Hit::getScore).reversed()
+				.thenComparingLong((hit) -> hit.getCustomer().getId());
+		PriorityQueue<Hit> hits = new PriorityQueue<>(limit + 1, bestFirst.reversed());
+		long[] buffer = new long[64];
+		for (int document : candidates) {
+			Customer customer = customers.apply(ids[document]);
+			if (customer != null) {
+				String name = customer.getFullName();
+				if (buffer.length < maxTrigrams(name)) {
+					buffer = new long[maxTrigrams(name)];
+				}
+				double score = similarity(queryTrigrams, buffer, trigrams(name, buffer));
+				if (score > 0 && (hits.size() < limit || score >= hits.peek().getScore())) {
+					hits.add(new Hit(customer, score));
+					if (hits.size() > limit) {
+						hits.poll();
+					}
+				}
+			}
+		}
+		List<Hit> result = new ArrayList<>(hits);
+		result.sort(bestFirst);
+		return result;
+	}
+
+	/**
+	 * @return the number of distinct trigrams in the index.
+	 */
+	public int getNumberOfTrigrams() {
+		return postings.size();
+	}
+
+	/**
+	 * @return the new document, or {@link #NO_DOCUMENT} if the id already has one.
+	 */
+	private int allocateDocument(long id) {
+		synchronized (documentLock) {
+			if (idToDocument.get(id) != NO_DOCUMENT) {
+				return NO_DOCUMENT;
+			}
+			int document;
+			if (numberOfFreeDocuments > 0) {
+				document = freeDocuments[--numberOfFreeDocuments];
+			} else {
+				document = numberOfDocuments;
+				if (document == documentToId.length) {
+					documentToId = Arrays.copyOf(documentToId, document * 2);
+				}
+				numberOfDocuments = document + 1;
+			}
+			documentToId[document] = id;
+			idToDocument.put(id, document);
+			return document;
+		}
+	}
+
+	private int getDocument(long id) {
+		synchronized (documentLock) {
+			return idToDocument.get(id);
+		}
+	}
+
+	private void freeDocument(long id) {
+		synchronized (documentLock) {
+			int document = idToDocument.remove(id);
+			if (document == NO_DOCUMENT) {
+				return;
+			}
+			if (numberOfFreeDocuments == freeDocuments.length) {
+				freeDocuments = Arrays.copyOf(freeDocuments, freeDocuments.length * 2);
+			}
+			freeDocuments[numberOfFreeDocuments++] = document;
+		}
+	}
+
+	private Counts borrowCounts(int numberOfDocuments) {
+		Counts counts = countsPool.poll();
+		if (counts == null || counts.counts.length < numberOfDocuments) {
+			counts = new Counts(numberOfDocuments);
+		}
+		return counts;
+	}
+
+	private void returnCounts(Counts counts) {
+		counts.clear();
+		countsPool.offer(counts);
+	}
+
+	private static double similarity(long[] sortedA, long[] sortedB, int lengthB) {
+		int shared = 0;
+		for (int i = 0, j = 0; i < sortedA.length && j < lengthB;) {
+			if (sortedA[i] == sortedB[j]) {
+				shared++;
+				i++;
+				j++;
+			} else if (sortedA[i] < sortedB[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		int all = sortedA.length + lengthB - shared;
+		return all == 0 ? 0 : (double) shared / all;
+	}
+
+	/**
+	 * @return the distinct trigrams of the text, sorted. Each trigram is three 21 bit code points.
+	 */
+	static long[] trigrams(String text) {
+		long[] buffer = new long[maxTrigrams(text)];
+		return Arrays.copyOf(buffer, trigrams(text, buffer));
+	}
+
+	private static int maxTrigrams(String text) {
+		// Every character can end a word, giving at most two trigrams per character
+		return text.length() * 2;
+	}
+
+	/**
+	 * Puts the distinct trigrams of the text, sorted, first in the buffer. Does not allocate, since
+	 * this is done for every candidate in a search.
+	 * 
+	 * @return the number of trigrams.
+	 */
+	private static int trigrams(String text, long[] buffer) {
+		int count = 0;
+		// The two previous code points of the current padded word, or -1 if not in a word
+		int first = -1;
+		int second = -1;
+		for (int i = 0; i <= text.length();) {
+			int codePoint = (i < text.length()) ? Character.toLowerCase(text.codePointAt(i)) : ' ';
+			if (Character.isLetterOrDigit(codePoint)) {
+				if (first < 0) {
+					first = ' ';
+					second = ' ';
+				}
+				buffer[count++] = trigram(first, second, codePoint);
+				first = second;
+				second = codePoint;
+			} else if (first >= 0) {
+				buffer[count++] = trigram(first, second, ' ');
+				first = -1;
+				second = -1;
+			}
+			i += (i < text.length()) ? Character.charCount(codePoint) : 1;
+		}
+		return sortDistinct(buffer, count);
+	}
+
+	private static long trigram(int first, int second, int third) {
+		return ((long) first << 42) | ((long) second << 21) | third;
+	}
+
+	/*
+	 * Insertion sort, since names only have a handful of trigrams.
+	 */
+	private static int sortDistinct(long[] values, int count) {
+		for (int i = 1; i < count; i++) {
+			long value = values[i];
+			int j = i - 1;
+			while (j >= 0 && values[j] > value) {
+				values[j + 1] = values[j];
+				j--;
+			}
+			values[j + 1] = value;
+		}
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || values[i] != values[distinct - 1]) {
+				values[distinct++] = values[i];
+			}
+		}
+		return distinct;
+	}
+
+	/**
+	 * The documents with a trigram, in order, kept in chunks so that adding and removing only moves
+	 * a chunk worth of documents. Guarded by itself.
+	 */
+	private final static class Postings {
+		private final static int CHUNK_SIZE = 1024;
+		// Most trigrams only have a few documents, so the chunks start small
+		private final static int INITIAL_CHUNK_CAPACITY = 4;
+
+		// Never empty chunks, ordered by their first document
+		private int[][] chunks = new int[1][];
+		private int[] sizes = new int[1];
+		private int chunkCount;
+		private int size;
+
+		synchronized void add(int document) {
+			insert(document);
+		}
+
+		synchronized void addAll(int[] newDocuments, int from, int to) {
+			for (int i = from; i < to; i++) {
+				insert(newDocuments[i]);
+			}
+		}
+
+		/**
+		 * @return true if the set is empty after the removal.
+		 */
+		synchronized boolean remove(int document) {
+			if (chunkCount == 0) {
+				return true;
+			}
+			int chunk = findChunk(document);
+			int index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], document);
+			if (index < 0) {
+				return false;
+			}
+			int[] documents = chunks[chunk];
+			System.arraycopy(documents, index + 1, documents, index, sizes[chunk] - index - 1);
+			size--;
+			if (--sizes[chunk] == 0) {
+				removeChunk(chunk);
+			} else if (sizes[chunk] < CHUNK_SIZE / 4) {
+				// Merge sparse chunks with a neighbour, so that removals do not leave mostly empty chunks
+				if (chunk + 1 < chunkCount && sizes[chunk] + sizes[chunk + 1] <= CHUNK_SIZE) {
+					merge(chunk);
+				} else if (chunk > 0 && sizes[chunk - 1] + sizes[chunk] <= CHUNK_SIZE) {
+					merge(chunk - 1);
+				}
+			}
+			return size == 0;
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		/**
+		 * Counts the documents from start (inclusive) to end (exclusive).
+		 * 
+		 * @return the number of documents counted.
+		 */
+		synchronized int countInto(Counts counts, int start, int end, int maxDocuments) {
+			if (chunkCount == 0) {
+				return 0;
+			}
+			int chunk = findChunk(start);
+			int index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], start);
+			index = index >= 0 ? index : -index - 1;
+			int counted = 0;
+			for (; chunk < chunkCount; chunk++, index = 0) {
+				int[] documents = chunks[chunk];
+				for (int chunkSize = sizes[chunk]; index < chunkSize; index++) {
+					if (documents[index] >= end || counted == maxDocuments) {
+						return counted;
+					}
+					counts.increment(documents[index]);
+					counted++;
+				}
+			}
+			return counted;
+		}
+
+		private void insert(int document) {
+			if (chunkCount == 0) {
+				insertChunk(0, new int[INITIAL_CHUNK_CAPACITY]);
+			}
+			int chunk = findChunk(document);
+			int index = Arrays.binarySearch(chunks[chunk], 0, sizes[chunk], document);
+			if (index >= 0) {
+				return;
+			}
+			index = -index - 1;
+			if (sizes[chunk] == CHUNK_SIZE) {
+				if (chunk == chunkCount - 1 && index == CHUNK_SIZE) {
+					// Appending, as new documents mostly are - start a new chunk rather than splitting
+					insertChunk(chunkCount, new int[INITIAL_CHUNK_CAPACITY]);
+					chunk++;
+					index = 0;
+				} else {
+					split(chunk);
+					if (index > sizes[chunk]) {
+						index -= sizes[chunk];
+						chunk++;
+					}
+				}
+			} else if (sizes[chunk] == chunks[chunk].length) {
+				chunks[chunk] = Arrays.copyOf(chunks[chunk], Math.min(CHUNK_SIZE, sizes[chunk] * 2));
+			}
+			int[] documents = chunks[chunk];
+			System.arraycopy(documents, index, documents, index + 1, sizes[chunk] - index);
+			documents[index] = document;
+			sizes[chunk]++;
+			size++;
+		}
+
+		/*
+		 * The last chunk starting at or before the document, or the first chunk.
+		 */
+		private int findChunk(int document) {
+			int low = 0;
+			int high = chunkCount - 1;
+			while (low < high) {
+				int middle = (low + high + 1) >>> 1;
+				if (chunks[middle][0] <= document) {
+					low = middle;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+
+		private void insertChunk(int chunk, int[] documents) {
+			if (chunkCount == chunks.length) {
+				chunks = Arrays.copyOf(chunks, chunkCount * 2);
+				sizes = Arrays.copyOf(sizes, chunkCount * 2);
+			}
+			System.arraycopy(chunks, chunk, chunks, chunk + 1, chunkCount - chunk);
+			System.arraycopy(sizes, chunk, sizes, chunk + 1, chunkCount - chunk);
+			chunks[chunk] = documents;
+			sizes[chunk] = 0;
+			chunkCount++;
+		}
+
+		private void removeChunk(int chunk) {
+			System.arraycopy(chunks, chunk + 1, chunks, chunk, chunkCount - chunk - 1);
+			System.arraycopy(sizes, chunk + 1, sizes, chunk, chunkCount - chunk - 1);
+			chunks[--chunkCount] = null;
+		}
+
+		/*
+		 * Moves the upper half of the full chunk into a new chunk after it.
+		 */
+		private void split(int chunk) {
+			int half = CHUNK_SIZE / 2;
+			insertChunk(chunk + 1, new int[CHUNK_SIZE]);
+			System.arraycopy(chunks[chunk], half, chunks[chunk + 1], 0, CHUNK_SIZE - half);
+			sizes[chunk + 1] = CHUNK_SIZE - half;
+			sizes[chunk] = half;
+		}
+
+		/*
+		 * Appends the next chunk to the given one, and removes it.
+		 */
+		private void merge(int chunk) {
+			int merged = sizes[chunk] + sizes[chunk + 1];
+			if (chunks[chunk].length < merged) {
+				chunks[chunk] = Arrays.copyOf(chunks[chunk], CHUNK_SIZE);
+			}
+			System.arraycopy(chunks[chunk + 1], 0, chunks[chunk], sizes[chunk], sizes[chunk + 1]);
+			sizes[chunk] = merged;
+			removeChunk(chunk + 1);
+		}
+	}
+
+	/**
+	 * Per document counts for a search, kept in a plain array since the documents are dense. The
+	 * touched documents are remembered, so that only they need to be cleared.
+	 */
+	private final static class Counts {
+		private final byte[] counts;
+		// The number of touched documents with each count, kept up to date as they are counted
+		private final int[] histogram = new int[MAX_SCANNED_POSTINGS + 1];
+		private int[] touched = new int[1024];
+		private int numberOfTouched;
+		private int maxCount;
+
+		Counts(int numberOfDocuments) {
+			counts = new byte[numberOfDocuments];
+		}
+
+		void increment(int document) {
+			// Documents allocated after the search started are left out
+			if (document >= counts.length) {
+				return;
+			}
+			if (counts[document] == 0) {
+				if (numberOfTouched == touched.length) {
+					touched = Arrays.copyOf(touched, touched.length * 2);
+				}
+				touched[numberOfTouched++] = document;
+			}
+			int count = ++counts[document];
+			histogram[count - 1]--;
+			histogram[count]++;
+			maxCount = Math.max(maxCount, count);
+		}
+
+		/**
+		 * @return at most n of the documents with the highest counts.
+		 */
+		int[] mostCounted(int n) {
+			int threshold = maxCount;
+			int above = 0;
+			for (; threshold > 1 && above + histogram[threshold] < n; threshold--) {
+				above += histogram[threshold];
+			}
+			int[] result = new int[Math.min(n, numberOfTouched)];
+			// The ones above the threshold first, then fill up with the ones at it
+			int high = 0;
+			int low = above;
+			for (int i = 0; i < numberOfTouched; i++) {
+				int count = counts[touched[i]];
+				if (count > threshold) {
+					result[high++] = touched[i];
+				} else if (count == threshold && low < result.length) {
+					result[low++] = touched[i];
+				}
+			}
+			return Arrays.copyOf(result, low);
+		}
+
+		void clear() {
+			for (int i = 0; i < numberOfTouched; i++) {
+				counts[touched[i]] = 0;
+			}
+			Arrays.fill(histogram, 0, maxCount + 1, 0);
+			numberOfTouched = 0;
+			maxCount = 0;
+		}
+	}
+
+	/**
+	 * Open addressing map from long to non-negative int. Not thread safe.
+	 */
+	private final static class LongIntMap {
+		private final static int EMPTY = 0;
+
+		// Values are stored + 1, so that a zero value means an empty slot
+		private long[] keys = new long[1024];
+		private int[] values = new int[1024];
+		private int size;
+
+		int get(long key) {
+			int mask = keys.length - 1;
+			for (int index = hash(key) & mask; values[index] != EMPTY; index = (index + 1) & mask) {
+				if (keys[index] == key) {
+					return values[index] - 1;
+				}
+			}
+			return NO_DOCUMENT;
+		}
+
+		void put(long key, int value) {
+			if ((size + 1) * 2 > keys.length) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			int index = hash(key) & mask;
+			while (values[index] != EMPTY && keys[index] != key) {
+				index = (index + 1) & mask;
+			}
+			if (values[index] == EMPTY) {
+				size++;
+			}
+			keys[index] = key;
+			values[index] = value + 1;
+		}
+
+		int remove(long key) {
+			int mask = keys.length - 1;
+			int index = hash(key) & mask;
+			while (values[index] != EMPTY && keys[index] != key) {
+				index = (index + 1) & mask;
+			}
+			if (values[index] == EMPTY) {
+				return NO_DOCUMENT;
+			}
+			int value = values[index] - 1;
+			// Shift back any following entries that would no longer be reachable
+			int hole = index;
+			for (int next = (hole + 1) & mask; values[next] != EMPTY; next = (next + 1) & mask) {
+				int home = hash(keys[next]) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					keys[hole] = keys[next];
+					values[hole] = values[next];
+					hole = next;
+				}
+			}
+			values[hole] = EMPTY;
+			size--;
+			return value;
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[capacity];
+			values = new int[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != EMPTY) {
+					int index = hash(oldKeys[i]) & mask;
+					while (values[index] != EMPTY) {
+						index = (index + 1) & mask;
+					}
+					keys[index] = oldKeys[i];
+					values[index] = oldValues[i];
+				}
+			}
+		}
+
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.customerservice.data.ChangeFeed;
+import se.hirt.examples.robotshop.customerservice.data.ChangeFeed.Change;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+
+/**
+ * Streams the changes to the customers as newline delimited JSON, one change per line.
+ * <p>
+ * Resume with since set to the sequence of the last change received. A consumer that falls too far
+ * behind (or asks for a sequence from before a restart) gets a 410, or a RESET line if it happens
+ * mid-stream, with the current sequence. It must then reload the customers it cares about, and
+ * resume from that sequence.
+ * 
+ * @author Marcus Hirt
+ */
+@Path("/customers/changes/")
+public class CustomerChangesResource {
+	public static final String MEDIA_TYPE_NDJSON = "application/x-ndjson";
+	public static final String TYPE_RESET = "RESET";
+	private static final String DEFAULT_WAIT_SECONDS = "30";
+	private static final int MAX_WAIT_SECONDS = 300;
+	private static final int MAX_CHANGES_PER_READ = 1024;
+
+	/**
+	 * @param since
+	 *            stream the changes after this sequence. Defaults to the latest sequence, i.e. only
+	 *            stream new changes.
+	 * @param waitSeconds
+	 *            how long to keep the stream open waiting for more changes. 0 to only return the
+	 *            changes already available.
+	 */
+	@GET
+	@Produces({MEDIA_TYPE_NDJSON, MediaType.APPLICATION_JSON})
+	public Response streamChanges(
+		@QueryParam("since") Long since, @QueryParam("wait") @DefaultValue(DEFAULT_WAIT_SECONDS) int waitSeconds) {
+		if (waitSeconds < 0 || waitSeconds > MAX_WAIT_SECONDS) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("wait must be between 0 and " + MAX_WAIT_SECONDS)).build();
+		}
+		ChangeFeed feed = DataAccess.getChangeFeed();
+		long start = (since != null) ? since : feed.getLastSequence();
+		if (feed.read(start, 0) == null) {
+			return Response.status(Status.GONE).type(MediaType.APPLICATION_JSON)
+					.entity(Json.createObjectBuilder()
+							.add(Utils.KEY_ERROR, "Changes after " + start + " no longer available - reload and resume")
+							.add(Change.KEY_SEQUENCE, feed.getLastSequence()).build().toString())
+					.build();
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(waitSeconds);
+		StreamingOutput stream = (output) -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			long last = start;
+			while (true) {
+				List<Change> changes = feed.read(last, MAX_CHANGES_PER_READ);
+				if (changes == null) {
+					writeLine(writer, Json.createObjectBuilder().add(Change.KEY_TYPE, TYPE_RESET)
+							.add(Change.KEY_SEQUENCE, feed.getLastSequence()).build().toString());
+					break;
+				}
+				for (Change change : changes) {
+					writeLine(writer, change.toJSon().build().toString());
+					last = change.getSequence();
+				}
+				writer.flush();
+				if (changes.size() < MAX_CHANGES_PER_READ && !await(feed, last, deadline)) {
+					break;
+				}
+			}
+			writer.flush();
+		};
+		return Response.ok(stream, MEDIA_TYPE_NDJSON).build();
+	}
+
+	private static boolean await(ChangeFeed feed, long last, long deadline) {
+		long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+		if (remaining <= 0) {
+			return false;
+		}
+		try {
+			return feed.await(last, remaining);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static void writeLine(Writer writer, String line) throws IOException {
+		writer.write(line);
+		writer.write('\n');
+	}
+}
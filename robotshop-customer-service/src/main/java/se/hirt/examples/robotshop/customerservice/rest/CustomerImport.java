@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.rest;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.data.ValidationException;
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+
+/**
+ * An ongoing import of newline delimited JSON customers. Buffers a chunk of customers at a time,
+ * and writes a progress line to the writer about once a second.
+ * 
+ * @author Marcus Hirt
+ */
+final class CustomerImport {
+	private static final int CHUNK_SIZE = 1024;
+	private static final int MAX_REPORTED_ERRORS = 100;
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+	private final Writer progressWriter;
+	private final long startTime = System.nanoTime();
+	private long lastProgressTime = startTime;
+
+	private final List<Customer> withIds = new ArrayList<>(CHUNK_SIZE);
+	private final List<String> fullNames = new ArrayList<>(CHUNK_SIZE);
+	private final List<String> phoneNumbers = new ArrayList<>(CHUNK_SIZE);
+	private final JsonArrayBuilder errors = Json.createArrayBuilder();
+
+	private long lines;
+	private long imported;
+	private long failed;
+
+	CustomerImport(Writer progressWriter) {
+		this.progressWriter = progressWriter;
+	}
+
+	/**
+	 * Adds a line of the import.
+	 */
+	void add(String line) throws IOException {
+		lines++;
+		if (line.trim().isEmpty()) {
+			return;
+		}
+		try {
+			JsonObject json = Json.createReader(new StringReader(line)).readObject();
+			String fullName = json.getString(Customer.KEY_FULL_NAME);
+			String phoneNumber = json.getString(Customer.KEY_PHONE_NUMBER);
+			Customer.validate(fullName, phoneNumber);
+			if (json.containsKey(Customer.KEY_CUSTOMER_ID)) {
+				withIds.add(new Customer(Long.parseLong(json.getString(Customer.KEY_CUSTOMER_ID)), fullName,
+						phoneNumber));
+			} else {
+				fullNames.add(fullName);
+				phoneNumbers.add(phoneNumber);
+			}
+		} catch (ValidationException | RuntimeException e) {
+			failed++;
+			if (failed <= MAX_REPORTED_ERRORS) {
+				errors.add(Utils.errorAsJSon(e).add("line", lines));
+			}
+		}
+		if (withIds.size() + fullNames.size() >= CHUNK_SIZE) {
+			flushChunk();
+			long now = System.nanoTime();
+			if (now - lastProgressTime >= PROGRESS_INTERVAL) {
+				lastProgressTime = now;
+				writeLine(getProgress(now));
+				progressWriter.flush();
+			}
+		}
+	}
+
+	/**
+	 * Imports what is left, and writes the summary.
+	 */
+	void finish() throws IOException {
+		flushChunk();
+		long now = System.nanoTime();
+		JsonObjectBuilder summary = getProgress(now).add("done", true).add("errors", errors);
+		writeLine(summary);
+		progressWriter.flush();
+		System.out.println(String.format("Imported %d customers (%d failed) in %d ms", imported, failed,
+				TimeUnit.NANOSECONDS.toMillis(now - startTime)));
+	}
+
+	private void flushChunk() {
+		if (!withIds.isEmpty()) {
+			DataAccess.putCustomers(withIds);
+			imported += withIds.size();
+			withIds.clear();
+		}
+		if (!fullNames.isEmpty()) {
+			DataAccess.createCustomers(fullNames, phoneNumbers);
+			imported += fullNames.size();
+			fullNames.clear();
+			phoneNumbers.clear();
+		}
+	}
+
+	private JsonObjectBuilder getProgress(long now) {
+		long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - startTime));
+		return Json.createObjectBuilder().add("lines", lines).add("imported", imported).add("failed", failed)
+				.add("elapsedMillis", elapsedMillis).add("customersPerSecond", imported * 1000 / elapsedMillis);
+	}
+
+	private void writeLine(JsonObjectBuilder json) throws IOException {
+		progressWriter.write(json.build().toString());
+		progressWriter.write('\n');
+	}
+}
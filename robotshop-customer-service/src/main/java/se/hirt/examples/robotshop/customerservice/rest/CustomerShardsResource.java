@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import se.hirt.examples.robotshop.common.sharding.ConsistentHashRing;
+import se.hirt.examples.robotshop.common.sharding.CustomerRouter;
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.customerservice.ShardManager;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+
+/**
+ * The shards of a sharded customer service. Posting a new list of shards makes this instance move
+ * the customers it no longer owns to their new owners, in the background. Posting it to rebalance/
+ * makes this instance do the same for all the instances, in either list - see
+ * {@link CustomerRouter#rebalance(ConsistentHashRing)}.
+ * 
+ * @author Marcus Hirt
+ */
+@Path("/customers/shards/")
+public class CustomerShardsResource {
+
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public JsonObject getStatus() {
+		return ShardManager.getInstance().getStatus().build();
+	}
+
+	@POST
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response rebalance(JsonObject jsonEntity) {
+		if (DataAccess.getShardLocation() == null) {
+			return Response.status(Status.CONFLICT).entity(Utils.errorAsJSonString("This instance is not sharded"))
+					.build();
+		}
+		ConsistentHashRing ring = parseRing(jsonEntity);
+		if (ring == null) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("Must specify " + CustomerRouter.KEY_SHARDS)).build();
+		}
+		ShardManager.getInstance().rebalance(ring);
+		return Response.accepted(getStatus()).build();
+	}
+
+	@POST
+	@Path("rebalance/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response rebalanceAll(JsonObject jsonEntity) {
+		if (DataAccess.getShardLocation() == null) {
+			return Response.status(Status.CONFLICT).entity(Utils.errorAsJSonString("This instance is not sharded"))
+					.build();
+		}
+		ConsistentHashRing ring = parseRing(jsonEntity);
+		if (ring == null) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("Must specify " + CustomerRouter.KEY_SHARDS)).build();
+		}
+		if (!ShardManager.getInstance().coordinateRebalance(ring)) {
+			return Response.status(Status.CONFLICT)
+					.entity(Utils.errorAsJSonString("Already rebalancing the customers")).build();
+		}
+		return Response.accepted(getStatus()).build();
+	}
+
+	/**
+	 * @return the ring of the shards listed, or null if there are none.
+	 */
+	private static ConsistentHashRing parseRing(JsonObject jsonEntity) {
+		JsonArray jsonShards = jsonEntity.getJsonArray(CustomerRouter.KEY_SHARDS);
+		if (jsonShards == null || jsonShards.isEmpty()) {
+			return null;
+		}
+		List<String> shards = new ArrayList<>();
+		for (JsonString jsonShard : jsonShards.getValuesAs(JsonString.class)) {
+			shards.add(ConsistentHashRing.normalize(jsonShard.getString()));
+		}
+		return new ConsistentHashRing(shards);
+	}
+}
@@ -31,26 +31,54 @@
  */
 package se.hirt.examples.robotshop.customerservice.rest;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
 import se.hirt.examples.robotshop.common.data.Customer;
 import se.hirt.examples.robotshop.common.data.ValidationException;
 import se.hirt.examples.robotshop.common.util.Utils;
 import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+import se.hirt.examples.robotshop.customerservice.data.TrigramIndex;
 
 /**
  * Rest API for customers.
@@ -59,26 +87,149 @@ import se.hirt.examples.robotshop.customerservice.data.DataAccess;
  */
 @Path("/customers/")
 public class CustomersResource {
+	private static final String DEFAULT_PAGE_SIZE = "1000";
+	private static final int MAX_PAGE_SIZE = 10000;
+	private static final int BATCH_CHUNK_SIZE = 1024;
+	private static final int BATCH_QUEUE_SIZE = 64;
+	private static final ThreadGroup BATCH_GROUP = new ThreadGroup("Customer Batch Add");
+	// The chunks may block on the journal, so they get threads of their own rather than the common pool.
+	// When all are busy and the queue is full, the request thread adds its chunks itself.
+	private static final ThreadPoolExecutor BATCH_EXECUTOR;
+	private static final String DEFAULT_SEARCH_LIMIT = "10";
+	private static final int MAX_SEARCH_LIMIT = 100;
+	private static final String KEY_SCORE = "score";
+	private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+
 	@Context
 	UriInfo uriInfo;
 
+	static {
+		String batchThreads = System.getenv("CUSTOMER_BATCH_THREADS");
+		int threads = (batchThreads == null || batchThreads.isEmpty()) ? Runtime.getRuntime().availableProcessors()
+				: Integer.parseInt(batchThreads);
+		BATCH_EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(BATCH_QUEUE_SIZE), new BatchThreadFactory(),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		BATCH_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	private final static class BatchThreadFactory implements ThreadFactory {
+		private final static AtomicInteger COUNT = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(BATCH_GROUP, r, "Customer Batch Add " + COUNT.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public JsonArray list() {
+	public Response list(
+		@QueryParam("name") String name, @QueryParam("phone") String phone, @QueryParam("after") Long after,
+		@QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) int limit) {
+		if (name != null || phone != null) {
+			return Response.ok(find(name, phone)).build();
+		}
+		if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("limit must be between 1 and " + MAX_PAGE_SIZE)).build();
+		}
+		List<Customer> page = DataAccess.getCustomersAfter(after, limit);
+		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+		for (Customer customer : page) {
+			arrayBuilder.add(customer.toJSon());
+		}
+		ResponseBuilder builder = Response.ok(arrayBuilder.build());
+		if (page.size() == limit) {
+			// Keyset pagination - the cursor is simply the last id we returned
+			URI next = uriInfo.getAbsolutePathBuilder().queryParam("after", page.get(page.size() - 1).getId())
+					.queryParam("limit", limit).build();
+			builder.link(next, "next");
+		}
+		return builder.build();
+	}
+
+	/*
+	 * Uses the secondary indexes. If both name and phone are specified, the customers must match
+	 * both.
+	 */
+	private static JsonArray find(String name, String phone) {
+		Collection<Customer> matches = (name != null) ? DataAccess.getCustomersByName(name)
+				: DataAccess.getCustomersByPhone(phone);
 		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
-		for (Customer customer : DataAccess.getAllCustomers()) {
-			// UriBuilder ub = uriInfo.getAbsolutePathBuilder();
-			// URI userUri = ub.path(String.valueOf(customer.getCustomerId())).build();
-			JsonObjectBuilder objectBuilder = Json.createObjectBuilder();
-			// Can't trust the transfer of longs, unfortunately.
-			objectBuilder.add(Customer.KEY_CUSTOMER_ID, String.valueOf(customer.getId()));
-			objectBuilder.add(Customer.KEY_FULL_NAME, customer.getFullName());
-			objectBuilder.add(Customer.KEY_PHONE_NUMBER, customer.getPhoneNumber());
-			arrayBuilder.add(objectBuilder);
+		for (Customer customer : matches) {
+			if (phone == null || phone.equals(customer.getPhoneNumber())) {
+				arrayBuilder.add(customer.toJSon());
+			}
 		}
 		return arrayBuilder.build();
 	}
 
+	/**
+	 * Fuzzy searches the customers by name, returning the best matches first, each with a score
+	 * from 0 to 1.
+	 */
+	@GET
+	@Path("search/")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response search(@QueryParam("q") String query,
+		@QueryParam("limit") @DefaultValue(DEFAULT_SEARCH_LIMIT) int limit) {
+		if (query == null || query.trim().isEmpty()) {
+			return Response.status(Status.BAD_REQUEST).entity(Utils.errorAsJSonString("Must specify q")).build();
+		}
+		if (limit <= 0 || limit > MAX_SEARCH_LIMIT) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("limit must be between 1 and " + MAX_SEARCH_LIMIT)).build();
+		}
+		List<TrigramIndex.Hit> hits = DataAccess.searchCustomers(query, limit);
+		if (hits == null) {
+			return Response.status(Status.NOT_IMPLEMENTED)
+					.entity(Utils.errorAsJSonString("The search index is disabled")).build();
+		}
+		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+		for (TrigramIndex.Hit hit : hits) {
+			arrayBuilder.add(hit.getCustomer().toJSon().add(KEY_SCORE, hit.getScore()));
+		}
+		return Response.ok(arrayBuilder.build()).build();
+	}
+
+	/**
+	 * Resolves many customer ids in one go. Takes an array of customer ids (as strings, like
+	 * everywhere else), and returns the customers found and the ids that were not.
+	 */
+	@POST
+	@Path("lookup/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response lookup(JsonObject jsonEntity) {
+		JsonArray jsonIds = jsonEntity.getJsonArray(Customer.KEY_CUSTOMER_IDS);
+		if (jsonIds == null || jsonIds.size() > MAX_PAGE_SIZE) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("Must specify at most " + MAX_PAGE_SIZE + " " + Customer.KEY_CUSTOMER_IDS))
+					.build();
+		}
+		JsonArrayBuilder customers = Json.createArrayBuilder();
+		JsonArrayBuilder missing = Json.createArrayBuilder();
+		for (JsonValue jsonId : jsonIds) {
+			Customer customer;
+			try {
+				customer = DataAccess.getCustomerById(Long.valueOf(((JsonString) jsonId).getString()));
+			} catch (ClassCastException | NumberFormatException e) {
+				return Response.status(Status.BAD_REQUEST)
+						.entity(Utils.errorAsJSonString(Customer.KEY_CUSTOMER_IDS + " must be strings of numbers")).build();
+			}
+			if (customer != null) {
+				customers.add(customer.toJSon());
+			} else {
+				missing.add(jsonId);
+			}
+		}
+		return Response.ok(Json.createObjectBuilder().add(Customer.KEY_CUSTOMERS, customers)
+				.add(Customer.KEY_MISSING_CUSTOMER_IDS, missing).build()).build();
+	}
+
 	@PUT
 	@Consumes(MediaType.APPLICATION_JSON)
 	public Response putUser(JsonObject jsonEntity) {
@@ -99,21 +250,137 @@ public class CustomersResource {
 		return DataAccess.createCustomer(fullName, phoneNumber);
 	}
 
+	/**
+	 * Validates and creates the customers in chunks, in parallel on the batch executor, each chunk
+	 * being committed to the {@link DataAccess} in one go. The results are in the same order as the
+	 * customers in the request.
+	 */
 	@PUT
 	@Path("batchadd/")
 	@Consumes(MediaType.APPLICATION_JSON)
 	public Response putUsers(JsonObject jsonEntity) {
 		JsonArray jsonArray = jsonEntity.getJsonArray("customers");
+		int size = jsonArray.size();
+		JsonObjectBuilder[] results = new JsonObjectBuilder[size];
+
+		int chunks = (size + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE;
+		List<Future<?>> futures = new ArrayList<>(chunks);
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int start = chunk * BATCH_CHUNK_SIZE;
+			int end = Math.min(size, start + BATCH_CHUNK_SIZE);
+			futures.add(BATCH_EXECUTOR.submit(() -> addChunk(jsonArray, start, end, results)));
+		}
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Response.status(Status.SERVICE_UNAVAILABLE).entity(Utils.errorAsJSonString(e)).build();
+		} catch (ExecutionException e) {
+			return Response.status(Status.INTERNAL_SERVER_ERROR).entity(Utils.errorAsJSonString(e.getCause()))
+					.build();
+		}
+
 		final JsonArrayBuilder result = Json.createArrayBuilder();
-		jsonArray.forEach((jsonValue) -> {
+		for (JsonObjectBuilder builder : results) {
+			result.add(builder);
+		}
+		return Response.accepted(result.build()).build();
+	}
+
+	private static void addChunk(JsonArray jsonArray, int start, int end, JsonObjectBuilder[] results) {
+		List<Integer> positions = new ArrayList<>(end - start);
+		List<String> chunkNames = new ArrayList<>(end - start);
+		List<String> chunkPhoneNumbers = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) {
+			JsonObject jsonCustomer = jsonArray.getJsonObject(i);
 			try {
-				Customer c = createCustomer(jsonValue.asJsonObject());
-				result.add(c.toJSon());
+				String fullName = jsonCustomer.getString(Customer.KEY_FULL_NAME);
+				String phoneNumber = jsonCustomer.getString(Customer.KEY_PHONE_NUMBER);
+				Customer.validate(fullName, phoneNumber);
+				positions.add(i);
+				chunkNames.add(fullName);
+				chunkPhoneNumbers.add(phoneNumber);
 			} catch (ValidationException e) {
-				result.add(Utils.errorAsJSon(e));
+				results[i] = Utils.errorAsJSon(e);
 			}
-		});
-		return Response.accepted(result.build()).build();
+		}
+		List<Customer> created = DataAccess.createCustomers(chunkNames, chunkPhoneNumbers);
+		for (int j = 0; j < created.size(); j++) {
+			results[positions.get(j)] = created.get(j).toJSon();
+		}
+	}
+
+	/**
+	 * Streams all customers as newline delimited JSON, one customer per line, in constant memory.
+	 * The export is weakly consistent - customers changed while exporting may or may not be
+	 * included in their latest version.
+	 */
+	@GET
+	@Path("export/")
+	@Produces(CustomerChangesResource.MEDIA_TYPE_NDJSON)
+	public Response exportCustomers() {
+		StreamingOutput stream = (output) -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), EXPORT_BUFFER_SIZE);
+			for (Customer customer : DataAccess.getAllCustomers()) {
+				writer.write(customer.toJSon().build().toString());
+				writer.write('\n');
+			}
+			writer.flush();
+		};
+		return Response.ok(stream, CustomerChangesResource.MEDIA_TYPE_NDJSON).build();
+	}
+
+	/**
+	 * Imports newline delimited JSON customers, as produced by the export, in constant memory.
+	 * Customers with a customerId keep it (replacing any existing customer with the id), the others
+	 * get new ids. The customers are inserted in chunks, and the progress is streamed back as
+	 * newline delimited JSON, ending with a summary including the lines that failed.
+	 */
+	@POST
+	@Path("import/")
+	@Consumes({CustomerChangesResource.MEDIA_TYPE_NDJSON, MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM})
+	@Produces(CustomerChangesResource.MEDIA_TYPE_NDJSON)
+	public Response importCustomers(InputStream input) {
+		StreamingOutput stream = (output) -> {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			CustomerImport customerImport = new CustomerImport(writer);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				customerImport.add(line);
+			}
+			customerImport.finish();
+		};
+		return Response.ok(stream, CustomerChangesResource.MEDIA_TYPE_NDJSON).build();
+	}
+
+	/**
+	 * Puts customers with their ids kept, e.g. when moved here from another shard. Existing
+	 * customers with the same ids are replaced.
+	 */
+	@PUT
+	@Path("transfer/")
+	@Consumes(MediaType.APPLICATION_JSON)
+	public Response transfer(JsonObject jsonEntity) {
+		JsonArray jsonArray = jsonEntity.getJsonArray(Customer.KEY_CUSTOMERS);
+		if (jsonArray == null) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("Must specify " + Customer.KEY_CUSTOMERS)).build();
+		}
+		List<Customer> customers = new ArrayList<>(jsonArray.size());
+		try {
+			for (JsonObject jsonCustomer : jsonArray.getValuesAs(JsonObject.class)) {
+				Customer customer = Customer.fromJSon(jsonCustomer);
+				Customer.validate(customer.getFullName(), customer.getPhoneNumber());
+				customers.add(customer);
+			}
+		} catch (ValidationException | RuntimeException e) {
+			return Response.status(Status.BAD_REQUEST).entity(Utils.errorAsJSonString(e)).build();
+		}
+		DataAccess.putCustomers(customers);
+		return Response.noContent().build();
 	}
 
 	@Path("{customerId}/")
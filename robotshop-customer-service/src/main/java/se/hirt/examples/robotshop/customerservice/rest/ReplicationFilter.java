@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.rest;
+
+import java.io.IOException;
+import java.net.URI;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.Provider;
+
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.customerservice.Replicator;
+import se.hirt.examples.robotshop.customerservice.data.DataAccess;
+
+/**
+ * Tags every response with the change sequence the response is (at least) as recent as - the last
+ * change on a primary, and the last applied change on a replica. Clients wanting to read their own
+ * writes from a replica pass the sequence from the response to the write in the
+ * X-Customer-Min-Sequence header (or the minSequence query parameter) when reading.
+ * <p>
+ * On a replica, writes are redirected to the primary, as are reads that the replica cannot catch
+ * up with in time. Reads are refused while the replica is loading the customers.
+ * 
+ * @author Marcus Hirt
+ */
+@Provider
+public class ReplicationFilter implements ContainerRequestFilter, ContainerResponseFilter {
+	public static final String HEADER_SEQUENCE = "X-Customer-Sequence";
+	public static final String HEADER_MIN_SEQUENCE = "X-Customer-Min-Sequence";
+	public static final String PARAM_MIN_SEQUENCE = "minSequence";
+
+	private static final String DEFAULT_MAX_WAIT = "1000";
+	private static final long MAX_WAIT;
+
+	static {
+		String maxWait = System.getenv("CUSTOMER_REPLICA_MAX_WAIT");
+		MAX_WAIT = Long.parseLong((maxWait == null || maxWait.isEmpty()) ? DEFAULT_MAX_WAIT : maxWait);
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		Replicator replicator = Replicator.getInstance();
+		String path = requestContext.getUriInfo().getPath();
+		if (replicator == null || !path.startsWith("customers") || path.startsWith("customers/replication")) {
+			return;
+		}
+		String method = requestContext.getMethod();
+		if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+			requestContext.abortWith(redirectToPrimary(requestContext, replicator));
+			return;
+		}
+		String minSequence = requestContext.getHeaderString(HEADER_MIN_SEQUENCE);
+		if (minSequence == null) {
+			minSequence = requestContext.getUriInfo().getQueryParameters().getFirst(PARAM_MIN_SEQUENCE);
+		}
+		if (minSequence != null) {
+			try {
+				if (!replicator.awaitSequence(Long.parseLong(minSequence), MAX_WAIT)) {
+					requestContext.abortWith(redirectToPrimary(requestContext, replicator));
+				}
+			} catch (NumberFormatException e) {
+				requestContext.abortWith(Response.status(Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON)
+						.entity(Utils.errorAsJSonString(PARAM_MIN_SEQUENCE + " must be a number")).build());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				requestContext.abortWith(redirectToPrimary(requestContext, replicator));
+			}
+		} else if (Replicator.STATE_SYNCING.equals(replicator.getState())) {
+			requestContext.abortWith(Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", 1)
+					.type(MediaType.APPLICATION_JSON)
+					.entity(Utils.errorAsJSonString("Loading the customers from the primary")).build());
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+			throws IOException {
+		Replicator replicator = Replicator.getInstance();
+		long sequence = (replicator != null) ? replicator.getAppliedSequence()
+				: DataAccess.getChangeFeed().getLastSequence();
+		responseContext.getHeaders().putSingle(HEADER_SEQUENCE, String.valueOf(sequence));
+	}
+
+	private static Response redirectToPrimary(ContainerRequestContext requestContext, Replicator replicator) {
+		URI requestUri = requestContext.getUriInfo().getRequestUri();
+		String baseUri = requestContext.getUriInfo().getBaseUri().toString();
+		String relative = requestUri.toString().substring(baseUri.length());
+		return Response.temporaryRedirect(URI.create(replicator.getPrimary() + "/" + relative)).build();
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Tests seeding the {@link DataAccess} with the {@link CustomerSeeder}. The customers are loaded
+ * into the shared {@link DataAccess}, so every test uses ids of its own.
+ */
+public class CustomerSeederTests extends TestCase {
+	private File file;
+
+	public CustomerSeederTests(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("customers", ".csv");
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testSeed() throws IOException {
+		writeLines("customerId,fullName,phoneNumber", "1000001,Wilhelmina Quorx,555-0001",
+				"1000002,\"Quorx, Bartholomew\",555-0002");
+		assertEquals(2, CustomerSeeder.seed(file));
+		assertCustomer(1000001, "Wilhelmina Quorx", "555-0001");
+		assertCustomer(1000002, "Quorx, Bartholomew", "555-0002");
+		assertFound("Wilhelmina Quorx", 1000001);
+	}
+
+	public void testDuplicateIdsInOneBatch() throws IOException {
+		// The file is split into a few chunks, so pad it to keep the duplicates in the same batch
+		String[] lines = new String[64];
+		lines[0] = "2000001,Ottoline Vexbury,555-1001";
+		lines[1] = "2000002,Ferdinand Zalquist,555-1002";
+		lines[2] = "2000001,Ignatius Plumtree,555-1003";
+		for (int i = 3; i < lines.length; i++) {
+			lines[i] = (2000000 + i) + ",Padding " + word(i) + ",555-" + i;
+		}
+		writeLines(lines);
+		CustomerSeeder.seed(file);
+		assertCustomer(2000001, "Ignatius Plumtree", "555-1003");
+		assertFound("Ignatius Plumtree", 2000001);
+		assertFound("Ferdinand Zalquist", 2000002);
+		assertNotFound("Ottoline Vexbury", 2000001);
+	}
+
+	public void testDuplicateIdsAcrossChunks() throws IOException {
+		int count = 4096;
+		String[] lines = new String[count * 2];
+		for (int i = 0; i < count; i++) {
+			lines[i] = (3000000 + i) + ",Firstly " + word(i) + ",555-" + i;
+			lines[count + i] = (3000000 + i) + ",Secondly " + word(i) + ",555-" + i;
+		}
+		writeLines(lines);
+		CustomerSeeder.seed(file);
+		// Which of the copies wins depends on the order the chunks are loaded in, but the index must
+		// agree with the store
+		for (int i = 0; i < count; i++) {
+			Customer customer = DataAccess.getCustomerById(3000000L + i);
+			assertNotNull(customer);
+			assertFound(customer.getFullName(), customer.getId());
+			String other = customer.getFullName().startsWith("Firstly") ? "Secondly " + word(i) : "Firstly " + word(i);
+			assertNotFound(other, customer.getId());
+		}
+	}
+
+	private void writeLines(String ... lines) throws IOException {
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+			for (String line : lines) {
+				writer.println(line);
+			}
+		}
+	}
+
+	private static void assertCustomer(long id, String fullName, String phoneNumber) {
+		Customer customer = DataAccess.getCustomerById(id);
+		assertNotNull(customer);
+		assertEquals(fullName, customer.getFullName());
+		assertEquals(phoneNumber, customer.getPhoneNumber());
+	}
+
+	private static void assertFound(String query, long id) {
+		List<TrigramIndex.Hit> hits = DataAccess.searchCustomers(query, 10);
+		assertFalse("Did not find " + query, hits.isEmpty());
+		assertEquals(id, hits.get(0).getCustomer().getId());
+		assertEquals(1.0, hits.get(0).getScore());
+	}
+
+	private static void assertNotFound(String query, long id) {
+		for (TrigramIndex.Hit hit : DataAccess.searchCustomers(query, 10)) {
+			assertFalse("Found " + query + " as " + hit.getCustomer().getFullName(),
+					hit.getCustomer().getId() == id && hit.getScore() == 1.0);
+		}
+	}
+
+	/*
+	 * A distinct word of letters per number, so that the names do not share too many trigrams.
+	 */
+	private static String word(int number) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 4; i++) {
+			builder.append((char) ('a' + number % 26));
+			number /= 26;
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Compares the writer throughput of the {@link DataAccess} with the synchronized, read-write
+ * locked implementation it replaced, at 1 to 64 writer threads. Each writer creates a customer,
+ * reads it back and removes it again, so the number of customers stays constant.
+ * <p>
+ * Not a unit test - run the main method, optionally with the number of seconds per measurement,
+ * in the same environment as the service (e.g. CUSTOMER_STORE and CUSTOMER_SEARCH_INDEX).
+ */
+public class DataAccessWriterScaling {
+	private final static int[] WRITER_THREADS = {1, 2, 4, 8, 16, 32, 64};
+	private final static int DEFAULT_SECONDS = 2;
+	// Reused per writer, to keep the old implementation (which leaked phone index entries) bounded
+	private final static int NAMES_PER_WRITER = 1000;
+
+	private interface Customers {
+		void createReadAndRemove(String fullName, String phoneNumber);
+	}
+
+	/**
+	 * The customer data access as it was before, with the same locking.
+	 */
+	private final static class LockedCustomers implements Customers {
+		private final Map<Long, Customer> customers = new HashMap<>();
+		private final Map<String, Customer> customersByName = new HashMap<>();
+		private final Map<String, Customer> customersByPhone = new HashMap<>();
+		private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+		private final Random idGenerator = new Random();
+
+		@Override
+		public void createReadAndRemove(String fullName, String phoneNumber) {
+			Customer customer = createCustomer(fullName, phoneNumber);
+			getCustomerById(customer.getId());
+			removeCustomer(customer);
+		}
+
+		private synchronized Customer createCustomer(String fullName, String phoneNumber) {
+			Lock writeLock = readWriteLock.writeLock();
+			try {
+				writeLock.lock();
+				long id = Math.abs(idGenerator.nextLong());
+				while (customers.get(id) != null) {
+					id = Math.abs(idGenerator.nextLong());
+				}
+				Customer newCustomer = new Customer(id, fullName, phoneNumber);
+				customers.put(newCustomer.getId(), newCustomer);
+				customersByName.put(newCustomer.getFullName(), newCustomer);
+				customersByPhone.put(newCustomer.getPhoneNumber(), newCustomer);
+				return newCustomer;
+			} finally {
+				writeLock.unlock();
+			}
+		}
+
+		private Customer getCustomerById(Long id) {
+			Lock readLock = readWriteLock.readLock();
+			try {
+				readLock.lock();
+				return customers.get(id);
+			} finally {
+				readLock.unlock();
+			}
+		}
+
+		private void removeCustomer(Customer customer) {
+			Lock writeLock = readWriteLock.writeLock();
+			try {
+				writeLock.lock();
+				customers.remove(customer.getId());
+				customersByName.remove(customer.getFullName());
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * The current {@link DataAccess}.
+	 */
+	private final static class CurrentCustomers implements Customers {
+		@Override
+		public void createReadAndRemove(String fullName, String phoneNumber) {
+			Customer customer = DataAccess.createCustomer(fullName, phoneNumber);
+			DataAccess.getCustomerById(customer.getId());
+			DataAccess.removeCustomer(customer);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_SECONDS;
+		Customers locked = new LockedCustomers();
+		Customers current = new CurrentCustomers();
+
+		// Warm up both, at the highest and lowest concurrency
+		measure(locked, WRITER_THREADS[WRITER_THREADS.length - 1], seconds);
+		measure(current, WRITER_THREADS[WRITER_THREADS.length - 1], seconds);
+		measure(locked, 1, seconds);
+		measure(current, 1, seconds);
+
+		System.out.println(String.format("%d CPUs, %d s per measurement, creates+reads+removes per second:",
+				Runtime.getRuntime().availableProcessors(), seconds));
+		System.out.println(String.format("%8s %12s %12s %9s", "writers", "locked", "current", "speedup"));
+		for (int threads : WRITER_THREADS) {
+			double lockedRate = measure(locked, threads, seconds);
+			double currentRate = measure(current, threads, seconds);
+			System.out.println(String.format("%8d %12.0f %12.0f %8.2fx", threads, lockedRate, currentRate,
+					currentRate / lockedRate));
+		}
+	}
+
+	private static double measure(Customers customers, int threads, long seconds) throws InterruptedException {
+		AtomicBoolean running = new AtomicBoolean(true);
+		LongAdder operations = new LongAdder();
+		CountDownLatch started = new CountDownLatch(threads);
+		CountDownLatch done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			String prefix = "Writer" + i + " Customer";
+			Thread writer = new Thread(() -> {
+				started.countDown();
+				for (int n = 0; running.get(); n++) {
+					int variant = n % NAMES_PER_WRITER;
+					customers.createReadAndRemove(prefix + variant, "+46-(0)70-" + variant);
+					operations.increment();
+				}
+				done.countDown();
+			}, "Writer " + i);
+			writer.setDaemon(true);
+			writer.start();
+		}
+		started.await();
+		long start = System.nanoTime();
+		long before = operations.sum();
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		long count = operations.sum() - before;
+		long elapsed = System.nanoTime() - start;
+		running.set(false);
+		done.await();
+		return count * 1e9 / elapsed;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the {@link IdGenerator}.
+ */
+public class IdGeneratorTests extends TestCase {
+	private final static int NODE_ID = 17;
+
+	public IdGeneratorTests(String testName) {
+		super(testName);
+	}
+
+	public void testIdsAreIncreasing() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		long previous = generator.nextId();
+		for (int i = 0; i < 100000; i++) {
+			long id = generator.nextId();
+			assertTrue(id > previous);
+			assertEquals(NODE_ID, IdGenerator.getNodeId(id));
+			previous = id;
+		}
+	}
+
+	public void testObservePastId() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		long id = toId(System.currentTimeMillis() - 60000, NODE_ID, 5);
+		generator.observe(id);
+		long next = generator.nextId();
+		assertTrue(next > id);
+		assertTrue(IdGenerator.getTimestamp(next) >= System.currentTimeMillis() - 1000);
+	}
+
+	public void testObserveFutureId() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		// As if the clock was stepped back an hour since the id was allocated
+		long future = System.currentTimeMillis() + 3600000;
+		long id = toId(future, NODE_ID, 5);
+		generator.observe(id);
+		long next = generator.nextId();
+		assertEquals(id + 1, next);
+		assertEquals(future, IdGenerator.getTimestamp(next));
+	}
+
+	public void testObserveFutureIdAtMaxSequence() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		long future = System.currentTimeMillis() + 3600000;
+		generator.observe(toId(future, NODE_ID, IdGenerator.MAX_SEQUENCE));
+		long next = generator.nextId();
+		assertEquals(future + 1, IdGenerator.getTimestamp(next));
+		assertEquals(NODE_ID, IdGenerator.getNodeId(next));
+	}
+
+	public void testObserveKeepsTheHighestId() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		long future = System.currentTimeMillis() + 3600000;
+		long id = toId(future, NODE_ID, 5);
+		generator.observe(id);
+		generator.observe(toId(future - 1000, NODE_ID, 7));
+		assertEquals(id + 1, generator.nextId());
+	}
+
+	public void testObserveIgnoresOtherNodes() {
+		IdGenerator generator = new IdGenerator(NODE_ID);
+		long future = System.currentTimeMillis() + 3600000;
+		generator.observe(toId(future, NODE_ID + 1, 5));
+		generator.observe(-1);
+		assertTrue(IdGenerator.getTimestamp(generator.nextId()) < future);
+	}
+
+	private static long toId(long timestamp, int nodeId, int sequence) {
+		return (timestamp - IdGenerator.EPOCH) << (IdGenerator.NODE_BITS + IdGenerator.SEQUENCE_BITS)
+				| ((long) nodeId << IdGenerator.SEQUENCE_BITS) | sequence;
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Tests the recovery of the customers from the {@link Journal}.
+ */
+public class JournalTests extends TestCase {
+	private final static long SEGMENT_SIZE = 64 * 1024;
+	private final static int RECORD_HEADER_SIZE = 8;
+
+	private File directory;
+	// What the journal is expected to recover, and the source of the snapshots
+	private final Map<Long, Customer> customers = new TreeMap<>();
+
+	public JournalTests(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		directory = Files.createTempDirectory("journal").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	public void testRecoversPutsAndDeletes() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 10; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		put(journal, customer(3, "Renamed Customer"));
+		delete(journal, 5);
+		delete(journal, 7);
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testRecoversAcrossSegments() throws IOException {
+		Journal journal = openJournal();
+		// About 40 bytes per record, so this rolls the segment a few times
+		for (long id = 1; id <= 5000; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		journal.close();
+
+		assertTrue(listFiles("journal-").length > 2);
+		assertRecovered();
+	}
+
+	public void testRecoversBatches() throws IOException {
+		Journal journal = openJournal();
+		List<Customer> batch = new ArrayList<>();
+		for (long id = 1; id <= 100; id++) {
+			batch.add(customer(id, "Batched" + id + " Customer"));
+			customers.put(id, batch.get(batch.size() - 1));
+		}
+		journal.appendPuts(batch);
+		journal.commit();
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testIgnoresTornTail() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 10; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		putTorn(journal, customer(11, "First11 Last"));
+		journal.close();
+
+		// Corrupt the payload of the last record, as if the crash happened while writing it
+		File segment = listFiles("journal-")[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			long position = offsetOfRecord(10) + RECORD_HEADER_SIZE + 12;
+			file.seek(position);
+			int value = file.read();
+			file.seek(position);
+			file.write(value ^ 0xFF);
+		}
+		assertRecovered();
+	}
+
+	public void testIgnoresRecordLongerThanSegment() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 10; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		putTorn(journal, customer(11, "First11 Last"));
+		journal.close();
+
+		// A length pointing past the end of the segment, as from a torn length
+		File segment = listFiles("journal-")[0];
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+			file.seek(offsetOfRecord(10));
+			file.writeInt((int) SEGMENT_SIZE);
+		}
+		assertRecovered();
+	}
+
+	public void testAppendsAfterTornTail() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 5; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		putTorn(journal, customer(6, "First6 Last"));
+		journal.close();
+		try (RandomAccessFile file = new RandomAccessFile(listFiles("journal-")[0], "rw")) {
+			file.seek(offsetOfRecord(5) + RECORD_HEADER_SIZE + 12);
+			file.write(0xFF);
+		}
+
+		// The recovered journal continues in a new segment, after the torn one
+		Map<Long, Customer> recovered = new TreeMap<>();
+		journal = openJournal(recovered);
+		assertRecovered(recovered);
+		put(journal, customer(7, "After Crash"));
+		delete(journal, 2);
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testSnapshotAndReplay() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 3000; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		int segmentsBefore = listFiles("journal-").length;
+		assertTrue(segmentsBefore > 1);
+		journal.snapshot();
+
+		// The snapshot compacts all the segments before it
+		assertEquals(1, listFiles("snapshot-").length);
+		assertEquals(1, listFiles("journal-").length);
+
+		// Changes after the snapshot are replayed on top of it
+		put(journal, customer(3001, "After Snapshot"));
+		put(journal, customer(1, "Renamed After Snapshot"));
+		delete(journal, 2);
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testSnapshotReplacesOlderSnapshot() throws IOException {
+		Journal journal = openJournal();
+		for (long id = 1; id <= 100; id++) {
+			put(journal, customer(id, "First" + id + " Last"));
+		}
+		journal.snapshot();
+		delete(journal, 50);
+		journal.snapshot();
+		put(journal, customer(101, "Last One"));
+		journal.close();
+
+		assertEquals(1, listFiles("snapshot-").length);
+		assertRecovered();
+	}
+
+	public void testSnapshotWithoutChangesIsSkipped() throws IOException {
+		Journal journal = openJournal();
+		put(journal, customer(1, "Only Customer"));
+		journal.snapshot();
+		File[] snapshots = listFiles("snapshot-");
+		journal.snapshot();
+		journal.close();
+
+		assertTrue(Arrays.equals(snapshots, listFiles("snapshot-")));
+		assertRecovered();
+	}
+
+	public void testRejectsTooLongStrings() throws IOException {
+		Journal journal = openJournal();
+		char[] name = new char[0x10000];
+		Arrays.fill(name, 'x');
+		name[10] = ' ';
+		try {
+			journal.appendPut(customer(1, new String(name)));
+			fail("Should not journal a name longer than its length prefix can express");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		// Nothing was appended, so the journal is still usable
+		put(journal, customer(2, "Short Name"));
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testRecoversNonAsciiStrings() throws IOException {
+		Journal journal = openJournal();
+		put(journal, customer(1, "\u00c5sa \u00d6berg"));
+		put(journal, customer(2, "\u5f20 \u4f1f"));
+		journal.snapshot();
+		put(journal, customer(3, "Zo\u00eb \u00c5ngstr\u00f6m"));
+		journal.close();
+
+		assertRecovered();
+	}
+
+	public void testSnapshotWaitsForAllUncommittedAppends() throws Exception {
+		Journal journal = openJournal();
+		put(journal, customer(1, "Before Snapshot"));
+		// Like a batch add, appended but not yet published
+		Customer batched = customer(2, "Batched Customer");
+		journal.appendPuts(Collections.singletonList(batched));
+
+		Throwable[] snapshotFailure = new Throwable[1];
+		Thread snapshotter = new Thread(() -> {
+			try {
+				journal.snapshot();
+			} catch (Throwable t) {
+				snapshotFailure[0] = t;
+			}
+		});
+		snapshotter.start();
+		// Wait for the snapshot to roll to a new segment
+		while (listFiles("journal-").length < 2) {
+			Thread.sleep(1);
+		}
+		// Another append by the same writer, to the new segment, before the batch is published
+		Customer collided = customer(3, "Collided Customer");
+		journal.appendPut(collided);
+		snapshotter.join(200);
+		assertTrue("The snapshot must wait for the batch to be published", snapshotter.isAlive());
+
+		customers.put(batched.getId(), batched);
+		customers.put(collided.getId(), collided);
+		journal.commit();
+		snapshotter.join();
+		assertNull(snapshotFailure[0]);
+		journal.close();
+
+		assertRecovered();
+	}
+
+	private Journal openJournal() throws IOException {
+		return openJournal(new TreeMap<>());
+	}
+
+	/*
+	 * Opens and recovers the journal, as the service does before appending anything.
+	 */
+	private Journal openJournal(Map<Long, Customer> recovered) throws IOException {
+		Journal journal = new Journal(directory, Journal.SyncPolicy.NEVER, 0, 0, SEGMENT_SIZE, customers::values);
+		journal.recover((customer) -> recovered.put(customer.getId(), customer), recovered::remove);
+		return journal;
+	}
+
+	private void assertRecovered() throws IOException {
+		Map<Long, Customer> recovered = new TreeMap<>();
+		openJournal(recovered).close();
+		assertRecovered(recovered);
+	}
+
+	/*
+	 * Customer.equals only compares the ids.
+	 */
+	private void assertRecovered(Map<Long, Customer> recovered) {
+		assertEquals(customers.keySet(), recovered.keySet());
+		for (Customer customer : customers.values()) {
+			Customer recoveredCustomer = recovered.get(customer.getId());
+			assertEquals(customer.getFullName(), recoveredCustomer.getFullName());
+			assertEquals(customer.getPhoneNumber(), recoveredCustomer.getPhoneNumber());
+		}
+	}
+
+	private void put(Journal journal, Customer customer) {
+		journal.appendPut(customer);
+		journal.commit();
+		customers.put(customer.getId(), customer);
+	}
+
+	private void delete(Journal journal, long id) {
+		journal.appendDelete(id);
+		journal.commit();
+		customers.remove(id);
+	}
+
+	/*
+	 * Appends a put that is not expected to be recovered.
+	 */
+	private static void putTorn(Journal journal, Customer customer) {
+		journal.appendPut(customer);
+		journal.commit();
+	}
+
+	/*
+	 * The offset of the record in the first segment, given that all the records before it were
+	 * puts of the customers made by customer(id, "First" + id + " Last").
+	 */
+	private static long offsetOfRecord(int index) {
+		long offset = 0;
+		for (long id = 1; id <= index; id++) {
+			offset += RECORD_HEADER_SIZE + putPayloadSize(customer(id, "First" + id + " Last"));
+		}
+		return offset;
+	}
+
+	private static int putPayloadSize(Customer customer) {
+		return 1 + 8 + 2 + customer.getFullName().getBytes(StandardCharsets.UTF_8).length + 2
+				+ customer.getPhoneNumber().getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private File[] listFiles(String prefix) {
+		File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix));
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static Customer customer(long id, String fullName) {
+		return new Customer(id, fullName, "+46-(0)70-" + id);
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.customerservice.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Tests the {@link TrigramIndex}.
+ */
+public class TrigramIndexTests extends TestCase {
+	private TrigramIndex index;
+	// The current versions of the customers, as the search looks them up
+	private Map<Long, Customer> customers;
+
+	public TrigramIndexTests(String testName) {
+		super(testName);
+	}
+
+	@Override
+	protected void setUp() {
+		index = new TrigramIndex();
+		customers = new HashMap<>();
+	}
+
+	public void testTrigrams() {
+		assertEquals(4, TrigramIndex.trigrams("Ann").length);
+		// Case and punctuation do not matter
+		assertTrue(Arrays.equals(TrigramIndex.trigrams("ann"), TrigramIndex.trigrams("ANN!")));
+		assertEquals(0, TrigramIndex.trigrams(" - ").length);
+	}
+
+	public void testFindsExactName() {
+		put(1, "Wilhelmina Quorx");
+		put(2, "Bartholomew Fink");
+		List<TrigramIndex.Hit> hits = search("Wilhelmina Quorx", 10);
+		assertEquals(1, hits.get(0).getCustomer().getId());
+		assertEquals(1.0, hits.get(0).getScore());
+	}
+
+	public void testRanksBySimilarity() {
+		put(1, "Anne Smith");
+		put(2, "Anna Smith");
+		put(3, "Anna Smithson");
+		put(4, "Zebulon Quackenbush");
+		List<TrigramIndex.Hit> hits = search("Anna Smith", 10);
+		assertEquals(3, hits.size());
+		assertEquals(2, hits.get(0).getCustomer().getId());
+		assertEquals(1.0, hits.get(0).getScore());
+		for (int i = 1; i < hits.size(); i++) {
+			assertTrue(hits.get(i - 1).getScore() >= hits.get(i).getScore());
+			assertTrue(hits.get(i).getScore() < 1.0);
+		}
+	}
+
+	public void testFindsMisspelledName() {
+		put(1, "Wilhelmina Quorx");
+		put(2, "Bartholomew Fink");
+		List<TrigramIndex.Hit> hits = search("Wilhelmna Qourx", 10);
+		assertEquals(1, hits.get(0).getCustomer().getId());
+		assertTrue(hits.get(0).getScore() > 0.3);
+	}
+
+	public void testLimit() {
+		for (long id = 1; id <= 20; id++) {
+			put(id, "Common Name");
+		}
+		List<TrigramIndex.Hit> hits = search("Common Name", 5);
+		assertEquals(5, hits.size());
+		// Equal scores are ordered by id
+		for (int i = 0; i < hits.size(); i++) {
+			assertEquals(i + 1, hits.get(i).getCustomer().getId());
+		}
+	}
+
+	public void testUpdateMovesCustomer() {
+		put(1, "Ottoline Vexbury");
+		put(1, "Ignatius Plumtree");
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+		assertEquals(1, search("Ignatius Plumtree", 10).get(0).getCustomer().getId());
+		// Only the trigrams of the new name are left
+		assertEquals(TrigramIndex.trigrams("Ignatius Plumtree").length, index.getNumberOfTrigrams());
+	}
+
+	public void testDeleteRemovesCustomer() {
+		put(1, "Ottoline Vexbury");
+		put(2, "Ferdinand Zalquist");
+		delete(1);
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+		assertEquals(2, search("Ferdinand Zalquist", 10).get(0).getCustomer().getId());
+		delete(2);
+		assertEquals(0, index.getNumberOfTrigrams());
+	}
+
+	public void testReusesDocuments() {
+		put(1, "Ottoline Vexbury");
+		delete(1);
+		// Gets the document of the deleted customer
+		put(2, "Ferdinand Zalquist");
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+		List<TrigramIndex.Hit> hits = search("Ferdinand Zalquist", 10);
+		assertEquals(1, hits.size());
+		assertEquals(2, hits.get(0).getCustomer().getId());
+	}
+
+	public void testUpdateOfUnindexedCustomerIndexesItAsNew() {
+		put(1, "Ottoline Vexbury");
+		// As when a batch replaces a customer that the batch that loaded it has not indexed yet
+		Customer unindexed = new Customer(2L, "Ottoline Plumtree", "555-0002");
+		Customer replacement = new Customer(2L, "Ignatius Vexbury", "555-0002");
+		customers.put(2L, replacement);
+		index.update(unindexed, replacement);
+
+		assertEquals(2, search("Ignatius Vexbury", 10).get(0).getCustomer().getId());
+		// The customers sharing the trigrams are still found
+		assertEquals(1, search("Ottoline Vexbury", 10).get(0).getCustomer().getId());
+		delete(2);
+		assertEquals(TrigramIndex.trigrams("Ottoline Vexbury").length, index.getNumberOfTrigrams());
+	}
+
+	public void testDeleteOfUnindexedCustomerIsIgnored() {
+		put(1, "Ottoline Vexbury");
+		index.update(new Customer(2L, "Ottoline Vexbury", "555-0002"), null);
+		assertEquals(1, search("Ottoline Vexbury", 10).get(0).getCustomer().getId());
+	}
+
+	public void testAddAll() {
+		List<Customer> batch = new ArrayList<>();
+		for (long id = 1; id <= 100; id++) {
+			batch.add(new Customer(id, "Batched " + word((int) id), "555-" + id));
+			customers.put(id, batch.get(batch.size() - 1));
+		}
+		index.addAll(batch);
+		for (long id = 1; id <= 100; id++) {
+			assertFound("Batched " + word((int) id), id);
+		}
+	}
+
+	public void testAddAllSkipsIndexedCustomers() {
+		put(1, "Ignatius Plumtree");
+		List<Customer> batch = new ArrayList<>();
+		batch.add(new Customer(1L, "Ottoline Vexbury", "555-0001"));
+		batch.add(new Customer(2L, "Ferdinand Zalquist", "555-0002"));
+		customers.put(2L, batch.get(1));
+		index.addAll(batch);
+
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+		assertFound("Ignatius Plumtree", 1);
+		assertFound("Ferdinand Zalquist", 2);
+	}
+
+	public void testManyCustomersSharingTrigrams() {
+		// Enough for the posting sets of the shared trigrams to span several chunks
+		int count = 5000;
+		for (int i = 0; i < count; i++) {
+			put(i, "Smith " + word(i));
+		}
+		for (int i = 0; i < count; i += 97) {
+			assertFound("Smith " + word(i), i);
+		}
+		// Removes from the middle of the chunks, so that they are merged
+		for (int i = 0; i < count; i++) {
+			if (i % 4 != 0) {
+				delete(i);
+			}
+		}
+		// The freed documents are reused, inserting in the middle of the chunks again
+		for (int i = count; i < count * 2; i++) {
+			put(i, "Smith " + word(i));
+		}
+		for (int i = 0; i < count * 2; i += 89) {
+			if (i >= count || i % 4 == 0) {
+				assertFound("Smith " + word(i), i);
+			} else {
+				assertTrue(search("Smith " + word(i), 1).get(0).getScore() < 1.0);
+			}
+		}
+		for (long id : new ArrayList<>(customers.keySet())) {
+			delete(id);
+		}
+		assertEquals(0, index.getNumberOfTrigrams());
+	}
+
+	public void testSkipsChangedCandidates() {
+		put(1, "Ottoline Vexbury");
+		// Changed without updating the index, e.g. while a search is running
+		customers.put(1L, new Customer(1L, "Ignatius Plumtree", "555-0001"));
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+		customers.remove(1L);
+		assertTrue(search("Ottoline Vexbury", 10).isEmpty());
+	}
+
+	private void put(long id, String fullName) {
+		Customer customer = new Customer(id, fullName, "555-" + id);
+		index.update(customers.put(id, customer), customer);
+	}
+
+	private void delete(long id) {
+		index.update(customers.remove(id), null);
+	}
+
+	private List<TrigramIndex.Hit> search(String query, int limit) {
+		return index.search(query, limit, customers::get);
+	}
+
+	private void assertFound(String query, long id) {
+		List<TrigramIndex.Hit> hits = search(query, 10);
+		assertFalse("Did not find " + query, hits.isEmpty());
+		assertEquals(id, hits.get(0).getCustomer().getId());
+		assertEquals(1.0, hits.get(0).getScore());
+	}
+
+	/*
+	 * A distinct word of letters per number.
+	 */
+	private static String word(int number) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 4; i++) {
+			builder.append((char) ('a' + number % 26));
+			number /= 26;
+		}
+		return builder.toString();
+	}
+}
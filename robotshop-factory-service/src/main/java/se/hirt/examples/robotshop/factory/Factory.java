@@ -31,7 +31,10 @@
  */
 package se.hirt.examples.robotshop.factory;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -52,11 +55,20 @@ import io.opentracing.Scope;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.contrib.okhttp3.TracingCallFactory;
 import io.opentracing.util.GlobalTracer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
 import se.hirt.examples.robotshop.common.data.Color;
 import se.hirt.examples.robotshop.common.data.Robot;
 import se.hirt.examples.robotshop.common.data.RobotType;
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
+import se.hirt.examples.robotshop.common.opentracing.SpanDecorator;
 import se.hirt.examples.robotshop.common.util.Logger;
 import se.hirt.examples.robotshop.common.util.Utils;
 
@@ -70,9 +82,12 @@ public final class Factory {
 	private final static int MAX_NUMBER_OF_PRODUCTION_LINES = 50;
 	private final static int JOB_QUEUE_SIZE = 500;
 	private final static AtomicLong SERIAL_ID_GENERATOR = new AtomicLong();
+	private final static MediaType JSON = MediaType.parse("application/json");
 
 	private final BlockingQueue<Runnable> jobQueue = new ArrayBlockingQueue<>(JOB_QUEUE_SIZE);
 	private final Map<Long, Robot> completedRobots = new ConcurrentHashMap<>();
+	private final Call.Factory httpClient = new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(),
+			SpanDecorator.getSpanDecorators());
 	private final Executor factoryLines = new ThreadPoolExecutor(4, MAX_NUMBER_OF_PRODUCTION_LINES, 20,
 			TimeUnit.SECONDS, jobQueue, new FactoryThreadFactory(), new RejectedExecutionHandler() {
 				@Override
@@ -87,12 +102,14 @@ public final class Factory {
 		private final long serialNumber;
 		private final String robotTypeId;
 		private final Color paint;
+		private final String callbackUrl;
 		private final Span parent;
 
-		public ProductionJob(long serialNumber, String robotTypeId, Color paint, Span parent) {
+		public ProductionJob(long serialNumber, String robotTypeId, Color paint, String callbackUrl, Span parent) {
 			this.serialNumber = serialNumber;
 			this.robotTypeId = robotTypeId;
 			this.paint = paint;
+			this.callbackUrl = callbackUrl;
 			this.parent = parent;
 		}
 
@@ -107,7 +124,11 @@ public final class Factory {
 				// Takes some time to roll the robot over to the painting
 				Utils.sleep(10);
 				Robot paintedRobot = paintRobot(chassis, paint, scope.span().context());
-				completedRobots.put(paintedRobot.getSerialNumber(), paintedRobot);
+				if (callbackUrl != null) {
+					deliver(paintedRobot, callbackUrl, span);
+				} else {
+					completedRobots.put(paintedRobot.getSerialNumber(), paintedRobot);
+				}
 				jobsInProduction.remove(serialNumber);
 			} catch (Throwable t) {
 				span.log(OpenTracingUtil.getSpanLogMap(t));
@@ -145,10 +166,30 @@ public final class Factory {
 	 *             if factory is too busy.
 	 */
 	public long startBuildingRobot(final String robotTypeId, final Color paint) throws RejectedExecutionException {
+		return startBuildingRobot(robotTypeId, paint, null);
+	}
+
+	/**
+	 * Starts the production of a robot of the specified type, delivering it to the callback URL
+	 * when done.
+	 * 
+	 * @param robotTypeId
+	 *            the type of robot to start building.
+	 * @param paint
+	 *            the color of the robot.
+	 * @param callbackUrl
+	 *            the URL to post the completed robot to, or null to keep it for pick-up. If the
+	 *            robot cannot be delivered, it is kept for pick-up.
+	 * @return the serial number of the robot to be produced.
+	 * @throws RejectedExecutionException
+	 *             if factory is too busy.
+	 */
+	public long startBuildingRobot(final String robotTypeId, final Color paint, final String callbackUrl)
+			throws RejectedExecutionException {
 		final long serialNumber = SERIAL_ID_GENERATOR.getAndIncrement();
 		Scope scope = GlobalTracer.get().scopeManager().active();
 		scope.span().setTag(Robot.KEY_SERIAL_NUMBER, String.valueOf(serialNumber));
-		startProduction(serialNumber, robotTypeId, paint, scope.span());
+		startProduction(serialNumber, robotTypeId, paint, callbackUrl, scope.span());
 		return serialNumber;
 	}
 
@@ -169,12 +210,58 @@ public final class Factory {
 		return completedRobots.remove(serialNumber);
 	}
 
-	private void startProduction(long serialNumber, String robotTypeId, Color paint, Span parent) {
-		ProductionJob job = new ProductionJob(serialNumber, robotTypeId, paint, parent);
+	/**
+	 * @param serialNumbers
+	 *            the robots to pick up.
+	 * @return the robots that were completed and now picked up, in no particular order.
+	 */
+	public List<Robot> pickUp(Collection<Long> serialNumbers) {
+		List<Robot> robots = new ArrayList<>();
+		for (Long serialNumber : serialNumbers) {
+			Robot robot = completedRobots.remove(serialNumber);
+			if (robot != null) {
+				robots.add(robot);
+			}
+		}
+		return robots;
+	}
+
+	private void startProduction(long serialNumber, String robotTypeId, Color paint, String callbackUrl,
+			Span parent) {
+		ProductionJob job = new ProductionJob(serialNumber, robotTypeId, paint, callbackUrl, parent);
 		jobsInProduction.put(serialNumber, job);
 		factoryLines.execute(job);
 	}
 
+	/**
+	 * Posts the robot to the callback URL without holding up the production line. Keeps the robot
+	 * for pick-up if the delivery fails.
+	 */
+	private void deliver(Robot robot, String callbackUrl, Span span) {
+		Request request = new Request.Builder().url(callbackUrl)
+				.post(RequestBody.create(JSON, robot.toJSon().build().toString())).build();
+		Call call;
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			call = httpClient.newCall(request);
+		}
+		call.enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				Logger.log("Failed to deliver " + robot + " to " + callbackUrl + " - keeping it for pick-up: "
+						+ e.getMessage());
+				completedRobots.put(robot.getSerialNumber(), robot);
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				response.close();
+				if (!response.isSuccessful()) {
+					completedRobots.put(robot.getSerialNumber(), robot);
+				}
+			}
+		});
+	}
+
 	private static Robot paintRobot(Robot robotToPaint, Color paint, SpanContext spanContext) {
 		SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("paintingRobot");
 		spanBuilder.asChildOf(spanContext);
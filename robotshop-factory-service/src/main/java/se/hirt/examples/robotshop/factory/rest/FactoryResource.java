@@ -31,13 +31,19 @@
  */
 package se.hirt.examples.robotshop.factory.rest;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
@@ -49,6 +55,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
+import okhttp3.HttpUrl;
 import se.hirt.examples.robotshop.common.util.Utils;
 import se.hirt.examples.robotshop.factory.Factory;
 import se.hirt.examples.robotshop.factory.data.DataAccess;
@@ -64,6 +71,8 @@ import se.hirt.examples.robotshop.common.opentracing.OpenTracingFilter;
  */
 @Path("/factory/")
 public class FactoryResource {
+	private final static int MAX_BATCH_SIZE = 1000;
+
 	@GET
 	@Path("/completed/")
 	@Produces(MediaType.APPLICATION_JSON)
@@ -91,7 +100,7 @@ public class FactoryResource {
 	@Produces(MediaType.APPLICATION_JSON)
 	public Response buildRobot(
 		@Context HttpServletRequest request, @FormParam(RobotType.KEY_ROBOT_TYPE) String robotTypeId,
-		@FormParam(Robot.KEY_COLOR) String color) {
+		@FormParam(Robot.KEY_COLOR) String color, @FormParam(Robot.KEY_CALLBACK_URL) String callbackUrl) {
 		OpenTracingFilter.setKeepOpen(request, true);
 
 		JsonObjectBuilder createObjectBuilder = Json.createObjectBuilder();
@@ -119,8 +128,13 @@ public class FactoryResource {
 					.build();
 		}
 
+		if (callbackUrl != null && HttpUrl.parse(callbackUrl) == null) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString(callbackUrl + " is not a valid callback URL!")).build();
+		}
+
 		try {
-			long serialNumber = Factory.getInstance().startBuildingRobot(robotTypeId, paint);
+			long serialNumber = Factory.getInstance().startBuildingRobot(robotTypeId, paint, callbackUrl);
 			createObjectBuilder.add(Robot.KEY_SERIAL_NUMBER, String.valueOf(serialNumber));
 			return Response.accepted(createObjectBuilder.build()).build();
 		} catch (RejectedExecutionException e) {
@@ -143,4 +157,57 @@ public class FactoryResource {
 		}
 		return Response.ok(robot.toJSon().build()).build();
 	}
+
+	/**
+	 * Picks up all the completed robots among the serial numbers passed as repeated serialNumber
+	 * query parameters.
+	 */
+	@GET
+	@Path("/pickup/batch")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response pickUpBatch(@QueryParam(Robot.KEY_SERIAL_NUMBER) List<Long> serialNumbers) {
+		if (serialNumbers.size() > MAX_BATCH_SIZE) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString("Must specify at most " + MAX_BATCH_SIZE + " " + Robot.KEY_SERIAL_NUMBER))
+					.build();
+		}
+		return pickedUp(Factory.getInstance().pickUp(serialNumbers));
+	}
+
+	/**
+	 * Picks up all the completed robots among the serial numbers, e.g. {"serialNumbers":["1","2"]},
+	 * returning them as {"robots":[...]}. Robots not yet completed are simply left out.
+	 */
+	@POST
+	@Path("/pickup/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response pickUpBatch(JsonObject jsonEntity) {
+		JsonValue value = jsonEntity.get(Robot.KEY_SERIAL_NUMBERS);
+		if (!(value instanceof JsonArray) || ((JsonArray) value).size() > MAX_BATCH_SIZE) {
+			return Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString(
+							Robot.KEY_SERIAL_NUMBERS + " must be an array of at most " + MAX_BATCH_SIZE + " serial numbers"))
+					.build();
+		}
+		JsonArray jsonSerials = (JsonArray) value;
+		List<Long> serialNumbers = new ArrayList<>(jsonSerials.size());
+		for (JsonValue jsonSerial : jsonSerials) {
+			try {
+				serialNumbers.add(Long.valueOf(((JsonString) jsonSerial).getString()));
+			} catch (ClassCastException | NumberFormatException e) {
+				return Response.status(Status.BAD_REQUEST)
+						.entity(Utils.errorAsJSonString(Robot.KEY_SERIAL_NUMBERS + " must be strings of numbers")).build();
+			}
+		}
+		return pickedUp(Factory.getInstance().pickUp(serialNumbers));
+	}
+
+	private static Response pickedUp(List<Robot> robots) {
+		JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
+		for (Robot robot : robots) {
+			arrayBuilder.add(robot.toJSon());
+		}
+		return Response.ok(Json.createObjectBuilder().add(Robot.KEY_ROBOTS, arrayBuilder).build()).build();
+	}
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits the number of orders in flight to what the order service, and the services it depends
+ * on, can currently handle, so that new orders are turned away right away instead of waiting in
+ * ever growing queues.
+ * <p>
+ * The limit is adjusted from the observed latency of the orders, by comparing the recent latency
+ * with the long term latency. As long as the recent latency is within a tolerance of the long term
+ * latency, the limit grows (by roughly its square root per order). When the orders start queueing
+ * somewhere, the latency goes up and the limit is reduced in proportion. Orders failing from
+ * overload (timing out or being rejected further down) reduce the limit multiplicatively.
+ * <p>
+ * The state of the limiter is available as an MBean
+ * (se.hirt.examples.robotshop.order:type=ConcurrencyLimiter).
+ * 
+ * @author Marcus Hirt
+ */
+public final class AdaptiveConcurrencyLimiter implements AdaptiveConcurrencyLimiterMXBean {
+	// How much slower the recent orders may be before the limit is reduced
+	private final static double LATENCY_TOLERANCE = 1.5;
+	// Weights of a new sample in the recent and long term latency averages
+	private final static double SHORT_ALPHA = 0.1;
+	private final static double LONG_ALPHA = 0.005;
+	// How much of the new limit to apply per sample
+	private final static double SMOOTHING = 0.2;
+	private final static double BACKOFF_RATIO = 0.9;
+	private final static long THROUGHPUT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private final static long MAX_RETRY_AFTER_SECONDS = 60;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	// Guarded by this
+	private double shortLatency;
+	private double longLatency;
+	private long windowStart = System.nanoTime();
+	private int windowCompletions;
+	private double throughput;
+
+	private volatile double limit;
+
+	/**
+	 * @param initialLimit
+	 *            the limit to start out with.
+	 * @param minLimit
+	 *            the lowest the limit may go.
+	 * @param maxLimit
+	 *            the highest the limit may go.
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("se.hirt.examples.robotshop.order:type=ConcurrencyLimiter"));
+		} catch (JMException e) {
+			System.err.println("Could not register the concurrency limiter MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Tries to let another order in.
+	 * 
+	 * @return true if the order may go ahead, in which case it must be released when done, or
+	 *         false if the limit has been reached.
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= (int) limit) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			if (inFlight.compareAndSet(current, current + 1)) {
+				accepted.incrementAndGet();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Lets an order out without adjusting the limit, e.g. when it never got started, or failed for
+	 * reasons that say nothing about the load.
+	 */
+	public void release() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Lets an order out, adjusting the limit.
+	 * 
+	 * @param startTime
+	 *            the {@link System#nanoTime()} when the order was let in.
+	 * @param overloaded
+	 *            true if the order failed from overload, false if it completed.
+	 */
+	public void release(long startTime, boolean overloaded) {
+		int current = inFlight.getAndDecrement();
+		long now = System.nanoTime();
+		synchronized (this) {
+			updateThroughput(now);
+			if (overloaded) {
+				limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+			} else {
+				sample(now - startTime, current);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of seconds a client should wait before trying again after having been
+	 *         turned away - the time it takes to complete the orders above the limit at the
+	 *         current throughput.
+	 */
+	public long getRetryAfterSeconds() {
+		double ordersPerSecond;
+		synchronized (this) {
+			ordersPerSecond = throughput;
+		}
+		double excess = Math.max(1, inFlight.get() - limit + 1);
+		if (ordersPerSecond <= 0) {
+			// Nothing completed yet to go on
+			return 1;
+		}
+		return Math.max(1, Math.min(MAX_RETRY_AFTER_SECONDS, (long) Math.ceil(excess / ordersPerSecond)));
+	}
+
+	private void sample(long latency, int inFlightAtCompletion) {
+		if (shortLatency == 0) {
+			shortLatency = latency;
+			longLatency = latency;
+			return;
+		}
+		shortLatency = shortLatency * (1 - SHORT_ALPHA) + latency * SHORT_ALPHA;
+		longLatency = longLatency * (1 - LONG_ALPHA) + latency * LONG_ALPHA;
+		// Once things have calmed down, let the long term latency follow faster
+		if (longLatency / shortLatency > 2) {
+			longLatency *= 0.95;
+		}
+		// Not using the limit says nothing about whether it can be raised
+		if (inFlightAtCompletion < limit / 2) {
+			return;
+		}
+		double gradient = Math.max(0.5, Math.min(1.0, LATENCY_TOLERANCE * longLatency / shortLatency));
+		double newLimit = limit * gradient + Math.sqrt(limit);
+		newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+	}
+
+	private void updateThroughput(long now) {
+		windowCompletions++;
+		long elapsed = now - windowStart;
+		if (elapsed >= THROUGHPUT_WINDOW_NANOS) {
+			double windowThroughput = windowCompletions * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			throughput = throughput == 0 ? windowThroughput : throughput * 0.7 + windowThroughput * 0.3;
+			windowStart = now;
+			windowCompletions = 0;
+		}
+	}
+
+	@Override
+	public int getLimit() {
+		return (int) limit;
+	}
+
+	@Override
+	public int getMinLimit() {
+		return minLimit;
+	}
+
+	@Override
+	public int getMaxLimit() {
+		return maxLimit;
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public synchronized long getShortLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis((long) shortLatency);
+	}
+
+	@Override
+	public synchronized long getLongLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis((long) longLatency);
+	}
+
+	@Override
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+
+	@Override
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+
+/**
+ * Caches the customers looked up by the order service, so that a customer placing many orders in
+ * a burst is only looked up once.
+ * <p>
+ * The cache holds at most a maximum number of customers, evicting the least recently used ones,
+ * and every customer expires after a time to live. That customers do not exist is cached too, but
+ * for a shorter time, so that a customer created right after a failed order is found soon enough.
+ * Since a cached customer may have been changed or deleted in the meantime, customers can be
+ * invalidated, e.g. from the /customercache resource, or from the MBean
+ * (se.hirt.examples.robotshop.order:type=CustomerCache).
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerCache implements CustomerCacheMXBean {
+	private final int maxSize;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	// Guarded by itself
+	private final LinkedHashMap<Long, CachedCustomer> entries;
+	// The lookup in flight per customer id. A lookup only caches its result if it is still the one
+	// in flight, so that lookups started before an invalidation of the customer are not cached.
+	// Guarded by entries.
+	private final Map<Long, Object> lookups = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong negativeHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private final static class CachedCustomer {
+		// Null if the customer does not exist
+		private final Customer customer;
+		private final long expiresAt;
+
+		CachedCustomer(Customer customer, long expiresAt) {
+			this.customer = customer;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of customers (found or not) to keep.
+	 * @param ttlMillis
+	 *            how long to keep a customer.
+	 * @param negativeTtlMillis
+	 *            how long to remember that a customer does not exist.
+	 */
+	public CustomerCache(int maxSize, long ttlMillis, long negativeTtlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		entries = new LinkedHashMap<Long, CachedCustomer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, CachedCustomer> eldest) {
+				if (size() > CustomerCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("se.hirt.examples.robotshop.order:type=CustomerCache"));
+		} catch (JMException e) {
+			System.err.println("Could not register the customer cache MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets a customer from the cache, or looks it up if not cached (or expired).
+	 * 
+	 * @param customerId
+	 *            the id of the customer.
+	 * @param lookup
+	 *            looks up the customer on a miss, completing with null if the customer does not
+	 *            exist. Failed lookups are not cached.
+	 * @return a future that will be completed with the customer, or null if the customer does not
+	 *         exist.
+	 */
+	public CompletableFuture<Customer> get(long customerId, Function<Long, CompletableFuture<Customer>> lookup) {
+		long now = System.currentTimeMillis();
+		// Identifies this lookup - a later lookup of the same customer replaces it
+		Object token = new Object();
+		synchronized (entries) {
+			CachedCustomer entry = entries.get(customerId);
+			if (entry != null) {
+				if (entry.expiresAt > now) {
+					(entry.customer != null ? hits : negativeHits).incrementAndGet();
+					return CompletableFuture.completedFuture(entry.customer);
+				}
+				entries.remove(customerId);
+				expirations.incrementAndGet();
+			}
+			lookups.put(customerId, token);
+		}
+		misses.incrementAndGet();
+		return lookup.apply(customerId).whenComplete((customer, t) -> put(customerId, customer, t, token));
+	}
+
+	private void put(long customerId, Customer customer, Throwable t, Object token) {
+		long expiresAt = System.currentTimeMillis() + (customer != null ? ttlMillis : negativeTtlMillis);
+		synchronized (entries) {
+			// Not cached if invalidated (or replaced by a later lookup) in the meantime
+			if (lookups.remove(customerId, token) && t == null) {
+				entries.put(customerId, new CachedCustomer(customer, expiresAt));
+			}
+		}
+	}
+
+	@Override
+	public boolean invalidate(long customerId) {
+		invalidations.incrementAndGet();
+		synchronized (entries) {
+			lookups.remove(customerId);
+			return entries.remove(customerId) != null;
+		}
+	}
+
+	@Override
+	public void invalidateAll() {
+		invalidations.incrementAndGet();
+		synchronized (entries) {
+			lookups.clear();
+			entries.clear();
+		}
+	}
+
+	@Override
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	@Override
+	public long getNegativeTtlMillis() {
+		return negativeTtlMillis;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long found = hits.get() + negativeHits.get();
+		long total = found + misses.get();
+		return total == 0 ? 0 : (double) found / total;
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+/**
+ * Management interface of the {@link CustomerCache}, e.g. for following the hit rate in JMC.
+ * 
+ * @author Marcus Hirt
+ */
+public interface CustomerCacheMXBean {
+	/**
+	 * Removes a customer from the cache, e.g. after it has been changed or deleted.
+	 * 
+	 * @param customerId
+	 *            the id of the customer.
+	 * @return true if the customer was cached.
+	 */
+	boolean invalidate(long customerId);
+
+	/**
+	 * Removes all customers from the cache.
+	 */
+	void invalidateAll();
+
+	/**
+	 * @return the number of customers (found or not) in the cache.
+	 */
+	int getSize();
+
+	/**
+	 * @return the maximum number of customers (found or not) in the cache.
+	 */
+	int getMaxSize();
+
+	/**
+	 * @return how long a customer is cached.
+	 */
+	long getTtlMillis();
+
+	/**
+	 * @return how long it is cached that a customer does not exist.
+	 */
+	long getNegativeTtlMillis();
+
+	/**
+	 * @return the number of customers found in the cache.
+	 */
+	long getHits();
+
+	/**
+	 * @return the number of customers found in the cache not to exist.
+	 */
+	long getNegativeHits();
+
+	/**
+	 * @return the number of customers that had to be looked up.
+	 */
+	long getMisses();
+
+	/**
+	 * @return the fraction of the customers, found or not, that were answered by the cache.
+	 */
+	double getHitRate();
+
+	/**
+	 * @return the number of customers evicted to make room for others.
+	 */
+	long getEvictions();
+
+	/**
+	 * @return the number of customers that had expired when asked for.
+	 */
+	long getExpirations();
+
+	/**
+	 * @return the number of invalidations.
+	 */
+	long getInvalidations();
+}
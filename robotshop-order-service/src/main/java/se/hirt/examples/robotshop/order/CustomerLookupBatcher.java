@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.opentracing.References;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.util.GlobalTracer;
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.data.ValidationException;
+import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
+import se.hirt.examples.robotshop.common.sharding.CustomerRouter;
+
+/**
+ * Micro-batches concurrent customer lookups into calls to the customer service multi-get
+ * (/customers/lookup). The first lookup to arrive starts a batching window, and when the window
+ * closes, or the batch is full, all ids requested so far are resolved in one call per customer
+ * service shard.
+ * <p>
+ * The span of the batch call follows from the spans of all the lookups it serves.
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerLookupBatcher {
+	private final static ThreadGroup GROUP = new ThreadGroup("Customer Lookup");
+	private final static int NUMBER_OF_LOOKUP_THREADS = 4;
+
+	private final CustomerRouter router;
+	private final long windowMillis;
+	private final int maxBatchSize;
+	private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(NUMBER_OF_LOOKUP_THREADS,
+			new LookupThreadFactory());
+
+	// Guarded by this
+	private Batch currentBatch;
+
+	private final static class LookupThreadFactory implements ThreadFactory {
+		private final static AtomicInteger COUNT = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(GROUP, r, "Customer Lookup Batcher " + COUNT.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	private final static class Batch {
+		private final Map<Long, List<CompletableFuture<Customer>>> futures = new HashMap<>();
+		private final List<SpanContext> waiting = new ArrayList<>();
+	}
+
+	/**
+	 * @param router
+	 *            the client to use for the calls to the customer service.
+	 * @param windowMillis
+	 *            how long to wait for more lookups after the first one in a batch.
+	 * @param maxBatchSize
+	 *            the maximum number of ids to resolve in one call.
+	 */
+	public CustomerLookupBatcher(CustomerRouter router, long windowMillis, int maxBatchSize) {
+		this.router = router;
+		this.windowMillis = windowMillis;
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @param customerId
+	 *            the id of the customer to look up.
+	 * @param parent
+	 *            the span context of the caller, or null.
+	 * @return a future that will be completed with the customer, or null if the customer does not
+	 *         exist, or exceptionally with a {@link ValidationException} if the customer could not be
+	 *         looked up.
+	 */
+	public CompletableFuture<Customer> lookup(long customerId, SpanContext parent) {
+		CompletableFuture<Customer> future = new CompletableFuture<>();
+		Batch fullBatch = null;
+		synchronized (this) {
+			if (currentBatch == null) {
+				Batch batch = new Batch();
+				currentBatch = batch;
+				executor.schedule(() -> close(batch), windowMillis, TimeUnit.MILLISECONDS);
+			}
+			currentBatch.futures.computeIfAbsent(customerId, (id) -> new ArrayList<>(1)).add(future);
+			if (parent != null) {
+				currentBatch.waiting.add(parent);
+			}
+			if (currentBatch.futures.size() >= maxBatchSize) {
+				fullBatch = currentBatch;
+				currentBatch = null;
+			}
+		}
+		if (fullBatch != null) {
+			Batch batch = fullBatch;
+			executor.execute(() -> resolve(batch));
+		}
+		return future;
+	}
+
+	/**
+	 * Closes the batch when the window runs out, unless it was already closed for being full.
+	 */
+	private void close(Batch batch) {
+		synchronized (this) {
+			if (currentBatch != batch) {
+				return;
+			}
+			currentBatch = null;
+		}
+		resolve(batch);
+	}
+
+	private void resolve(Batch batch) {
+		SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("lookupCustomers").withTag("batchSize",
+				batch.futures.size());
+		for (SpanContext context : batch.waiting) {
+			spanBuilder.addReference(References.FOLLOWS_FROM, context);
+		}
+		Span span = spanBuilder.start();
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			Map<Long, Customer> customers = router.lookupCustomers(batch.futures.keySet());
+			for (Map.Entry<Long, List<CompletableFuture<Customer>>> entry : batch.futures.entrySet()) {
+				Customer customer = customers.get(entry.getKey());
+				entry.getValue().forEach((future) -> future.complete(customer));
+			}
+		} catch (Throwable t) {
+			span.log(OpenTracingUtil.getSpanLogMap(t));
+		} finally {
+			// Anything not resolved by now failed
+			ValidationException e = new ValidationException("Failed to validate customer");
+			batch.futures.values().forEach((futures) -> futures.forEach((future) -> future.completeExceptionally(e)));
+			span.finish();
+		}
+	}
+}
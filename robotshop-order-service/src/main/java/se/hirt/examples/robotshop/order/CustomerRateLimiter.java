@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Limits the rate of orders, and of robots ordered, per customer, so that one customer cannot
+ * crowd out the others.
+ * <p>
+ * Every customer gets a token bucket for orders and one for robots, refilled at the configured
+ * rates and holding up to a burst of a few seconds worth of tokens. The buckets are kept as the
+ * time at which they will be full again (the generic cell rate algorithm), so that taking from
+ * both is a single compare-and-set, without locking. Buckets that have refilled are idle and are
+ * evicted periodically - the next order from the customer simply starts a new, full, bucket.
+ * <p>
+ * The number of admitted and throttled orders are available as an MBean
+ * (se.hirt.examples.robotshop.order:type=CustomerRateLimiter).
+ * 
+ * @author Marcus Hirt
+ */
+public final class CustomerRateLimiter implements CustomerRateLimiterMXBean {
+	private final static long EVICTION_INTERVAL_SECONDS = 10;
+
+	private final double ordersPerSecond;
+	private final double robotsPerSecond;
+	private final double burstSeconds;
+	// Nanos per token, and how far ahead of time the buckets may be drawn
+	private final long orderInterval;
+	private final long robotInterval;
+	private final long orderTolerance;
+	private final long robotTolerance;
+	private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread thread = new Thread(r, "Customer Rate Limiter Evictor");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong throttledByOrders = new AtomicLong();
+	private final AtomicLong throttledByRobots = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * The times (in nanos) at which the buckets of a customer will be full again.
+	 */
+	private final static class State {
+		private final long ordersFullAt;
+		private final long robotsFullAt;
+
+		State(long ordersFullAt, long robotsFullAt) {
+			this.ordersFullAt = ordersFullAt;
+			this.robotsFullAt = robotsFullAt;
+		}
+	}
+
+	private final static class Bucket extends AtomicReference<State> {
+		private static final long serialVersionUID = 1L;
+
+		Bucket(long now) {
+			super(new State(now, now));
+		}
+
+		boolean isIdle(long now) {
+			State state = get();
+			return state.ordersFullAt <= now && state.robotsFullAt <= now;
+		}
+	}
+
+	/**
+	 * @param ordersPerSecond
+	 *            the number of orders per second to allow per customer, or 0 for any number.
+	 * @param robotsPerSecond
+	 *            the number of robots per second to allow per customer, or 0 for any number.
+	 * @param burstSeconds
+	 *            the number of seconds worth of orders and robots a customer may use up at once.
+	 */
+	public CustomerRateLimiter(double ordersPerSecond, double robotsPerSecond, double burstSeconds) {
+		this.ordersPerSecond = ordersPerSecond;
+		this.robotsPerSecond = robotsPerSecond;
+		this.burstSeconds = burstSeconds;
+		// A rate of 0 does not limit
+		orderInterval = ordersPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / ordersPerSecond) : 0;
+		robotInterval = robotsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / robotsPerSecond) : 0;
+		// A burst of at least one
+		orderTolerance = Math.max(orderInterval, (long) (burstSeconds * TimeUnit.SECONDS.toNanos(1)));
+		robotTolerance = Math.max(robotInterval, (long) (burstSeconds * TimeUnit.SECONDS.toNanos(1)));
+		evictor.scheduleWithFixedDelay(this::evictIdle, EVICTION_INTERVAL_SECONDS, EVICTION_INTERVAL_SECONDS,
+				TimeUnit.SECONDS);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("se.hirt.examples.robotshop.order:type=CustomerRateLimiter"));
+		} catch (JMException e) {
+			System.err.println("Could not register the customer rate limiter MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Takes an order, and its robots, from the buckets of a customer.
+	 * 
+	 * @param customerId
+	 *            the customer placing the order.
+	 * @param robots
+	 *            the number of robots in the order. An order for more robots than a full bucket
+	 *            holds takes the full bucket.
+	 * @return 0 if the order is admitted, otherwise the number of nanoseconds until it would be.
+	 */
+	public long tryAcquire(long customerId, int robots) {
+		long now = System.nanoTime();
+		Bucket bucket = buckets.computeIfAbsent(customerId, (id) -> new Bucket(now));
+		long robotCost = Math.min(robotTolerance, robots * robotInterval);
+		while (true) {
+			State state = bucket.get();
+			// A full bucket is full, no matter how long ago it filled up
+			long ordersFullAt = Math.max(state.ordersFullAt, now) + orderInterval;
+			long robotsFullAt = Math.max(state.robotsFullAt, now) + robotCost;
+			long orderWait = ordersFullAt - now - orderTolerance;
+			long robotWait = robotsFullAt - now - robotTolerance;
+			if (orderWait > 0 || robotWait > 0) {
+				(orderWait > 0 ? throttledByOrders : throttledByRobots).incrementAndGet();
+				return Math.max(orderWait, robotWait);
+			}
+			if (bucket.compareAndSet(state, new State(ordersFullAt, robotsFullAt))) {
+				admitted.incrementAndGet();
+				return 0;
+			}
+		}
+	}
+
+	private void evictIdle() {
+		long now = System.nanoTime();
+		// Racing with an order on an evicted bucket at worst forgets that order
+		buckets.entrySet().removeIf((entry) -> {
+			if (entry.getValue().isIdle(now)) {
+				evicted.incrementAndGet();
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public double getOrdersPerSecond() {
+		return ordersPerSecond;
+	}
+
+	@Override
+	public double getRobotsPerSecond() {
+		return robotsPerSecond;
+	}
+
+	@Override
+	public double getBurstSeconds() {
+		return burstSeconds;
+	}
+
+	@Override
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	@Override
+	public long getThrottled() {
+		return throttledByOrders.get() + throttledByRobots.get();
+	}
+
+	@Override
+	public long getThrottledByOrders() {
+		return throttledByOrders.get();
+	}
+
+	@Override
+	public long getThrottledByRobots() {
+		return throttledByRobots.get();
+	}
+
+	@Override
+	public int getCustomers() {
+		return buckets.size();
+	}
+
+	@Override
+	public long getEvicted() {
+		return evicted.get();
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+/**
+ * Management interface of the {@link CustomerRateLimiter}, e.g. for following the throttling in
+ * JMC.
+ * 
+ * @author Marcus Hirt
+ */
+public interface CustomerRateLimiterMXBean {
+	/**
+	 * @return the number of orders per second allowed per customer.
+	 */
+	double getOrdersPerSecond();
+
+	/**
+	 * @return the number of robots per second allowed per customer.
+	 */
+	double getRobotsPerSecond();
+
+	/**
+	 * @return the number of seconds worth of orders and robots a customer may use up at once.
+	 */
+	double getBurstSeconds();
+
+	/**
+	 * @return the number of orders admitted.
+	 */
+	long getAdmitted();
+
+	/**
+	 * @return the number of orders throttled.
+	 */
+	long getThrottled();
+
+	/**
+	 * @return the number of orders throttled for the customer placing too many orders.
+	 */
+	long getThrottledByOrders();
+
+	/**
+	 * @return the number of orders throttled for the customer ordering too many robots.
+	 */
+	long getThrottledByRobots();
+
+	/**
+	 * @return the number of customers currently tracked.
+	 */
+	int getCustomers();
+
+	/**
+	 * @return the number of idle customers no longer tracked.
+	 */
+	long getEvicted();
+}
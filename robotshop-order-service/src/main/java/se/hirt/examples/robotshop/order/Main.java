@@ -76,7 +76,8 @@ public class Main {
 		ctx.setResources(resources);
 
 		// Add servlet that will register Jersey REST resources
-		Tomcat.addServlet(ctx, "jersey-container-servlet", resourceConfig());
+		// Async support is needed for the long polling pick-ups
+		Tomcat.addServlet(ctx, "jersey-container-servlet", resourceConfig()).setAsyncSupported(true);
 		ctx.addServletMapping("/*", "jersey-container-servlet");
 
 		tomcat.start();
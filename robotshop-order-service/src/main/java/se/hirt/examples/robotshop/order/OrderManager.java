@@ -38,26 +38,27 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
 
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.ws.rs.core.Response.Status;
 
+import org.apache.tomcat.util.threads.TaskQueue;
 import org.apache.tomcat.util.threads.ThreadPoolExecutor;
 
 import io.opentracing.References;
@@ -68,11 +69,13 @@ import io.opentracing.Tracer.SpanBuilder;
 import io.opentracing.contrib.okhttp3.TracingCallFactory;
 import io.opentracing.util.GlobalTracer;
 import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
 import okhttp3.FormBody;
-import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 import se.hirt.examples.robotshop.common.data.Customer;
 import se.hirt.examples.robotshop.common.data.RealizedOrder;
 import se.hirt.examples.robotshop.common.data.Robot;
@@ -82,9 +85,19 @@ import se.hirt.examples.robotshop.common.data.RobotType;
 import se.hirt.examples.robotshop.common.data.ValidationException;
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
 import se.hirt.examples.robotshop.common.opentracing.SpanDecorator;
+import se.hirt.examples.robotshop.common.sharding.CustomerRouter;
+import se.hirt.examples.robotshop.common.util.CallRejectedException;
+import se.hirt.examples.robotshop.common.util.CircuitBreakerCallFactory;
+import se.hirt.examples.robotshop.common.util.SingleFlightCallFactory;
+import se.hirt.examples.robotshop.common.util.VirtualThreads;
 
 /**
  * Order manager, tracking and fulfilling robot orders.
+ * <p>
+ * Orders are processed as a chain of asynchronous steps - validating the customer, requesting the
+ * robots from the factory, polling for the robots and realizing the order - driven by the
+ * callbacks of the HTTP calls. No thread is blocked waiting for an order in flight, so a few order
+ * dispatcher threads can keep any number of orders going.
  * 
  * @author Marcus Hirt
  */
@@ -93,23 +106,104 @@ public class OrderManager {
 	private final static int JOB_QUEUE_SIZE = 500;
 	private final static String CUSTOMER_SERVICE_LOCATION;
 	private final static String FACTORY_SERVICE_LOCATION;
+	private final static String ROBOT_CALLBACK_URL;
 
 	private final static String DEFAULT_CUSTOMER_SERVICE_LOCATION = "http://localhost:8081";
 	private final static String DEFAULT_FACTORY_SERVICE_LOCATION = "http://localhost:8082";
-
-	private final static OrderManager INSTANCE = new OrderManager();
-	private final static int DEFAULT_NUMBER_OF_ORDER_DISPATCHERS = 25;
+	private final static String DEFAULT_CUSTOMER_LOOKUP_BATCH_WINDOW = "5";
+	private final static String DEFAULT_CUSTOMER_LOOKUP_BATCH_SIZE = "100";
+	private final static String DEFAULT_NUMBER_OF_ORDER_DISPATCHERS = "2";
+	private final static String DEFAULT_MAX_HTTP_REQUESTS = "128";
+	private final static String DEFAULT_MAX_HTTP_REQUESTS_PER_HOST = "64";
+	private final static String DEFAULT_MAX_PENDING_HTTP_REQUESTS = "1000";
+	private final static String DEFAULT_HTTP_TIMEOUT = "10";
+	private final static String DEFAULT_BREAKER_FAILURE_RATE = "50";
+	private final static String DEFAULT_BREAKER_WINDOW = "20";
+	private final static String DEFAULT_BREAKER_OPEN_TIME = "5";
+	private final static String DEFAULT_MAX_CONCURRENT_ORDERS = "1000";
+	private final static String DEFAULT_PICKUP_TIMEOUT = "300";
+	private final static String DEFAULT_MAX_AWAITED_ROBOTS = "10000";
+	private final static String DEFAULT_INITIAL_LIMIT = "20";
+	private final static String DEFAULT_MIN_LIMIT = "4";
+	private final static String DEFAULT_MAX_LIMIT = "1000";
+	private final static String DEFAULT_RATE_LIMIT_ORDERS = "10";
+	private final static String DEFAULT_RATE_LIMIT_ROBOTS = "100";
+	private final static String DEFAULT_RATE_LIMIT_BURST = "2";
+	private final static String DEFAULT_CUSTOMER_CACHE_SIZE = "10000";
+	private final static String DEFAULT_CUSTOMER_CACHE_TTL = "60";
+	private final static String DEFAULT_CUSTOMER_CACHE_NEGATIVE_TTL = "5";
+	private final static String DEFAULT_PORT = "8083";
+	private final static String DISPATCH_MODE_POOL = "pool";
+	private final static String DISPATCH_MODE_VIRTUAL = "virtual";
+	private final static long CUSTOMER_LOOKUP_BATCH_WINDOW;
+	private final static int CUSTOMER_LOOKUP_BATCH_SIZE;
+	private final static int NUMBER_OF_ORDER_DISPATCHERS;
+	private final static int MAX_HTTP_REQUESTS;
+	private final static int MAX_HTTP_REQUESTS_PER_HOST;
+	private final static int MAX_PENDING_HTTP_REQUESTS;
+	private final static long HTTP_TIMEOUT;
+	private final static double BREAKER_FAILURE_RATE;
+	private final static int BREAKER_WINDOW;
+	private final static long BREAKER_OPEN_TIME;
+	private final static boolean USE_VIRTUAL_THREADS;
+	private final static int MAX_CONCURRENT_ORDERS;
+	private final static long PICKUP_TIMEOUT;
+	private final static int MAX_AWAITED_ROBOTS;
+	private final static boolean USE_ADAPTIVE_LIMIT;
+	private final static int INITIAL_LIMIT;
+	private final static int MIN_LIMIT;
+	private final static int MAX_LIMIT;
+	private final static double RATE_LIMIT_ORDERS;
+	private final static double RATE_LIMIT_ROBOTS;
+	private final static double RATE_LIMIT_BURST;
+	private final static int CUSTOMER_CACHE_SIZE;
+	private final static long CUSTOMER_CACHE_TTL;
+	private final static long CUSTOMER_CACHE_NEGATIVE_TTL;
+
+	private final static int BREAKER_PROBES = 3;
+	private final static long PICKUP_INTERVAL = 1000;
+	private final static long MAX_PICKUP_INTERVAL = 4000;
+	// When the factory delivers the robots, polling is only a fallback for failed deliveries
+	private final static long FALLBACK_PICKUP_INTERVAL = 10000;
+	private final static long MAX_FALLBACK_PICKUP_INTERVAL = 60000;
 	private final static AtomicLong SERIAL_ID_GENERATOR = new AtomicLong();
 
 	private final Map<Long, RobotOrder> orderQueue = new ConcurrentHashMap<>();
 	private final Map<Long, RealizedOrder> completedOrders = new ConcurrentHashMap<>();
+	private final Map<Long, CompletableFuture<Robot>> awaitedRobots = new ConcurrentHashMap<>();
+	private final Map<Long, Set<Runnable>> realizedOrderListeners = new ConcurrentHashMap<>();
 	private final BlockingQueue<Runnable> jobQueue = new ArrayBlockingQueue<>(JOB_QUEUE_SIZE);
-	private final Executor orderDispatcher = new ThreadPoolExecutor(1, DEFAULT_NUMBER_OF_ORDER_DISPATCHERS, 60,
-			TimeUnit.SECONDS, jobQueue, new OrderThreadFactory());
-	private final ScheduledExecutorService completionPollExecutor = Executors.newScheduledThreadPool(4, new PollThreadFactory());
-
-	private final Call.Factory httpClient = new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(),
-			SpanDecorator.getSpanDecorators());
+	// Limits the orders in flight when not queueing them for a pool
+	private final Semaphore orderPermits = USE_VIRTUAL_THREADS ? new Semaphore(MAX_CONCURRENT_ORDERS) : null;
+	private final Executor orderDispatcher = createOrderDispatcher();
+	private final AdaptiveConcurrencyLimiter concurrencyLimiter = USE_ADAPTIVE_LIMIT
+			? new AdaptiveConcurrencyLimiter(INITIAL_LIMIT, MIN_LIMIT, MAX_LIMIT)
+			: null;
+
+	private final ExecutorService httpExecutor = createHttpExecutor();
+	// Shares the connections between the clients of the services
+	private final OkHttpClient httpClient = new OkHttpClient.Builder()
+			.connectTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS).writeTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS)
+			.readTimeout(HTTP_TIMEOUT, TimeUnit.MILLISECONDS).build();
+	// Each service gets its own calls in flight and circuit breaker, so a stalled factory cannot hold up the customers
+	private final Call.Factory customerClient = createServiceClient("Customer Service");
+	private final Call.Factory factoryClient = createServiceClient("Factory Service");
+	// CUSTOMER_SERVICE_LOCATION may list several customer service shards
+	private final CustomerRouter customerRouter = new CustomerRouter(customerClient, CUSTOMER_SERVICE_LOCATION);
+	// One poller for all the robots being built
+	private final RobotPickupPoller robotPickupPoller = new RobotPickupPoller(factoryClient, FACTORY_SERVICE_LOCATION,
+			ROBOT_CALLBACK_URL != null ? FALLBACK_PICKUP_INTERVAL : PICKUP_INTERVAL,
+			ROBOT_CALLBACK_URL != null ? MAX_FALLBACK_PICKUP_INTERVAL : MAX_PICKUP_INTERVAL, PICKUP_TIMEOUT,
+			MAX_AWAITED_ROBOTS);
+	private final CustomerLookupBatcher customerLookupBatcher = CUSTOMER_LOOKUP_BATCH_WINDOW > 0
+			? new CustomerLookupBatcher(customerRouter, CUSTOMER_LOOKUP_BATCH_WINDOW, CUSTOMER_LOOKUP_BATCH_SIZE)
+			: null;
+	private final CustomerRateLimiter customerRateLimiter = RATE_LIMIT_ORDERS > 0 || RATE_LIMIT_ROBOTS > 0
+			? new CustomerRateLimiter(RATE_LIMIT_ORDERS, RATE_LIMIT_ROBOTS, RATE_LIMIT_BURST)
+			: null;
+	private final CustomerCache customerCache = CUSTOMER_CACHE_SIZE > 0
+			? new CustomerCache(CUSTOMER_CACHE_SIZE, CUSTOMER_CACHE_TTL, CUSTOMER_CACHE_NEGATIVE_TTL)
+			: null;
 
 	private final static class OrderThreadFactory implements ThreadFactory {
 		private final static AtomicInteger COUNT = new AtomicInteger(); 
@@ -119,14 +213,16 @@ public class OrderManager {
 		}
 	}
 
-	private final static class PollThreadFactory implements ThreadFactory {
-		private final static AtomicInteger COUNT = new AtomicInteger(); 
+	private final static class HttpThreadFactory implements ThreadFactory {
+		private final static AtomicInteger COUNT = new AtomicInteger();
 		@Override
 		public Thread newThread(Runnable r) {
-			return new Thread(GROUP, r, "Completion Poller " + COUNT.getAndIncrement());
+			Thread thread = new Thread(GROUP, r, "Order HTTP Dispatcher " + COUNT.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
 		}
 	}
-	
+
 	static {
 		// Setting up service locations...
 		String robotFactory = System.getenv("FACTORY_SERVICE_LOCATION");
@@ -139,194 +235,360 @@ public class OrderManager {
 		}
 		FACTORY_SERVICE_LOCATION = robotFactory;
 		CUSTOMER_SERVICE_LOCATION = customerService;
+
+		// Batching window in ms for the customer validation - 0 to make one request per order
+		String batchWindow = System.getenv("CUSTOMER_LOOKUP_BATCH_WINDOW");
+		CUSTOMER_LOOKUP_BATCH_WINDOW = Long.parseLong(batchWindow != null ? batchWindow : DEFAULT_CUSTOMER_LOOKUP_BATCH_WINDOW);
+		String batchSize = System.getenv("CUSTOMER_LOOKUP_BATCH_SIZE");
+		CUSTOMER_LOOKUP_BATCH_SIZE = Integer.parseInt(batchSize != null ? batchSize : DEFAULT_CUSTOMER_LOOKUP_BATCH_SIZE);
+
+		String dispatchers = System.getenv("ORDER_DISPATCHER_THREADS");
+		NUMBER_OF_ORDER_DISPATCHERS = Integer
+				.parseInt(dispatchers != null ? dispatchers : DEFAULT_NUMBER_OF_ORDER_DISPATCHERS);
+		// The maximum number of concurrent calls (and HTTP threads), in total and per service
+		String maxRequests = System.getenv("ORDER_MAX_HTTP_REQUESTS");
+		MAX_HTTP_REQUESTS = Integer.parseInt(maxRequests != null ? maxRequests : DEFAULT_MAX_HTTP_REQUESTS);
+		String maxRequestsPerHost = System.getenv("ORDER_MAX_HTTP_REQUESTS_PER_HOST");
+		MAX_HTTP_REQUESTS_PER_HOST = Integer
+				.parseInt(maxRequestsPerHost != null ? maxRequestsPerHost : DEFAULT_MAX_HTTP_REQUESTS_PER_HOST);
+		// The maximum number of calls per service in flight or waiting to be made - further calls fail right away
+		String maxPendingRequests = System.getenv("ORDER_MAX_PENDING_HTTP_REQUESTS");
+		MAX_PENDING_HTTP_REQUESTS = Integer
+				.parseInt(maxPendingRequests != null ? maxPendingRequests : DEFAULT_MAX_PENDING_HTTP_REQUESTS);
+		// Seconds to wait for connecting to, writing to and reading from the other services
+		String httpTimeout = System.getenv("ORDER_HTTP_TIMEOUT");
+		HTTP_TIMEOUT = TimeUnit.SECONDS.toMillis(Long.parseLong(httpTimeout != null ? httpTimeout : DEFAULT_HTTP_TIMEOUT));
+
+		// Percentage of the last ORDER_BREAKER_WINDOW calls to a service that must fail to stop calling it for
+		// ORDER_BREAKER_OPEN_TIME seconds - 0 to keep calling
+		String breakerFailureRate = System.getenv("ORDER_BREAKER_FAILURE_RATE");
+		BREAKER_FAILURE_RATE = Double
+				.parseDouble(breakerFailureRate != null ? breakerFailureRate : DEFAULT_BREAKER_FAILURE_RATE) / 100;
+		String breakerWindow = System.getenv("ORDER_BREAKER_WINDOW");
+		BREAKER_WINDOW = Integer.parseInt(breakerWindow != null ? breakerWindow : DEFAULT_BREAKER_WINDOW);
+		String breakerOpenTime = System.getenv("ORDER_BREAKER_OPEN_TIME");
+		BREAKER_OPEN_TIME = TimeUnit.SECONDS
+				.toMillis(Long.parseLong(breakerOpenTime != null ? breakerOpenTime : DEFAULT_BREAKER_OPEN_TIME));
+
+		// pool (default) or virtual - run every order and HTTP call on a virtual thread of its own
+		String dispatchMode = System.getenv("ORDER_DISPATCH_MODE");
+		boolean useVirtualThreads = DISPATCH_MODE_VIRTUAL.equalsIgnoreCase(dispatchMode);
+		if (dispatchMode != null && !useVirtualThreads && !DISPATCH_MODE_POOL.equalsIgnoreCase(dispatchMode)) {
+			System.err.println("Unknown ORDER_DISPATCH_MODE " + dispatchMode + " - using " + DISPATCH_MODE_POOL);
+		}
+		if (useVirtualThreads && !VirtualThreads.isSupported()) {
+			System.err.println("Virtual threads are not supported by this JVM - using " + DISPATCH_MODE_POOL);
+			useVirtualThreads = false;
+		}
+		USE_VIRTUAL_THREADS = useVirtualThreads;
+
+		// Have the factory post the robots to us when they are done, if it knows where to find us. A
+		// callback URL the factory cannot reach would silently leave us polling at the fallback rate.
+		String factoryCallbacks = System.getenv("ORDER_FACTORY_CALLBACKS");
+		String orderService = System.getenv("ORDER_SERVICE_LOCATION");
+		if (factoryCallbacks != null && !Boolean.parseBoolean(factoryCallbacks)) {
+			ROBOT_CALLBACK_URL = null;
+		} else if (orderService != null && !orderService.isEmpty()) {
+			ROBOT_CALLBACK_URL = orderService + "/robots/completed";
+		} else if (factoryCallbacks != null) {
+			String port = System.getenv("PORT");
+			orderService = "http://localhost:" + (port == null || port.isEmpty() ? DEFAULT_PORT : port);
+			System.err.println("ORDER_SERVICE_LOCATION not set - assuming the factory can call back to " + orderService);
+			ROBOT_CALLBACK_URL = orderService + "/robots/completed";
+		} else {
+			ROBOT_CALLBACK_URL = null;
+		}
+		String maxOrders = System.getenv("ORDER_MAX_CONCURRENT_ORDERS");
+		MAX_CONCURRENT_ORDERS = Integer.parseInt(maxOrders != null ? maxOrders : DEFAULT_MAX_CONCURRENT_ORDERS);
+
+		// Seconds to wait for a robot to be built before failing the order
+		String pickupTimeout = System.getenv("ORDER_PICKUP_TIMEOUT");
+		PICKUP_TIMEOUT = TimeUnit.SECONDS
+				.toMillis(Long.parseLong(pickupTimeout != null ? pickupTimeout : DEFAULT_PICKUP_TIMEOUT));
+		String maxAwaitedRobots = System.getenv("ORDER_MAX_AWAITED_ROBOTS");
+		MAX_AWAITED_ROBOTS = Integer
+				.parseInt(maxAwaitedRobots != null ? maxAwaitedRobots : DEFAULT_MAX_AWAITED_ROBOTS);
+
+		// Adapt the number of orders in flight to the latency of the orders, unless set to false
+		String adaptiveLimit = System.getenv("ORDER_ADAPTIVE_LIMIT");
+		USE_ADAPTIVE_LIMIT = adaptiveLimit == null || Boolean.parseBoolean(adaptiveLimit);
+		String initialLimit = System.getenv("ORDER_INITIAL_LIMIT");
+		INITIAL_LIMIT = Integer.parseInt(initialLimit != null ? initialLimit : DEFAULT_INITIAL_LIMIT);
+		String minLimit = System.getenv("ORDER_MIN_LIMIT");
+		MIN_LIMIT = Integer.parseInt(minLimit != null ? minLimit : DEFAULT_MIN_LIMIT);
+		String maxLimit = System.getenv("ORDER_MAX_LIMIT");
+		MAX_LIMIT = Integer.parseInt(maxLimit != null ? maxLimit : DEFAULT_MAX_LIMIT);
+
+		// Orders and robots per second per customer - 0 for no limit
+		String rateLimitOrders = System.getenv("ORDER_RATE_LIMIT_ORDERS");
+		RATE_LIMIT_ORDERS = Double.parseDouble(rateLimitOrders != null ? rateLimitOrders : DEFAULT_RATE_LIMIT_ORDERS);
+		String rateLimitRobots = System.getenv("ORDER_RATE_LIMIT_ROBOTS");
+		RATE_LIMIT_ROBOTS = Double.parseDouble(rateLimitRobots != null ? rateLimitRobots : DEFAULT_RATE_LIMIT_ROBOTS);
+		// Seconds worth of orders and robots a customer may place at once
+		String rateLimitBurst = System.getenv("ORDER_RATE_LIMIT_BURST");
+		RATE_LIMIT_BURST = Double.parseDouble(rateLimitBurst != null ? rateLimitBurst : DEFAULT_RATE_LIMIT_BURST);
+
+		// Number of customers to cache - 0 to look up the customer of every order
+		String cacheSize = System.getenv("CUSTOMER_CACHE_SIZE");
+		CUSTOMER_CACHE_SIZE = Integer.parseInt(cacheSize != null ? cacheSize : DEFAULT_CUSTOMER_CACHE_SIZE);
+		// Seconds to cache customers, and that customers do not exist
+		String cacheTtl = System.getenv("CUSTOMER_CACHE_TTL");
+		CUSTOMER_CACHE_TTL = TimeUnit.SECONDS
+				.toMillis(Long.parseLong(cacheTtl != null ? cacheTtl : DEFAULT_CUSTOMER_CACHE_TTL));
+		String negativeCacheTtl = System.getenv("CUSTOMER_CACHE_NEGATIVE_TTL");
+		CUSTOMER_CACHE_NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(
+				Long.parseLong(negativeCacheTtl != null ? negativeCacheTtl : DEFAULT_CUSTOMER_CACHE_NEGATIVE_TTL));
 	}
 
-	private final class RobotPickupJob implements Runnable {
-		private final Long serial;
-		private final CompletableFuture<Robot> future;
-		private final SpanContext parent;
+	// Must be created after the configuration has been read
+	private final static OrderManager INSTANCE = new OrderManager();
 
-		public volatile ScheduledFuture<?> scheduledFuture;
-		private volatile boolean isDone = false;
+	private final class OrderJob implements Runnable {
+		private final RobotOrder order;
+		private final Span parent;
+		private final long startTime;
 
-		public RobotPickupJob(Long serial, CompletableFuture<Robot> future, SpanContext parent) {
-			this.serial = serial;
-			this.future = future;
+		public OrderJob(RobotOrder order, Span parent, long startTime) {
+			this.order = order;
 			this.parent = parent;
+			this.startTime = startTime;
 		}
 
 		@Override
 		public void run() {
-			if (isDone) {
-				scheduledFuture.cancel(false);
-				return;
-			}
-
-			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("pickupFromFactoryAttempt");
-			spanBuilder.withTag(Robot.KEY_SERIAL_NUMBER, String.valueOf(serial));
-			spanBuilder.asChildOf(parent);
+			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("orderJob");
+			spanBuilder.withTag(RobotOrder.KEY_ORDER_ID, String.valueOf(order.getOrderId()));
+			spanBuilder.addReference(References.FOLLOWS_FROM, parent.context());
 			Span span = spanBuilder.start();
+			try {
+				validateUser(order.getCustomerId(), span.context())
+						.thenCompose((customer) -> dispatch(order.getLineItems(), span.context())
+								.thenApply((robots) -> new RealizedOrder(order, customer, robots, null)))
+						.whenComplete((realizedOrder, t) -> complete(realizedOrder, t, span));
+			} catch (Throwable t) {
+				complete(null, t, span);
+			}
+		}
 
-			try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-				okhttp3.HttpUrl.Builder httpBuilder = HttpUrl.parse(FACTORY_SERVICE_LOCATION + "/factory/pickup")
-						.newBuilder();
-				httpBuilder.addQueryParameter(Robot.KEY_SERIAL_NUMBER, String.valueOf(serial));
-				Request request = new Request.Builder().url(httpBuilder.build()).build();
-				try {
-					Response response = httpClient.newCall(request).execute();
-					String body = response.body().string();
-					if (response.isSuccessful() && !body.isEmpty()) {
-						isDone = true;
-						Robot robot = Robot.fromJSon(body);
-						future.complete(robot);
-						scheduledFuture.cancel(false);
-					}
-				} catch (IOException e) {
-					span.log(OpenTracingUtil.getSpanLogMap(e));
-					scheduledFuture.cancel(false);
+		private void complete(RealizedOrder realizedOrder, Throwable t, Span span) {
+			Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+			try {
+				if (t != null) {
+					span.log(OpenTracingUtil.getSpanLogMap(cause));
+					completedOrders.put(order.getOrderId(), new RealizedOrder(order, null, null, cause));
+				} else {
+					// TODO verify that all list items got realized - otherwise add errors for the ones missing etc
+					completedOrders.put(order.getOrderId(), realizedOrder);
 				}
-			} catch (Throwable t) {
-				span.log(OpenTracingUtil.getSpanLogMap(t));
-				throw t;
 			} finally {
 				span.finish();
+				parent.finish();
+				if (orderPermits != null) {
+					orderPermits.release();
+				}
+				if (concurrencyLimiter != null) {
+					// Robots not built in time, or not even requested or polled for, are signs of overload
+					if (t == null || cause instanceof TimeoutException || cause instanceof RejectedExecutionException
+							|| cause instanceof CallRejectedException) {
+						concurrencyLimiter.release(startTime, t != null);
+					} else {
+						concurrencyLimiter.release();
+					}
+				}
 			}
+			orderQueue.remove(order.getOrderId());
+			fireOrderRealized(order.getOrderId());
 		}
-	}
 
-	private final class RobotFactoryRequestSerialSupplier implements Supplier<Long> {
-		private final RobotOrderLineItem lineItem;
-		private final SpanContext parent;
+		private CompletableFuture<Robot[]> dispatch(RobotOrderLineItem[] lineItems, SpanContext spanContext) {
+			List<CompletableFuture<Robot>> robots = new ArrayList<CompletableFuture<Robot>>();
+			for (RobotOrderLineItem lineItem : lineItems) {
+				robots.add(requestRobot(lineItem, spanContext)
+						.thenCompose((serial) -> pollForCompletion(serial, spanContext)));
+			}
+			return CompletableFuture.allOf(robots.toArray(new CompletableFuture[0])).thenApply(
+					(ignore) -> robots.stream().map(CompletableFuture::join).toArray(Robot[]::new));
+		}
 
-		public RobotFactoryRequestSerialSupplier(RobotOrderLineItem lineItem, SpanContext parent) {
-			this.lineItem = lineItem;
-			this.parent = parent;
+		private CompletableFuture<Robot> pollForCompletion(Long serial, SpanContext parent) {
+			CompletableFuture<Robot> future = new CompletableFuture<Robot>();
+			if (ROBOT_CALLBACK_URL != null) {
+				awaitedRobots.put(serial, future);
+				future.whenComplete((robot, t) -> awaitedRobots.remove(serial));
+			}
+			robotPickupPoller.poll(serial, future, parent);
+			return future;
 		}
 
-		@Override
-		public Long get() {
+		private CompletableFuture<Long> requestRobot(RobotOrderLineItem lineItem, SpanContext parent) {
 			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("buildRobotRequest");
 			spanBuilder.withTag(RobotType.KEY_ROBOT_TYPE, lineItem.getRobotTypeId());
 			spanBuilder.withTag(Robot.KEY_COLOR, lineItem.getColor().toString());
 			spanBuilder.asChildOf(parent);
 			Span span = spanBuilder.start();
 
-			try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-				FormBody.Builder formBuilder = new FormBody.Builder();
-				formBuilder.add(RobotType.KEY_ROBOT_TYPE, lineItem.getRobotTypeId());
-				formBuilder.add(Robot.KEY_COLOR, lineItem.getColor().toString());
-
-				Request req = new Request.Builder().url(FACTORY_SERVICE_LOCATION + "/factory/buildrobot")
-						.post(formBuilder.build()).build();
-
-				try {
-					Response response = httpClient.newCall(req).execute();
-					return parseSerial(response.body().string());
-				} catch (Throwable e) {
-					span.log(OpenTracingUtil.getSpanLogMap(e));
+			FormBody.Builder formBuilder = new FormBody.Builder();
+			formBuilder.add(RobotType.KEY_ROBOT_TYPE, lineItem.getRobotTypeId());
+			formBuilder.add(Robot.KEY_COLOR, lineItem.getColor().toString());
+			if (ROBOT_CALLBACK_URL != null) {
+				formBuilder.add(Robot.KEY_CALLBACK_URL, ROBOT_CALLBACK_URL);
+			}
+			Request req = new Request.Builder().url(FACTORY_SERVICE_LOCATION + "/factory/buildrobot")
+					.post(formBuilder.build()).build();
+			return call(factoryClient, req, span).thenApply((body) -> {
+				Long serial = body != null ? parseSerial(body) : Robot.INVALID_SERIAL_ID;
+				if (Robot.INVALID_SERIAL_ID.equals(serial)) {
+					throw new CompletionException(
+							new IOException("Factory did not accept the request to build " + lineItem));
+				}
+				return serial;
+			}).whenComplete((serial, t) -> {
+				if (t != null) {
+					span.log(OpenTracingUtil.getSpanLogMap(t));
 				}
-			} catch (Throwable t) {
-				span.log(OpenTracingUtil.getSpanLogMap(t));
-			} finally {
 				span.finish();
-			}
-			return -1L;
+			});
 		}
 
 		private Long parseSerial(String json) {
 			JsonObject readObject = Json.createReader(new StringReader(json)).readObject();
-			String serialString = readObject.getString(Robot.KEY_SERIAL_NUMBER);
+			String serialString = readObject.getString(Robot.KEY_SERIAL_NUMBER, null);
 			if (serialString == null) {
 				return Robot.INVALID_SERIAL_ID;
 			}
 			return Long.valueOf(serialString);
 		}
-	}
 
-	private final class OrderJob implements Runnable {
-		private final RobotOrder order;
-		private final Span parent;
-
-		public OrderJob(RobotOrder order, Span parent) {
-			this.order = order;
-			this.parent = parent;
+		private CompletableFuture<Customer> validateUser(Long customerId, SpanContext parent) {
+			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("validateUser")
+					.withTag(Customer.KEY_CUSTOMER_ID, String.valueOf(customerId)).asChildOf(parent);
+			Span span = spanBuilder.start();
+			CompletableFuture<Customer> customer = customerCache != null
+					? customerCache.get(customerId, (id) -> lookupCustomer(id, span))
+					: lookupCustomer(customerId, span);
+			return customer.thenApply((c) -> {
+				if (c == null) {
+					throw new CompletionException(new ValidationException("Could not find customer " + customerId));
+				}
+				return c;
+			}).whenComplete((c, t) -> span.finish());
 		}
 
-		@Override
-		public void run() {
-			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("orderJob");
-			spanBuilder.withTag(RobotOrder.KEY_ORDER_ID, String.valueOf(order.getOrderId()));
-			spanBuilder.addReference(References.FOLLOWS_FROM, parent.context());
-			Span span = spanBuilder.start();
-			try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-				Customer customer = validateUser(order.getCustomerId(), scope.span().context());
-				Collection<CompletableFuture<Robot>> robots = dispatch(order.getLineItems(), scope.span().context());
-				CompletableFuture<Void> allOf = CompletableFuture.allOf(robots.toArray(new CompletableFuture[0]));
-				allOf.get();
-				List<Robot> collect = robots.stream().map((robot) -> get(robot)).collect(Collectors.toList());
-
-				// TODO verify that all list items got realized - otherwise add errors for the ones missing etc
-				completedOrders.put(order.getOrderId(),
-						new RealizedOrder(order, customer, collect.toArray(new Robot[0]), null));
-			} catch (Throwable t) {
-				span.log(OpenTracingUtil.getSpanLogMap(t));
-				completedOrders.put(order.getOrderId(), new RealizedOrder(order, null, null, t));
-			} finally {
-				span.finish();
-				parent.finish();
+		/**
+		 * Completes with null if the customer does not exist.
+		 */
+		private CompletableFuture<Customer> lookupCustomer(Long customerId, Span span) {
+			if (customerLookupBatcher != null) {
+				return customerLookupBatcher.lookup(customerId, span.context());
 			}
-			orderQueue.remove(order.getOrderId());
+			String location = customerRouter.getLocation(customerId);
+			return lookupCustomer(location, customerId, span).thenCompose((customer) -> {
+				if (customer != null) {
+					return CompletableFuture.completedFuture(customer);
+				}
+				// The customer may have been moved to another shard - someone else may already have refreshed the ring
+				return customerRouter.refreshRingIfStale().thenCompose((changed) -> {
+					String owner = customerRouter.getLocation(customerId);
+					return owner.equals(location) ? CompletableFuture.completedFuture(null)
+							: lookupCustomer(owner, customerId, span);
+				});
+			});
 		}
 
-		private Robot get(CompletableFuture<Robot> robot) {
-			try {
-				return robot.get();
-			} catch (InterruptedException | ExecutionException e) {
-				e.printStackTrace();
-			}
-			return null;
+		private CompletableFuture<Customer> lookupCustomer(String location, Long customerId, Span span) {
+			Request req = new Request.Builder().url(location + "/customers/" + customerId).get().build();
+			return call(customerClient, req, span).handle((body, t) -> {
+				if (t != null) {
+					throw new CompletionException(new ValidationException("Failed to validate customer", t));
+				}
+				return body != null ? Customer.fromJSon(body) : null;
+			});
 		}
+	}
 
-		private Collection<CompletableFuture<Robot>> dispatch(RobotOrderLineItem[] lineItems, SpanContext spanContext) {
-			Collection<CompletableFuture<Robot>> robots = new ArrayList<CompletableFuture<Robot>>();
-			for (RobotOrderLineItem lineItem : lineItems) {
-				final CompletableFuture<Robot> future = new CompletableFuture<Robot>();
-				CompletableFuture.supplyAsync(dispatch(lineItem, spanContext))
-						.thenAccept((serial) -> schedulePollingForCompletion(serial, future, spanContext));
-				robots.add(future);
-			}
-			return robots;
+	private Executor createOrderDispatcher() {
+		if (USE_VIRTUAL_THREADS) {
+			// Concurrency is limited by the orderPermits rather than a queue
+			System.out.println("Dispatching orders on virtual threads, at most " + MAX_CONCURRENT_ORDERS + " at a time");
+			return VirtualThreads.newThreadPerTaskExecutor("Order Dispatcher ");
 		}
+		// Only starts the orders, so a fixed number of threads will do
+		return new ThreadPoolExecutor(NUMBER_OF_ORDER_DISPATCHERS, NUMBER_OF_ORDER_DISPATCHERS, 60, TimeUnit.SECONDS,
+				jobQueue, new OrderThreadFactory());
+	}
 
-		private void schedulePollingForCompletion(Long serial, CompletableFuture<Robot> future, SpanContext parent) {
-			RobotPickupJob job = new RobotPickupJob(serial, future, parent);
-			job.scheduledFuture = completionPollExecutor.scheduleAtFixedRate(job, 70, 1000, TimeUnit.MILLISECONDS);
+	private static ExecutorService createHttpExecutor() {
+		if (USE_VIRTUAL_THREADS) {
+			// The dispatchers limit the number of calls, so no need for a pool
+			return VirtualThreads.newThreadPerTaskExecutor("Order HTTP Dispatcher ");
 		}
+		// The task queue makes the executor reuse idle threads before starting new ones
+		TaskQueue taskQueue = new TaskQueue();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(0, MAX_HTTP_REQUESTS, 60, TimeUnit.SECONDS, taskQueue,
+				new HttpThreadFactory());
+		taskQueue.setParent(executor);
+		return executor;
+	}
 
-		private Supplier<Long> dispatch(RobotOrderLineItem lineItem, SpanContext parent) {
-			return new RobotFactoryRequestSerialSupplier(lineItem, parent);
+	/**
+	 * Creates the client for calling one of the other services. The calls share the threads and
+	 * connections with the calls to the other services, but have a dispatcher, bulkhead and circuit
+	 * breaker of their own.
+	 */
+	private Call.Factory createServiceClient(String service) {
+		Dispatcher dispatcher = new Dispatcher(httpExecutor);
+		dispatcher.setMaxRequests(Math.min(MAX_HTTP_REQUESTS, MAX_HTTP_REQUESTS_PER_HOST));
+		dispatcher.setMaxRequestsPerHost(MAX_HTTP_REQUESTS_PER_HOST);
+		OkHttpClient client = httpClient.newBuilder().dispatcher(dispatcher).build();
+		Call.Factory breaker = new CircuitBreakerCallFactory(
+				new TracingCallFactory(client, GlobalTracer.get(), SpanDecorator.getSpanDecorators()), service,
+				MAX_PENDING_HTTP_REQUESTS, BREAKER_WINDOW, BREAKER_FAILURE_RATE, BREAKER_OPEN_TIME, BREAKER_PROBES);
+		// Concurrent lookups of the same customer share one call
+		return new SingleFlightCallFactory(breaker, service);
+	}
+
+	/**
+	 * Makes an asynchronous call. The callbacks run on the threads of the HTTP client dispatcher,
+	 * so whatever is chained onto the returned future must not block.
+	 * 
+	 * @param client
+	 *            the client for the service to call.
+	 * @param request
+	 *            the request to make.
+	 * @param span
+	 *            the span to make the call in.
+	 * @return a future completed with the body of the response, null if there was no such
+	 *         resource, or exceptionally if the call failed.
+	 */
+	private CompletableFuture<String> call(Call.Factory client, Request request, Span span) {
+		CompletableFuture<String> future = new CompletableFuture<>();
+		Call call;
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			call = client.newCall(request);
 		}
+		call.enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				future.completeExceptionally(e);
+			}
 
-		private Customer validateUser(Long customerId, SpanContext parent) throws ValidationException {
-			SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("validateUser")
-					.withTag(Customer.KEY_CUSTOMER_ID, String.valueOf(customerId)).asChildOf(parent);
-			try (Scope scope = spanBuilder.startActive(true)) {
-				Request req = new Request.Builder().url(CUSTOMER_SERVICE_LOCATION + "/customers/" + customerId).get()
-						//.tag(new TagWrapper(parentSpan.context()))
-						.build();
-
-				Response res = null;
-				try {
-					res = httpClient.newCall(req).execute();
-					if (res.code() == Status.NOT_FOUND.getStatusCode()) {
-						throw new ValidationException("Could not find customer " + customerId);
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (ResponseBody body = response.body()) {
+					if (response.code() == Status.NOT_FOUND.getStatusCode()) {
+						future.complete(null);
+					} else if (!response.isSuccessful()) {
+						future.completeExceptionally(
+								new IOException("Got " + response.code() + " from " + request.url()));
+					} else {
+						future.complete(body.string());
 					}
-					return Customer.fromJSon(res.body().string());
-				} catch (IOException exc) {
-					throw new ValidationException("Failed to validate customer");
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
 				}
 			}
-		}
+		});
+		return future;
 	}
 
 	public RobotOrder createNewOrder(long customerId, RobotOrderLineItem[] lineItems) {
@@ -335,10 +597,57 @@ public class OrderManager {
 
 	/**
 	 * @param order
+	 * @throws RejectedExecutionException
+	 *             if there are too many orders in flight.
 	 */
-	public void dispatchOrder(RobotOrder order) {
+	public void dispatchOrder(RobotOrder order) throws RejectedExecutionException {
+		if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+			throw new RejectedExecutionException(
+					"Over the limit of " + concurrencyLimiter.getLimit() + " orders in flight");
+		}
+		long startTime = System.nanoTime();
+		if (orderPermits != null && !orderPermits.tryAcquire()) {
+			if (concurrencyLimiter != null) {
+				concurrencyLimiter.release();
+			}
+			throw new RejectedExecutionException("Too many orders in flight");
+		}
 		orderQueue.put(order.getOrderId(), order);
-		orderDispatcher.execute(new OrderJob(order, GlobalTracer.get().scopeManager().active().span()));
+		try {
+			orderDispatcher.execute(new OrderJob(order, GlobalTracer.get().scopeManager().active().span(), startTime));
+		} catch (RejectedExecutionException e) {
+			orderQueue.remove(order.getOrderId());
+			if (orderPermits != null) {
+				orderPermits.release();
+			}
+			if (concurrencyLimiter != null) {
+				concurrencyLimiter.release();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of seconds a client turned away by {@link #dispatchOrder(RobotOrder)}
+	 *         should wait before trying again.
+	 */
+	public long getRetryAfterSeconds() {
+		return concurrencyLimiter != null ? concurrencyLimiter.getRetryAfterSeconds() : 1;
+	}
+
+	/**
+	 * Called when the factory delivers a robot.
+	 * 
+	 * @param robot
+	 *            the completed robot.
+	 * @return true if the robot was awaited by an order, false if unknown (e.g. already picked up).
+	 */
+	public boolean robotCompleted(Robot robot) {
+		CompletableFuture<Robot> future = awaitedRobots.remove(robot.getSerialNumber());
+		if (future == null) {
+			return false;
+		}
+		return future.complete(robot);
 	}
 
 	/**
@@ -363,6 +672,45 @@ public class OrderManager {
 		return completedOrders.get(id);
 	}
 
+	/**
+	 * Adds a listener to run once the order has been realized, e.g. to complete a waiting pick-up.
+	 * If the order already has been realized, the listener is run right away.
+	 * 
+	 * @param orderId
+	 *            the order to wait for.
+	 * @param listener
+	 *            the listener to run, on the thread realizing the order. Must not block.
+	 */
+	public void addRealizedOrderListener(Long orderId, Runnable listener) {
+		realizedOrderListeners.compute(orderId, (id, listeners) -> {
+			Set<Runnable> newListeners = listeners != null ? listeners : ConcurrentHashMap.newKeySet();
+			newListeners.add(listener);
+			return newListeners;
+		});
+		// In case it was realized before we got the listener in
+		if (completedOrders.containsKey(orderId)) {
+			fireOrderRealized(orderId);
+		}
+	}
+
+	/**
+	 * Removes a listener added with {@link #addRealizedOrderListener(Long, Runnable)}, e.g. when
+	 * giving up waiting.
+	 */
+	public void removeRealizedOrderListener(Long orderId, Runnable listener) {
+		realizedOrderListeners.computeIfPresent(orderId, (id, listeners) -> {
+			listeners.remove(listener);
+			return listeners.isEmpty() ? null : listeners;
+		});
+	}
+
+	private void fireOrderRealized(Long orderId) {
+		Set<Runnable> listeners = realizedOrderListeners.remove(orderId);
+		if (listeners != null) {
+			listeners.forEach(Runnable::run);
+		}
+	}
+
 	/**
 	 * @param orderId
 	 *            the order to pick up.
@@ -373,6 +721,20 @@ public class OrderManager {
 		return completedOrders.remove(orderId);
 	}
 
+	/**
+	 * @return the limiter of the orders per customer, or null if the orders are not rate limited.
+	 */
+	public CustomerRateLimiter getCustomerRateLimiter() {
+		return customerRateLimiter;
+	}
+
+	/**
+	 * @return the cache of the customers of the orders, or null if customers are not cached.
+	 */
+	public CustomerCache getCustomerCache() {
+		return customerCache;
+	}
+
 	public static OrderManager getInstance() {
 		return INSTANCE;
 	}
@@ -39,6 +39,8 @@ import javax.ws.rs.core.Application;
 import org.glassfish.jersey.jsonb.internal.JsonBindingProvider;
 
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingDynamicFeature;
+import se.hirt.examples.robotshop.order.rest.CompletedRobotsResource;
+import se.hirt.examples.robotshop.order.rest.CustomerCacheResource;
 import se.hirt.examples.robotshop.order.rest.HelloRest;
 import se.hirt.examples.robotshop.order.rest.RealizedOrderResource;
 import se.hirt.examples.robotshop.order.rest.RealizedOrdersResource;
@@ -56,6 +58,8 @@ public class ResourceLoader extends Application {
 	public Set<Class<?>> getClasses() {
 		final Set<Class<?>> classes = new HashSet<Class<?>>();
 		classes.add(HelloRest.class);
+		classes.add(CompletedRobotsResource.class);
+		classes.add(CustomerCacheResource.class);
 		classes.add(RealizedOrderResource.class);
 		classes.add(RealizedOrdersResource.class);
 		classes.add(RobotOrderResource.class);
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import io.opentracing.References;
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.Tracer.SpanBuilder;
+import io.opentracing.util.GlobalTracer;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import se.hirt.examples.robotshop.common.data.Robot;
+import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
+import se.hirt.examples.robotshop.common.util.CallRejectedException;
+import se.hirt.examples.robotshop.common.util.HashedWheelTimer;
+import se.hirt.examples.robotshop.common.util.HashedWheelTimer.Timeout;
+
+/**
+ * Polls a factory for the robots being built, coalescing the robots due to be polled into one call
+ * to the batch pick-up (/factory/pickup/batch), rather than one call per robot.
+ * <p>
+ * Every awaited robot has its own next poll and deadline in a {@link HashedWheelTimer}. The robots
+ * that become due within the same tick of the timer are picked up together. A robot that is not
+ * done yet is polled again later, backing off exponentially (with some jitter, so that the robots
+ * ordered together spread out), and is never part of more than one call at a time. A robot not
+ * picked up before its deadline fails with a {@link TimeoutException}, and when the maximum
+ * number of robots are already awaited, new ones fail right away with a
+ * {@link RejectedExecutionException}. Failed calls, whether rejected without being made (see
+ * {@link CallRejectedException}), timed out or answered with an error status, are tried again
+ * later, like robots not done yet, until the deadlines of the robots.
+ * <p>
+ * The span of each call follows from the spans of all the robots it polls for. The counters are
+ * available as an MBean (se.hirt.examples.robotshop.order:type=RobotPickupPoller).
+ * 
+ * @author Marcus Hirt
+ */
+public final class RobotPickupPoller implements RobotPickupPollerMXBean {
+	private final static MediaType JSON = MediaType.parse("application/json");
+	// Must not be more than the factory allows per call
+	private final static int MAX_BATCH_SIZE = 1000;
+	private final static double BACKOFF_MULTIPLIER = 2;
+	// +/- this fraction of the poll interval
+	private final static double JITTER = 0.2;
+	// The precision of the timer, as a fraction of the poll interval
+	private final static int TICKS_PER_INTERVAL = 20;
+	private final static int TICKS_PER_WHEEL = 512;
+
+	private final Call.Factory httpClient;
+	private final String factoryLocation;
+	private final long intervalMillis;
+	private final long maxIntervalMillis;
+	private final long timeoutMillis;
+	private final int maxAwaitedRobots;
+	private final HashedWheelTimer timer;
+	private final Map<Long, AwaitedRobot> awaitedRobots = new ConcurrentHashMap<>();
+	private final AtomicInteger outstanding = new AtomicInteger();
+
+	private final AtomicLong scheduledJobs = new AtomicLong();
+	private final AtomicLong completedJobs = new AtomicLong();
+	private final AtomicLong expiredJobs = new AtomicLong();
+	private final AtomicLong failedJobs = new AtomicLong();
+	private final AtomicLong rejectedJobs = new AtomicLong();
+	private final AtomicLong pickupCalls = new AtomicLong();
+
+	// Only accessed by the timer thread
+	private List<AwaitedRobot> duePolls = new ArrayList<>();
+
+	private final static class AwaitedRobot {
+		private final long serialNumber;
+		private final CompletableFuture<Robot> future;
+		private final SpanContext parent;
+		// Only one of the timer and a pick-up call at a time will touch these
+		private volatile int attempts;
+		private volatile Timeout nextPoll;
+		private volatile Timeout deadline;
+
+		AwaitedRobot(long serialNumber, CompletableFuture<Robot> future, SpanContext parent) {
+			this.serialNumber = serialNumber;
+			this.future = future;
+			this.parent = parent;
+		}
+	}
+
+	/**
+	 * @param httpClient
+	 *            the client to use for the calls to the factory.
+	 * @param factoryLocation
+	 *            the location of the factory to poll.
+	 * @param intervalMillis
+	 *            the time until a robot is first polled for.
+	 * @param maxIntervalMillis
+	 *            the maximum time between the polls for a robot.
+	 * @param timeoutMillis
+	 *            the time after which to give up on a robot.
+	 * @param maxAwaitedRobots
+	 *            the maximum number of robots to poll for at the same time.
+	 */
+	public RobotPickupPoller(Call.Factory httpClient, String factoryLocation, long intervalMillis,
+			long maxIntervalMillis, long timeoutMillis, int maxAwaitedRobots) {
+		this.httpClient = httpClient;
+		this.factoryLocation = factoryLocation;
+		this.intervalMillis = intervalMillis;
+		this.maxIntervalMillis = Math.max(intervalMillis, maxIntervalMillis);
+		this.timeoutMillis = timeoutMillis;
+		this.maxAwaitedRobots = maxAwaitedRobots;
+		timer = new HashedWheelTimer("Robot Pickup Timer", Math.max(1, intervalMillis / TICKS_PER_INTERVAL),
+				TICKS_PER_WHEEL);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(
+					"se.hirt.examples.robotshop.order:type=RobotPickupPoller,name=" + ObjectName.quote(factoryLocation)));
+		} catch (JMException e) {
+			System.err.println("Could not register the robot pickup poller MBean: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts polling for a robot.
+	 * 
+	 * @param serialNumber
+	 *            the serial number of the robot to pick up.
+	 * @param future
+	 *            the future to complete with the robot when picked up, or exceptionally if the
+	 *            factory could not be polled, the robot was not picked up in time, or too many
+	 *            robots are already awaited. Can also be completed by someone else, e.g. when the
+	 *            factory delivers the robot, which stops the polling for it.
+	 * @param parent
+	 *            the span context of the caller, or null.
+	 */
+	public void poll(long serialNumber, CompletableFuture<Robot> future, SpanContext parent) {
+		if (outstanding.incrementAndGet() > maxAwaitedRobots) {
+			outstanding.decrementAndGet();
+			rejectedJobs.incrementAndGet();
+			future.completeExceptionally(
+					new RejectedExecutionException("Already awaiting " + maxAwaitedRobots + " robots from " + factoryLocation));
+			return;
+		}
+		scheduledJobs.incrementAndGet();
+		AwaitedRobot awaited = new AwaitedRobot(serialNumber, future, parent);
+		awaitedRobots.put(serialNumber, awaited);
+		awaited.deadline = timer.schedule(() -> expire(awaited), timeoutMillis, TimeUnit.MILLISECONDS);
+		schedulePoll(awaited);
+		future.whenComplete((robot, t) -> {
+			awaitedRobots.remove(serialNumber, awaited);
+			outstanding.decrementAndGet();
+			awaited.deadline.cancel();
+			awaited.nextPoll.cancel();
+			if (t == null) {
+				completedJobs.incrementAndGet();
+			}
+		});
+	}
+
+	private void schedulePoll(AwaitedRobot awaited) {
+		long interval = (long) Math.min(maxIntervalMillis,
+				intervalMillis * Math.pow(BACKOFF_MULTIPLIER, awaited.attempts));
+		long jitter = (long) (interval * JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1));
+		awaited.nextPoll = timer.schedule(() -> due(awaited), interval + jitter, TimeUnit.MILLISECONDS);
+	}
+
+	private void expire(AwaitedRobot awaited) {
+		if (awaited.future.completeExceptionally(new TimeoutException(
+				"Robot " + awaited.serialNumber + " was not picked up within " + timeoutMillis + " ms"))) {
+			expiredJobs.incrementAndGet();
+		}
+	}
+
+	private void due(AwaitedRobot awaited) {
+		if (awaited.future.isDone()) {
+			return;
+		}
+		duePolls.add(awaited);
+		if (duePolls.size() == 1) {
+			// Runs on the next tick, picking up all that become due until then
+			timer.schedule(this::flush, 0, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		List<AwaitedRobot> due = duePolls;
+		duePolls = new ArrayList<>();
+		for (int i = 0; i < due.size(); i += MAX_BATCH_SIZE) {
+			pickUp(due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size())));
+		}
+	}
+
+	private void pickUp(List<AwaitedRobot> robots) {
+		pickupCalls.incrementAndGet();
+		SpanBuilder spanBuilder = GlobalTracer.get().buildSpan("pickupFromFactoryAttempt").withTag("batchSize",
+				robots.size());
+		JsonArrayBuilder jsonSerials = Json.createArrayBuilder();
+		for (AwaitedRobot awaited : robots) {
+			if (awaited.parent != null) {
+				spanBuilder.addReference(References.FOLLOWS_FROM, awaited.parent);
+			}
+			jsonSerials.add(String.valueOf(awaited.serialNumber));
+		}
+		Span span = spanBuilder.start();
+
+		String body = Json.createObjectBuilder().add(Robot.KEY_SERIAL_NUMBERS, jsonSerials).build().toString();
+		Request request = new Request.Builder().url(factoryLocation + "/factory/pickup/batch")
+				.post(RequestBody.create(JSON, body)).build();
+		Call call;
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			call = httpClient.newCall(request);
+		}
+		call.enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
+				try {
+					retry(robots, e, span);
+				} finally {
+					span.finish();
+				}
+			}
+
+			@Override
+			public void onResponse(Call call, Response response) {
+				try (ResponseBody responseBody = response.body()) {
+					if (!response.isSuccessful()) {
+						retry(robots, new IOException("Got " + response.code() + " from " + request.url()), span);
+						return;
+					}
+					JsonObject json = Json.createReader(new StringReader(responseBody.string())).readObject();
+					Set<Long> pickedUp = new HashSet<>();
+					for (JsonValue jsonRobot : json.getJsonArray(Robot.KEY_ROBOTS)) {
+						Robot robot = Robot.fromJSon(jsonRobot.asJsonObject());
+						AwaitedRobot awaited = awaitedRobots.get(robot.getSerialNumber());
+						if (awaited != null) {
+							awaited.future.complete(robot);
+						}
+						pickedUp.add(robot.getSerialNumber());
+					}
+					for (AwaitedRobot awaited : robots) {
+						if (!pickedUp.contains(awaited.serialNumber) && !awaited.future.isDone()) {
+							awaited.attempts++;
+							schedulePoll(awaited);
+						}
+					}
+				} catch (Throwable t) {
+					fail(robots, t, span);
+				} finally {
+					span.finish();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The factory could not be reached, or is failing - keep polling until the deadlines.
+	 */
+	private void retry(List<AwaitedRobot> robots, Throwable t, Span span) {
+		span.log(OpenTracingUtil.getSpanLogMap(t));
+		for (AwaitedRobot awaited : robots) {
+			if (!awaited.future.isDone()) {
+				awaited.attempts++;
+				schedulePoll(awaited);
+			}
+		}
+	}
+
+	/**
+	 * An answer that cannot be made sense of fails all the robots polled for.
+	 */
+	private void fail(List<AwaitedRobot> robots, Throwable t, Span span) {
+		span.log(OpenTracingUtil.getSpanLogMap(t));
+		for (AwaitedRobot awaited : robots) {
+			if (awaited.future.completeExceptionally(t)) {
+				failedJobs.incrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	public String getFactoryLocation() {
+		return factoryLocation;
+	}
+
+	@Override
+	public int getAwaitedRobots() {
+		return outstanding.get();
+	}
+
+	@Override
+	public int getMaxAwaitedRobots() {
+		return maxAwaitedRobots;
+	}
+
+	@Override
+	public long getScheduledJobs() {
+		return scheduledJobs.get();
+	}
+
+	@Override
+	public long getCompletedJobs() {
+		return completedJobs.get();
+	}
+
+	@Override
+	public long getExpiredJobs() {
+		return expiredJobs.get();
+	}
+
+	@Override
+	public long getFailedJobs() {
+		return failedJobs.get();
+	}
+
+	@Override
+	public long getRejectedJobs() {
+		return rejectedJobs.get();
+	}
+
+	@Override
+	public long getPickupCalls() {
+		return pickupCalls.get();
+	}
+
+	@Override
+	public long getPendingTimeouts() {
+		return timer.getPendingTimeouts();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order;
+
+/**
+ * Management interface of the {@link RobotPickupPoller}, e.g. for following the polling in JMC.
+ * 
+ * @author Marcus Hirt
+ */
+public interface RobotPickupPollerMXBean {
+	/**
+	 * @return the location of the factory polled.
+	 */
+	String getFactoryLocation();
+
+	/**
+	 * @return the number of robots currently being polled for.
+	 */
+	int getAwaitedRobots();
+
+	/**
+	 * @return the maximum number of robots to poll for at the same time.
+	 */
+	int getMaxAwaitedRobots();
+
+	/**
+	 * @return the number of robots that have been polled for.
+	 */
+	long getScheduledJobs();
+
+	/**
+	 * @return the number of robots that have been picked up or delivered.
+	 */
+	long getCompletedJobs();
+
+	/**
+	 * @return the number of robots given up on since they were not picked up in time.
+	 */
+	long getExpiredJobs();
+
+	/**
+	 * @return the number of robots failed since the calls to the factory failed.
+	 */
+	long getFailedJobs();
+
+	/**
+	 * @return the number of robots not polled for at all, since too many were already awaited.
+	 */
+	long getRejectedJobs();
+
+	/**
+	 * @return the number of calls made to the factory.
+	 */
+	long getPickupCalls();
+
+	/**
+	 * @return the number of polls and deadlines pending in the timer.
+	 */
+	long getPendingTimeouts();
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order.rest;
+
+import javax.json.JsonObject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import se.hirt.examples.robotshop.common.data.Robot;
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.order.OrderManager;
+
+/**
+ * Receives the robots delivered by the factory, so that the orders waiting for them do not have to
+ * poll the factory.
+ * 
+ * @author Marcus Hirt
+ */
+@Path("/robots/")
+public class CompletedRobotsResource {
+	@POST
+	@Path("/completed")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response robotCompleted(JsonObject jsonEntity) {
+		Robot robot;
+		try {
+			robot = Robot.fromJSon(jsonEntity);
+		} catch (RuntimeException e) {
+			return Response.status(Status.BAD_REQUEST).entity(Utils.errorAsJSonString("Not a valid robot!")).build();
+		}
+		// Not found makes the factory keep the robot for pick-up
+		if (!OrderManager.getInstance().robotCompleted(robot)) {
+			return Response.status(Status.NOT_FOUND)
+					.entity(Utils.errorAsJSonString("No order is waiting for robot " + robot.getSerialNumber()))
+					.build();
+		}
+		return Response.noContent().build();
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2018 Marcus Hirt
+ *                    www.hirt.se
+ *
+ * This software is free:
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESSED OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * Copyright (C) Marcus Hirt, 2018
+ */
+package se.hirt.examples.robotshop.order.rest;
+
+import javax.json.Json;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import se.hirt.examples.robotshop.common.data.Customer;
+import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.order.CustomerCache;
+import se.hirt.examples.robotshop.order.OrderManager;
+
+/**
+ * The statistics of the customer cache of the order service, and invalidation of the customers in
+ * it, e.g. after changing or deleting a customer.
+ * 
+ * @author Marcus Hirt
+ */
+@Path("/customercache/")
+public class CustomerCacheResource {
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response getStatistics() {
+		CustomerCache cache = OrderManager.getInstance().getCustomerCache();
+		if (cache == null) {
+			return notCaching();
+		}
+		return Response.ok(Json.createObjectBuilder().add("size", cache.getSize()).add("maxSize", cache.getMaxSize())
+				.add("ttlMillis", cache.getTtlMillis()).add("negativeTtlMillis", cache.getNegativeTtlMillis())
+				.add("hits", cache.getHits()).add("negativeHits", cache.getNegativeHits())
+				.add("misses", cache.getMisses()).add("hitRate", cache.getHitRate())
+				.add("evictions", cache.getEvictions()).add("expirations", cache.getExpirations())
+				.add("invalidations", cache.getInvalidations()).build()).build();
+	}
+
+	@DELETE
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response invalidateAll() {
+		CustomerCache cache = OrderManager.getInstance().getCustomerCache();
+		if (cache == null) {
+			return notCaching();
+		}
+		cache.invalidateAll();
+		return Response.noContent().build();
+	}
+
+	@DELETE
+	@Path("/{" + Customer.KEY_CUSTOMER_ID + "}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response invalidate(@PathParam(Customer.KEY_CUSTOMER_ID) Long customerId) {
+		CustomerCache cache = OrderManager.getInstance().getCustomerCache();
+		if (cache == null) {
+			return notCaching();
+		}
+		cache.invalidate(customerId);
+		return Response.noContent().build();
+	}
+
+	private static Response notCaching() {
+		return Response.status(Status.NOT_FOUND)
+				.entity(Utils.errorAsJSonString("Customers are not cached (CUSTOMER_CACHE_SIZE is 0)")).build();
+	}
+}
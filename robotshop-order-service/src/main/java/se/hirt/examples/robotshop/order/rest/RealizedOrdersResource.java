@@ -31,22 +31,30 @@
  */
 package se.hirt.examples.robotshop.order.rest;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import io.opentracing.Span;
 import se.hirt.examples.robotshop.common.data.RealizedOrder;
 import se.hirt.examples.robotshop.common.data.RobotOrder;
+import se.hirt.examples.robotshop.common.opentracing.OpenTracingFilter;
 import se.hirt.examples.robotshop.common.util.Utils;
 import se.hirt.examples.robotshop.order.OrderManager;
 
@@ -57,6 +65,9 @@ import se.hirt.examples.robotshop.order.OrderManager;
  */
 @Path("/readyorders/")
 public class RealizedOrdersResource {
+	public static final String KEY_WAIT_MS = "waitMs";
+	private static final long MAX_WAIT_MS = 60000;
+
 	@Context
 	UriInfo uriInfo;
 
@@ -75,18 +86,59 @@ public class RealizedOrdersResource {
 		return new RealizedOrderResource(uriInfo, robotOrderId);
 	}
 
+	/**
+	 * Picks up a realized order. With waitMs, waits for up to that many milliseconds for the order
+	 * to be realized, without holding on to a request thread while waiting.
+	 */
 	@GET
 	@Path("/pickup")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Response buildRobot(@QueryParam(RobotOrder.KEY_ORDER_ID) Long orderId) {
+	public void buildRobot(
+		@Context HttpServletRequest request, @QueryParam(RobotOrder.KEY_ORDER_ID) Long orderId,
+		@QueryParam(KEY_WAIT_MS) Long waitMs, @Suspended AsyncResponse asyncResponse) {
 		if (orderId == null) {
-			return Response.status(Status.BAD_REQUEST)
-					.entity(Utils.errorAsJSonString(RobotOrder.KEY_ORDER_ID + " must not be null!")).build();
+			asyncResponse.resume(Response.status(Status.BAD_REQUEST)
+					.entity(Utils.errorAsJSonString(RobotOrder.KEY_ORDER_ID + " must not be null!")).build());
+			return;
+		}
+		if (waitMs == null || waitMs <= 0 || OrderManager.getInstance().getRealizedOrderById(orderId) != null) {
+			asyncResponse.resume(pickUp(orderId));
+			return;
 		}
+
+		Span span = OpenTracingFilter.suspend(request);
+		// Whichever of the order and the timeout comes first gets to respond
+		AtomicBoolean responded = new AtomicBoolean();
+		Runnable listener = () -> {
+			if (responded.compareAndSet(false, true)) {
+				resume(asyncResponse, pickUp(orderId), span);
+			}
+		};
+		asyncResponse.setTimeoutHandler((response) -> {
+			if (responded.compareAndSet(false, true)) {
+				OrderManager.getInstance().removeRealizedOrderListener(orderId, listener);
+				resume(response, Response.status(Status.NOT_FOUND).build(), span);
+			}
+		});
+		asyncResponse.setTimeout(Math.min(waitMs, MAX_WAIT_MS), TimeUnit.MILLISECONDS);
+		OrderManager.getInstance().addRealizedOrderListener(orderId, listener);
+	}
+
+	private static Response pickUp(Long orderId) {
 		RealizedOrder robotOrder = OrderManager.getInstance().pickUpOrder(orderId);
 		if (robotOrder == null) {
 			return Response.status(Status.NOT_FOUND).build();
 		}
 		return Response.ok(robotOrder.toJSon().build()).build();
 	}
+
+	private static void resume(AsyncResponse asyncResponse, Response response, Span span) {
+		try {
+			asyncResponse.resume(response);
+		} finally {
+			if (span != null) {
+				span.finish();
+			}
+		}
+	}
 }
@@ -48,6 +48,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
@@ -58,6 +59,7 @@ import se.hirt.examples.robotshop.common.data.RobotOrder;
 import se.hirt.examples.robotshop.common.data.RobotOrderLineItem;
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingFilter;
 import se.hirt.examples.robotshop.common.util.Utils;
+import se.hirt.examples.robotshop.order.CustomerRateLimiter;
 import se.hirt.examples.robotshop.order.OrderManager;
 
 /**
@@ -100,6 +102,15 @@ public class RobotOrdersResource {
 		JsonValue jsonValue = jsonEntity.get(RobotOrder.KEY_LINE_ITEMS);
 		List<RobotOrderLineItem> lineItems = jsonValue.asJsonArray().stream().map(RobotOrderLineItem::fromJSon)
 				.collect(Collectors.toList());
+		CustomerRateLimiter rateLimiter = OrderManager.getInstance().getCustomerRateLimiter();
+		if (rateLimiter != null) {
+			long waitNanos = rateLimiter.tryAcquire(customerId, lineItems.size());
+			if (waitNanos > 0) {
+				return Response.status(Status.TOO_MANY_REQUESTS)
+						.header(HttpHeaders.RETRY_AFTER, Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000))
+						.entity(Utils.errorAsJSonString("Too many orders from customer " + customerId + "!")).build();
+			}
+		}
 		try {
 			RobotOrder newOrder = OrderManager.getInstance().createNewOrder(customerId,
 					lineItems.toArray(new RobotOrderLineItem[0]));
@@ -107,6 +118,7 @@ public class RobotOrdersResource {
 			return Response.accepted(newOrder.toJSon().build()).build();
 		} catch (RejectedExecutionException e) {
 			return Response.status(Status.SERVICE_UNAVAILABLE)
+					.header(HttpHeaders.RETRY_AFTER, OrderManager.getInstance().getRetryAfterSeconds())
 					.entity(Utils.errorAsJSonString("Order Service is overworked!")).build();
 		}
 	}
@@ -87,6 +87,7 @@ public class LoadGenerator {
 		threadPool.shutdown();
 		threadPool.awaitTermination(10, TimeUnit.SECONDS);
 		System.out.println(" done!");
+		System.out.println(LoadWorker.getHttpStatistics());
 	}
 
 }
@@ -59,7 +59,6 @@ import io.opentracing.Tracer;
 import io.opentracing.Tracer.SpanBuilder;
 import io.opentracing.contrib.okhttp3.TracingCallFactory;
 import io.opentracing.util.GlobalTracer;
-import okhttp3.Call;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -74,7 +73,9 @@ import se.hirt.examples.robotshop.common.data.RobotOrderLineItem;
 import se.hirt.examples.robotshop.common.data.RobotType;
 import se.hirt.examples.robotshop.common.opentracing.OpenTracingUtil;
 import se.hirt.examples.robotshop.common.opentracing.SpanDecorator;
+import se.hirt.examples.robotshop.common.sharding.CustomerRouter;
 import se.hirt.examples.robotshop.common.util.Logger;
+import se.hirt.examples.robotshop.common.util.SingleFlightCallFactory;
 
 /**
  * The thing actually generating some load.
@@ -85,12 +86,16 @@ public class LoadWorker implements Runnable {
 	private final static Random RND = new Random();
 
 	private final static MediaType JSON = okhttp3.MediaType.parse("application/json; charset=utf-8");
+	private final static int SEARCH_LIMIT = 10;
 
 	private final static ScheduledExecutorService COMPLETION_POLL_EXECUTOR = Executors.newScheduledThreadPool(4);
-	private final Call.Factory httpClient = new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(),
-			SpanDecorator.getSpanDecorators());
+	// Shared by all workers, so that concurrent GETs of e.g. the robot types and paints share one call
+	private final static SingleFlightCallFactory HTTP_CLIENT = new SingleFlightCallFactory(
+			new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(), SpanDecorator.getSpanDecorators()),
+			"Load Generator");
 
 	private final String urlCustomer;
+	private final CustomerRouter customerRouter;
 	private final String urlFactory;
 	private final String urlOrder;
 	private final int minRobotsPerOrder;
@@ -100,6 +105,13 @@ public class LoadWorker implements Runnable {
 		OpenTracingUtil.configureOpenTracing("RobotShop-LoadGenerator");
 	}
 
+	/**
+	 * @return the statistics of the GETs made by the workers, e.g. how many were collapsed.
+	 */
+	static String getHttpStatistics() {
+		return HTTP_CLIENT.toString();
+	}
+
 	public LoadWorker(Properties configuration) {
 		urlCustomer = configuration.getProperty("urlCustomerService");
 		urlFactory = configuration.getProperty("urlFactoryService");
@@ -107,6 +119,8 @@ public class LoadWorker implements Runnable {
 		minRobotsPerOrder = Integer.parseInt(configuration.getProperty("minRobotsPerOrder", "3"));
 		maxRobotsPerOrder = Integer.parseInt(configuration.getProperty("maxRobotsPerOrder", "10"));
 		validate();
+		// The customer service may be sharded, in which case the URLs of all the shards are listed
+		customerRouter = new CustomerRouter(HTTP_CLIENT, urlCustomer);
 	}
 
 	private void validate() {
@@ -147,6 +161,10 @@ public class LoadWorker implements Runnable {
 			CompletableFuture.allOf(newCustomer, availableTypes, availableColors);
 
 			Customer customer = newCustomer.get();
+			// Look the customer up like a clerk would, in all the shards, while the order is being processed
+			if (customer != null) {
+				CompletableFuture.runAsync(() -> findCustomer(customer, parentContext));
+			}
 
 			// First completion stage done. Now we can create the order
 			List<RobotOrderLineItem> lineItems = createRandomOrder(availableTypes.get(), availableColors.get());
@@ -172,16 +190,15 @@ public class LoadWorker implements Runnable {
 				+ realizedOrder.getOrder().getOrderId() + ". Now removing customer.");
 
 		Customer customer = realizedOrder.getCustomer();
-		String url = urlCustomer + "/customers/" + customer.getId();
-		Request request = new Request.Builder().url(url).delete().build();
+		String url = customerRouter.getLocation(customer.getId()) + "/customers/" + customer.getId();
 
 		SpanBuilder spanBuilder = getTracer().buildSpan("DELETE: " + url);
 		spanBuilder.addReference(References.FOLLOWS_FROM, ctx);
 		Span span = spanBuilder.start();
 
 		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-			Response response = httpClient.newCall(request).execute();
-			if (!response.isSuccessful()) {
+			// The router follows the customer if it has been moved to another shard
+			if (!customerRouter.deleteCustomer(customer.getId())) {
 				Logger.log("Failed to call DELETE:" + url);
 				return null;
 			}
@@ -200,8 +217,9 @@ public class LoadWorker implements Runnable {
 		System.out.println("Created order " + order.getOrderId() + " for user " + order.getCustomerId() + " with "
 				+ order.getLineItems().length + " robot(s)" + ", now awaiting completion.");
 		OrderCompletionMonitor job = new OrderCompletionMonitor(urlOrder + "/readyorders/pickup", order, future,
-				parent);
-		job.scheduledFuture = COMPLETION_POLL_EXECUTOR.scheduleAtFixedRate(job, 50, 2000, TimeUnit.MILLISECONDS);
+				parent, COMPLETION_POLL_EXECUTOR);
+		// The monitor long polls, asking again until the order has been picked up
+		COMPLETION_POLL_EXECUTOR.schedule(job, 50, TimeUnit.MILLISECONDS);
 	}
 
 	private RobotOrder postOrder(Customer c, List<RobotOrderLineItem> lineItems, SpanContext parent) {
@@ -225,7 +243,7 @@ public class LoadWorker implements Runnable {
 		Span span = spanBuilder.start();
 
 		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-			Response response = httpClient.newCall(request).execute();
+			Response response = HTTP_CLIENT.newCall(request).execute();
 			if (!response.isSuccessful()) {
 				Logger.log("Failed to call POST:" + url);
 				Logger.log("Response: " + response.body().string());
@@ -285,7 +303,7 @@ public class LoadWorker implements Runnable {
 		Span span = spanBuilder.start();
 
 		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-			Response response = httpClient.newCall(request).execute();
+			Response response = HTTP_CLIENT.newCall(request).execute();
 			if (!response.isSuccessful()) {
 				Logger.log("Failed to call GET:" + url);
 				return null;
@@ -300,22 +318,17 @@ public class LoadWorker implements Runnable {
 	}
 
 	private Customer registerRandomCustomer(SpanContext parent) {
-		String newCustomerJSon = getNewCustomerJSonString();
-		RequestBody body = RequestBody.create(JSON, newCustomerJSon);
-		Request request = new Request.Builder().url(urlCustomer + "/customers").put(body).build();
+		String fullName = Names.getRandomName();
+		String phoneNumber = Phones.getRandomPhone();
 
 		SpanBuilder spanBuilder = getTracer().buildSpan("Create random user");
 		spanBuilder.asChildOf(parent);
 		Span span = spanBuilder.start();
 
 		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
-			Response response = httpClient.newCall(request).execute();
-			if (!response.isSuccessful()) {
-				Logger.log("Failed to create customer " + newCustomerJSon);
-				return null;
-			}
-			return Customer.fromJSon(response.body().string());
+			return customerRouter.createCustomer(fullName, phoneNumber);
 		} catch (Throwable t) {
+			Logger.log("Failed to create customer " + fullName + ": " + t.getMessage());
 			span.log(OpenTracingUtil.getSpanLogMap(t));
 		} finally {
 			span.finish();
@@ -323,15 +336,37 @@ public class LoadWorker implements Runnable {
 		return null;
 	}
 
-	private static Tracer getTracer() {
-		return GlobalTracer.get();
+	/**
+	 * Searches for the customer by name, and lists the customers from its id, across all the
+	 * shards of the customer service.
+	 */
+	private void findCustomer(Customer customer, SpanContext parent) {
+		SpanBuilder spanBuilder = getTracer().buildSpan("Find customer");
+		spanBuilder.asChildOf(parent);
+		Span span = spanBuilder.start();
+
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			String customerId = String.valueOf(customer.getId());
+			boolean foundBySearch = customerRouter.searchCustomers(customer.getFullName(), SEARCH_LIMIT).stream()
+					.anyMatch((hit) -> customerId.equals(hit.getString(Customer.KEY_CUSTOMER_ID)));
+			List<Customer> page = customerRouter.listCustomers(customer.getId() - 1, 1);
+			boolean foundInList = !page.isEmpty() && page.get(0).getId() == customer.getId();
+			span.setTag("foundBySearch", foundBySearch);
+			span.setTag("foundInList", foundInList);
+			if (!foundBySearch || !foundInList) {
+				Logger.log("Could not find customer " + customer + (foundBySearch ? "" : " by name")
+						+ (foundInList ? "" : " in the list of customers"));
+			}
+		} catch (Throwable t) {
+			Logger.log("Failed to find customer " + customer + ": " + t.getMessage());
+			span.log(OpenTracingUtil.getSpanLogMap(t));
+		} finally {
+			span.finish();
+		}
 	}
 
-	private String getNewCustomerJSonString() {
-		JsonObjectBuilder builder = Json.createObjectBuilder();
-		builder.add(Customer.KEY_FULL_NAME, Names.getRandomName());
-		builder.add(Customer.KEY_PHONE_NUMBER, Phones.getRandomPhone());
-		return builder.build().toString();
+	private static Tracer getTracer() {
+		return GlobalTracer.get();
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -2,15 +2,19 @@ package se.hirt.examples.robotshop.loadgenerator;
 
 import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import io.opentracing.References;
 import io.opentracing.Scope;
+import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.Tracer.SpanBuilder;
 import io.opentracing.contrib.okhttp3.TracingCallFactory;
 import io.opentracing.util.GlobalTracer;
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -20,53 +24,98 @@ import se.hirt.examples.robotshop.common.data.RobotOrder;
 import se.hirt.examples.robotshop.common.opentracing.SpanDecorator;
 
 public class OrderCompletionMonitor implements Runnable {
-	private final Call.Factory httpClient = new TracingCallFactory(new OkHttpClient(), GlobalTracer.get(),
+	// How long the order service should hold on to each pick-up request, waiting for the order
+	private final static long PICKUP_WAIT_MS = 5000;
+	// How long to wait before asking again, when the order service answered without waiting
+	private final static long RETRY_DELAY_MS = 2000;
+
+	// Enough concurrent calls for all the monitors waiting on the order service
+	private final static int MAX_CONCURRENT_PICKUPS = 256;
+	private final static Call.Factory HTTP_CLIENT = new TracingCallFactory(createHttpClient(), GlobalTracer.get(),
 			SpanDecorator.getSpanDecorators());
 
 	private final String pickupLocation;
 	private final RobotOrder order;
 	private final SpanContext parent;
 	private final CompletableFuture<RealizedOrder> future;
-	public volatile ScheduledFuture<?> scheduledFuture;
+	private final ScheduledExecutorService executor;
 	private volatile boolean isDone;
 
 	public OrderCompletionMonitor(String pickupLocation, RobotOrder order, CompletableFuture<RealizedOrder> future,
-			SpanContext parent) {
+			SpanContext parent, ScheduledExecutorService executor) {
 		this.pickupLocation = pickupLocation;
 		this.order = order;
 		this.future = future;
 		this.parent = parent;
+		this.executor = executor;
+	}
+
+	private static OkHttpClient createHttpClient() {
+		OkHttpClient client = new OkHttpClient();
+		client.dispatcher().setMaxRequests(MAX_CONCURRENT_PICKUPS);
+		client.dispatcher().setMaxRequestsPerHost(MAX_CONCURRENT_PICKUPS);
+		return client;
 	}
 
 	@Override
 	public void run() {
 		if (isDone) {
-			scheduledFuture.cancel(false);
 			return;
 		}
 
 		SpanBuilder buildSpan = GlobalTracer.get().buildSpan("pickupOrderAttempt");
 		buildSpan.withTag(RobotOrder.KEY_ORDER_ID, String.valueOf(order.getOrderId()));
 		buildSpan.addReference(References.FOLLOWS_FROM, parent);
+		Span span = buildSpan.start();
 
-		try (Scope scope = buildSpan.startActive(true)) {
-			okhttp3.HttpUrl.Builder httpBuilder = HttpUrl.parse(pickupLocation).newBuilder();
-			httpBuilder.addQueryParameter(RobotOrder.KEY_ORDER_ID, String.valueOf(order.getOrderId()));
-			Request request = new Request.Builder().url(httpBuilder.build()).build();
-			try {
-				Response response = httpClient.newCall(request).execute();
-				String body = response.body().string();
-				if (response.isSuccessful() && !body.isEmpty()) {
-					isDone = true;
-					RealizedOrder realizedOrder = RealizedOrder.fromJSon(body);
-					future.complete(realizedOrder);
-					scheduledFuture.cancel(false);
-				}
-			} catch (IOException e) {
+		okhttp3.HttpUrl.Builder httpBuilder = HttpUrl.parse(pickupLocation).newBuilder();
+		httpBuilder.addQueryParameter(RobotOrder.KEY_ORDER_ID, String.valueOf(order.getOrderId()));
+		httpBuilder.addQueryParameter("waitMs", String.valueOf(PICKUP_WAIT_MS));
+		Request request = new Request.Builder().url(httpBuilder.build()).build();
+		long start = System.nanoTime();
+		Call call;
+		try (Scope scope = GlobalTracer.get().scopeManager().activate(span, false)) {
+			call = HTTP_CLIENT.newCall(request);
+		}
+		// Asynchronous, so that waiting for the order does not hold up the other monitors
+		call.enqueue(new Callback() {
+			@Override
+			public void onFailure(Call call, IOException e) {
 				e.printStackTrace();
-				scheduledFuture.cancel(false);
+				span.finish();
 			}
-		}
+
+			@Override
+			public void onResponse(Call call, Response response) throws IOException {
+				try {
+					String body = response.body().string();
+					if (response.isSuccessful() && !body.isEmpty()) {
+						isDone = true;
+						RealizedOrder realizedOrder = RealizedOrder.fromJSon(body);
+						future.complete(realizedOrder);
+					}
+				} finally {
+					response.close();
+					span.finish();
+				}
+				if (!isDone) {
+					// Not done within the wait - ask again. If the answer came before the wait was up
+					// (e.g. an error), asking again right away would just spin.
+					if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= PICKUP_WAIT_MS) {
+						run();
+					} else {
+						retryLater();
+					}
+				}
+			}
+		});
 	}
 
+	private void retryLater() {
+		try {
+			executor.schedule(this, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shutting down
+		}
+	}
 }